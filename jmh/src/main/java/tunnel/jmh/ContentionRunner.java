@@ -0,0 +1,67 @@
+package tunnel.jmh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import tunnel.common.Options;
+
+/**
+ * Runs the monitor benchmarks once per thread count and prints one table,
+ * so the scaling of the implementations can be read off directly.
+ * <p>
+ * {@code java -cp jmh/target/benchmarks.jar tunnel.jmh.ContentionRunner --threads=1,2,4,8,16,32,64 --include=VisitorsMonitor}
+ * <p>
+ * The {@code readHeavy} mixes need a multiple of four threads and are
+ * skipped below four.
+ */
+public class ContentionRunner {
+
+    private static final int GROUP_SIZE = 4;
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new Options(args);
+        String include = options.get("include", "tunnel\\.jmh\\..*Benchmark");
+        String[] threadCounts = options.get("threads", "1,2,4,8,16,32,64").split(",");
+
+        List<String> rows = new ArrayList<>();
+        for (String threadCount : threadCounts) {
+            int threads = Integer.parseInt(threadCount.trim());
+            OptionsBuilder builder = new OptionsBuilder();
+            builder.include(include).threads(threads);
+            if (threads < GROUP_SIZE) {
+                builder.exclude("readHeavy");
+            }
+            Collection<RunResult> results = new Runner(builder.build()).run();
+            for (RunResult result : results) {
+                rows.add(row(result, threads));
+            }
+        }
+
+        System.out.printf("%n%-60s %-22s %8s %14s%n", "benchmark", "params", "threads", "score");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    private static String row(RunResult result, int threads) {
+        BenchmarkParams params = result.getParams();
+        StringBuilder values = new StringBuilder();
+        for (String key : params.getParamsKeys()) {
+            if (values.length() > 0) {
+                values.append(',');
+            }
+            values.append(key).append('=').append(params.getParam(key));
+        }
+        Result<?> primary = result.getPrimaryResult();
+        return String.format("%-60s %-22s %8d %14.3f %s", params.getBenchmark(), values, threads,
+                primary.getScore(), primary.getScoreUnit());
+    }
+}
@@ -0,0 +1,123 @@
+package tunnel.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tunnel.client.CapacityTracker;
+import tunnel.client.EntranceConfig;
+import tunnel.client.EntranceView;
+import tunnel.client.GuidesMonitor;
+
+/**
+ * Cost of the GuidesMonitor of one entrance as more ClientThreads share it.
+ * {@code acquire=sequential} takes a guide with request() and gives it back
+ * with release(), {@code acquire=reserve} uses reserve() and
+ * cancelReservation() like an atomic start that finds the tunnel full. An
+ * entrance has four guides, so from five threads on the churn waits in the
+ * monitor. The mixes are the same as in {@link VisitorsMonitorBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GuidesMonitorBenchmark {
+
+    @Param({"sequential", "reserve"})
+    public String acquire;
+
+    private GuidesMonitor guidesMonitor;
+    private boolean reserve;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        guidesMonitor = new GuidesMonitor(new SilentEntrance());
+        reserve = "reserve".equals(acquire);
+    }
+
+    @Benchmark
+    public int available() {
+        return guidesMonitor.getAvailableGuides();
+    }
+
+    @Benchmark
+    public void acquireRelease() throws InterruptedException {
+        churn();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(3)
+    public int readHeavyAvailable() {
+        return guidesMonitor.getAvailableGuides();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public void readHeavyAcquireRelease() throws InterruptedException {
+        churn();
+    }
+
+    private void churn() throws InterruptedException {
+        if (reserve) {
+            guidesMonitor.reserve();
+            guidesMonitor.cancelReservation();
+        } else {
+            guidesMonitor.request();
+            guidesMonitor.release();
+        }
+    }
+
+    /**
+     * Entrance without user interface, so only the monitor is measured.
+     */
+    private static final class SilentEntrance implements EntranceView {
+        private final CapacityTracker capacityTracker = new CapacityTracker();
+
+        @Override
+        public void refreshStatus(String statusUpdate) {
+        }
+
+        @Override
+        public void displayNewVisit(int numberOfParticipants) {
+        }
+
+        @Override
+        public void updateAvailableGuides(int currentGuides) {
+        }
+
+        @Override
+        public void capacityUpdated(int availableVisitors) {
+        }
+
+        @Override
+        public void capacitySubscriptionChanged(boolean connected) {
+        }
+
+        @Override
+        public CapacityTracker getCapacityTracker() {
+            return capacityTracker;
+        }
+
+        @Override
+        public EntranceConfig getConfig() {
+            return EntranceConfig.defaults();
+        }
+    }
+}
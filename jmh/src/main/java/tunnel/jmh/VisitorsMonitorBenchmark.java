@@ -0,0 +1,100 @@
+package tunnel.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tunnel.server.LockFreeVisitorsMonitor;
+import tunnel.server.VisitorsMonitor;
+
+/**
+ * Cost of the VisitorsMonitor operations as more threads share one monitor:
+ * <ul>
+ *     <li>{@code query} - getAvailableVisitors() only, the polling clients</li>
+ *     <li>{@code admitRelease} - request(1) followed by release(1), the
+ *     write-heavy churn of groups entering and leaving</li>
+ *     <li>{@code readHeavy} - three polling threads per churning one</li>
+ * </ul>
+ * With one thread the first two are the uncontended cost. The thread count
+ * comes from the command line ({@code -t}) or from {@link ContentionRunner}.
+ * A group of one visitor never waits as long as at most 50 threads run; with
+ * 64 some of them queue in the monitor.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VisitorsMonitorBenchmark {
+
+    @Param({"synchronized", "lockfree"})
+    public String monitor;
+
+    private VisitorsMonitor visitorsMonitor;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // The monitors report every change on the console
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        switch (monitor) {
+            case "synchronized":
+                visitorsMonitor = new VisitorsMonitor();
+                break;
+            case "lockfree":
+                visitorsMonitor = new LockFreeVisitorsMonitor();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown monitor '" + monitor + "'");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public int query() {
+        return visitorsMonitor.getAvailableVisitors();
+    }
+
+    @Benchmark
+    public void admitRelease() throws InterruptedException {
+        visitorsMonitor.request(1);
+        visitorsMonitor.release(1);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(3)
+    public int readHeavyQuery() {
+        return visitorsMonitor.getAvailableVisitors();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public void readHeavyAdmitRelease() throws InterruptedException {
+        visitorsMonitor.request(1);
+        visitorsMonitor.release(1);
+    }
+}
@@ -0,0 +1,99 @@
+package tunnel.bench;
+
+import java.util.Random;
+
+/**
+ * A random distribution of non-negative whole numbers given on the command
+ * line as {@code kind:parameters}:
+ * <ul>
+ *     <li>{@code fixed:N} - always N</li>
+ *     <li>{@code uniform:MIN-MAX} - every value from MIN to MAX equally likely</li>
+ *     <li>{@code exp:MEAN} - exponential with the given mean, e.g. the gaps
+ *     between the arrivals of a Poisson process</li>
+ *     <li>{@code geometric:MEAN} - geometric on 1, 2, 3, ... with the given
+ *     mean, many small values and a long tail</li>
+ * </ul>
+ */
+public final class Distribution {
+
+    private final String spec;
+    private final String kind;
+    private final double first;
+    private final double second;
+
+    private Distribution(String spec, String kind, double first, double second) {
+        this.spec = spec;
+        this.kind = kind;
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * @param spec e.g. {@code uniform:1-10}
+     * @return the distribution.
+     * @throws IllegalArgumentException for an unknown kind or invalid parameters.
+     */
+    public static Distribution parse(String spec) {
+        int separator = spec.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Distribution '" + spec + "' must look like kind:parameters");
+        }
+        String kind = spec.substring(0, separator);
+        String parameters = spec.substring(separator + 1);
+        try {
+            switch (kind) {
+                case "fixed":
+                case "exp":
+                case "geometric":
+                    double value = Double.parseDouble(parameters);
+                    if (value < 0 || ("geometric".equals(kind) && value < 1)) {
+                        throw new IllegalArgumentException("Invalid parameter in distribution '" + spec + "'");
+                    }
+                    return new Distribution(spec, kind, value, value);
+                case "uniform":
+                    int dash = parameters.indexOf('-');
+                    if (dash < 0) {
+                        throw new IllegalArgumentException("Distribution '" + spec + "' must look like uniform:MIN-MAX");
+                    }
+                    double min = Double.parseDouble(parameters.substring(0, dash));
+                    double max = Double.parseDouble(parameters.substring(dash + 1));
+                    if (min < 0 || max < min) {
+                        throw new IllegalArgumentException("Invalid range in distribution '" + spec + "'");
+                    }
+                    return new Distribution(spec, kind, min, max);
+                default:
+                    throw new IllegalArgumentException("Unknown distribution '" + kind
+                            + "', expected fixed, uniform, exp or geometric");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number in distribution '" + spec + "'");
+        }
+    }
+
+    /**
+     * @return a random value of the distribution.
+     */
+    public long sample(Random random) {
+        switch (kind) {
+            case "fixed":
+                return Math.round(first);
+            case "uniform":
+                long min = Math.round(first);
+                return min + (long) (random.nextDouble() * (Math.round(second) - min + 1));
+            case "exp":
+                return Math.round(-first * Math.log(1.0 - random.nextDouble()));
+            default:
+                // geometric: number of trials up to the first success with p = 1 / mean
+                if (first <= 1.0) {
+                    return 1;
+                }
+                double p = 1.0 / first;
+                return 1 + (long) Math.floor(Math.log(1.0 - random.nextDouble()) / Math.log(1.0 - p));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
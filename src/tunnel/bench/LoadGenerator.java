@@ -0,0 +1,337 @@
+package tunnel.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import tunnel.client.CapacitySubscription;
+import tunnel.client.CapacityTracker;
+import tunnel.client.ClientForm;
+import tunnel.client.ClientThread;
+import tunnel.client.EntranceConfig;
+import tunnel.client.EntranceView;
+import tunnel.client.GuidesMonitor;
+import tunnel.client.ServerGateway;
+import tunnel.common.LatencyHistogram;
+import tunnel.common.Options;
+import tunnel.common.TaskExecutors;
+
+/**
+ * Drives a running server with many simulated entrances instead of two
+ * windows. Every entrance has its own GuidesMonitor and ServerGateway and
+ * runs the same ClientThreads as the ClientForm, so starts and ends go through
+ * the real acquisition logic ({@code --acquisition}, {@code --request-timeout-ms}).
+ * Groups arrive at each entrance with random gaps, have a random size and stay
+ * in the tunnel for a random time (see {@link Distribution} for the format):
+ * <ul>
+ *     <li>{@code --entrances=N} (default 100)</li>
+ *     <li>{@code --arrival-gap-ms=exp:2000} - gap between two groups of one entrance</li>
+ *     <li>{@code --group-size=uniform:1-10} - visitors per group, at most
+ *     {@link ClientForm#MAX_GROUP_SIZE}</li>
+ *     <li>{@code --visit-ms=exp:1000} - time between admission and end of a visit</li>
+ *     <li>{@code --duration-s=30} - how long groups arrive; afterwards the run
+ *     waits up to {@code --drain-ms=10000} for the groups still inside</li>
+ *     <li>{@code --tunnels=N} - spreads the entrances round-robin over the
+ *     tunnels 0 to N-1 (default 1); the server needs at least as many</li>
+ *     <li>{@code --host}, {@code --port} of the server, {@code --executor} and
+ *     {@code --max-threads} for the ClientThreads</li>
+ * </ul>
+ * At the end it prints the throughput, the percentiles of the admission
+ * latency (arrival of a group until it enters the tunnel, including the wait
+ * for a guide) and the number of timed out and failed starts and ends.
+ * <p>
+ * {@code java tunnel.bench.LoadGenerator --entrances=1000 --executor=virtual --duration-s=60}
+ */
+public class LoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final EntranceConfig config;
+    private final int tunnels;
+    private final Distribution arrivalGapMillis;
+    private final Distribution groupSize;
+    private final Distribution visitMillis;
+    private final ExecutorService requestExecutor;
+    private final ScheduledExecutorService timer = TaskExecutors.newTimer("load-timer");
+    private final List<SimulatedEntrance> entrances = new ArrayList<>();
+    private volatile boolean arriving = true;
+
+    private final LatencyHistogram admissionLatency = new LatencyHistogram();
+    private final LongAdder arrivals = new LongAdder();
+    private final LongAdder admittedGroups = new LongAdder();
+    private final LongAdder admittedVisitors = new LongAdder();
+    private final LongAdder finishedGroups = new LongAdder();
+    private final LongAdder timedOutStarts = new LongAdder();
+    private final LongAdder failedStarts = new LongAdder();
+    private final LongAdder failedEnds = new LongAdder();
+    /**
+     * Groups that arrived and have not left yet (waiting or inside).
+     */
+    private final AtomicInteger groupsInProgress = new AtomicInteger();
+
+    LoadGenerator(Options options) {
+        this.host = options.get("host", "localhost");
+        this.port = options.getInt("port", 65535);
+        this.config = EntranceConfig.fromOptions(options);
+        this.tunnels = options.getInt("tunnels", 1);
+        if (tunnels <= 0) {
+            throw new IllegalArgumentException("--tunnels must be positive");
+        }
+        this.arrivalGapMillis = Distribution.parse(options.get("arrival-gap-ms", "exp:2000"));
+        this.groupSize = Distribution.parse(options.get("group-size", "uniform:1-10"));
+        this.visitMillis = Distribution.parse(options.get("visit-ms", "exp:1000"));
+        this.requestExecutor = TaskExecutors.fromOptions(options, "load-request");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options;
+        LoadGenerator generator;
+        int entranceCount;
+        int durationSeconds;
+        long drainMillis;
+        try {
+            options = new Options(args);
+            entranceCount = options.getInt("entrances", 100);
+            durationSeconds = options.getInt("duration-s", 30);
+            drainMillis = options.getLong("drain-ms", 10_000L);
+            if (entranceCount <= 0 || durationSeconds <= 0 || drainMillis < 0) {
+                throw new IllegalArgumentException("--entrances and --duration-s must be positive, --drain-ms not negative");
+            }
+            generator = new LoadGenerator(options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        generator.run(entranceCount, durationSeconds, drainMillis);
+    }
+
+    void run(int entranceCount, int durationSeconds, long drainMillis) throws InterruptedException {
+        System.out.printf("Load run: %d entrances into %d tunnel(s), %d s, %s acquisition, arrival gap %s ms, "
+                        + "group size %s, visit %s ms%n",
+                entranceCount, tunnels, durationSeconds,
+                config.isAtomicAcquisition() ? EntranceConfig.ACQUISITION_ATOMIC : EntranceConfig.ACQUISITION_SEQUENTIAL,
+                arrivalGapMillis, groupSize, visitMillis);
+        for (int i = 0; i < entranceCount; i++) {
+            SimulatedEntrance entrance = new SimulatedEntrance(i + 1, config.withTunnelId(i % tunnels));
+            entrances.add(entrance);
+            entrance.start();
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        arriving = false;
+        long arrivalEnd = System.nanoTime();
+
+        long drainDeadline = System.currentTimeMillis() + drainMillis;
+        while (groupsInProgress.get() > 0 && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        report((arrivalEnd - start) / 1e9, (System.nanoTime() - start) / 1e9);
+
+        for (SimulatedEntrance entrance : entrances) {
+            entrance.stop();
+        }
+        timer.shutdownNow();
+        requestExecutor.shutdownNow();
+    }
+
+    private void report(double arrivalSeconds, double totalSeconds) {
+        System.out.printf("arrivals      %10d  (%.1f groups/s)%n", arrivals.sum(), arrivals.sum() / arrivalSeconds);
+        System.out.printf("admitted      %10d  (%.1f groups/s, %.1f visitors/s)%n", admittedGroups.sum(),
+                admittedGroups.sum() / totalSeconds, admittedVisitors.sum() / totalSeconds);
+        System.out.printf("finished      %10d%n", finishedGroups.sum());
+        System.out.printf("timed out     %10d%n", timedOutStarts.sum());
+        System.out.printf("errors        %10d start, %d end%n", failedStarts.sum(), failedEnds.sum());
+        System.out.printf("unfinished    %10d  (still waiting or inside after the drain)%n", groupsInProgress.get());
+        System.out.printf("admission latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                admissionLatency.getPercentileMillis(50), admissionLatency.getPercentileMillis(90),
+                admissionLatency.getPercentileMillis(99), admissionLatency.getPercentileMillis(99.9),
+                admissionLatency.getMaxMillis());
+    }
+
+    /**
+     * One entrance without user interface. Its GuidesMonitor reports to the
+     * entrance; every group gets its own GroupView, so the outcome of a
+     * ClientThread can be told apart from the others of the entrance.
+     */
+    private final class SimulatedEntrance implements EntranceView {
+        private final String name;
+        private final EntranceConfig entranceConfig;
+        private final ServerGateway serverGateway;
+        private final GuidesMonitor guidesMonitor;
+        private final CapacityTracker capacityTracker = new CapacityTracker();
+        private final CapacitySubscription capacitySubscription;
+
+        SimulatedEntrance(int number, EntranceConfig entranceConfig) {
+            this.name = "Entrance " + number;
+            this.entranceConfig = entranceConfig;
+            this.serverGateway = new ServerGateway(host, port, entranceConfig.getTunnelId());
+            this.guidesMonitor = new GuidesMonitor(this);
+            // Atomic starts wait for capacity updates without a guide
+            this.capacitySubscription = config.isAtomicAcquisition()
+                    ? new CapacitySubscription(host, port, this) : null;
+        }
+
+        void start() {
+            if (capacitySubscription != null) {
+                capacitySubscription.start("Subscription-" + name + "-Thread");
+            }
+            scheduleArrival(ThreadLocalRandom.current());
+        }
+
+        void stop() {
+            if (capacitySubscription != null) {
+                capacitySubscription.stop();
+            }
+            serverGateway.close();
+        }
+
+        private void scheduleArrival(Random random) {
+            timer.schedule(this::arrive, arrivalGapMillis.sample(random), TimeUnit.MILLISECONDS);
+        }
+
+        private void arrive() {
+            if (!arriving) {
+                return;
+            }
+            Random random = ThreadLocalRandom.current();
+            int count = (int) Math.max(1, Math.min(ClientForm.MAX_GROUP_SIZE, groupSize.sample(random)));
+            arrivals.increment();
+            groupsInProgress.incrementAndGet();
+            GroupView group = new GroupView(this, count);
+            requestExecutor.execute(() -> {
+                new ClientThread(count, group, guidesMonitor, serverGateway).run();
+                group.startCompleted();
+            });
+            scheduleArrival(random);
+        }
+
+        void endVisit(GroupView group) {
+            requestExecutor.execute(() -> {
+                new ClientThread(-group.count, group.visitId, group, guidesMonitor, serverGateway).run();
+                group.endCompleted();
+            });
+        }
+
+        @Override
+        public void refreshStatus(String statusUpdate) {
+        }
+
+        @Override
+        public void displayNewVisit(int visitId, int numberOfParticipants) {
+        }
+
+        @Override
+        public void updateAvailableGuides(int currentGuides) {
+        }
+
+        @Override
+        public void capacityUpdated(int availableVisitors) {
+            capacityTracker.update(availableVisitors);
+        }
+
+        @Override
+        public void capacitySubscriptionChanged(boolean connected) {
+        }
+
+        @Override
+        public CapacityTracker getCapacityTracker() {
+            return capacityTracker;
+        }
+
+        @Override
+        public EntranceConfig getConfig() {
+            return entranceConfig;
+        }
+    }
+
+    /**
+     * The view one group's ClientThreads report to. Remembers whether the
+     * group got in and the last status, which tells a timeout from an error.
+     */
+    private final class GroupView implements EntranceView {
+        private final SimulatedEntrance entrance;
+        private final int count;
+        private final long arrivalNanos = System.nanoTime();
+        private volatile boolean admitted;
+        private volatile int visitId;
+        private volatile String lastStatus = "";
+
+        GroupView(SimulatedEntrance entrance, int count) {
+            this.entrance = entrance;
+            this.count = count;
+        }
+
+        @Override
+        public void refreshStatus(String statusUpdate) {
+            lastStatus = statusUpdate;
+        }
+
+        @Override
+        public void displayNewVisit(int visitId, int numberOfParticipants) {
+            this.visitId = visitId;
+            admissionLatency.recordNanos(System.nanoTime() - arrivalNanos);
+            admitted = true;
+        }
+
+        /**
+         * Called after the start ClientThread returned.
+         */
+        void startCompleted() {
+            if (admitted) {
+                admittedGroups.increment();
+                admittedVisitors.add(count);
+                timer.schedule(() -> entrance.endVisit(this),
+                        visitMillis.sample(ThreadLocalRandom.current()), TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (lastStatus.startsWith(ERROR_PREFIX)) {
+                failedStarts.increment();
+            } else {
+                timedOutStarts.increment();
+            }
+            groupsInProgress.decrementAndGet();
+        }
+
+        /**
+         * Called after the end ClientThread returned.
+         */
+        void endCompleted() {
+            if (lastStatus.startsWith(ERROR_PREFIX)) {
+                failedEnds.increment();
+            } else {
+                finishedGroups.increment();
+            }
+            groupsInProgress.decrementAndGet();
+        }
+
+        @Override
+        public void updateAvailableGuides(int currentGuides) {
+        }
+
+        @Override
+        public void capacityUpdated(int availableVisitors) {
+            entrance.capacityUpdated(availableVisitors);
+        }
+
+        @Override
+        public void capacitySubscriptionChanged(boolean connected) {
+        }
+
+        @Override
+        public CapacityTracker getCapacityTracker() {
+            return entrance.getCapacityTracker();
+        }
+
+        @Override
+        public EntranceConfig getConfig() {
+            return entrance.getConfig();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package tunnel.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import tunnel.client.ServerGateway;
+import tunnel.common.LatencyHistogram;
+import tunnel.common.Options;
+import tunnel.server.ServerMain;
+
+/**
+ * Round trips of the whole client/server path over loopback. Starts
+ * {@link ServerMain} in this JVM (all server options such as {@code --engine},
+ * {@code --monitor}, {@code --executor} are passed on) and lets
+ * {@code --clients=N} threads, each with its own ServerGateway, send
+ * operations back to back for {@code --duration-s} seconds after
+ * {@code --warmup-s} seconds of warm-up:
+ * <ul>
+ *     <li>a client without a group inside starts one of {@code --group-size}
+ *     visitors (OP_REQUEST, waits for capacity, optional
+ *     {@code --request-timeout-ms}),</li>
+ *     <li>a client with a group inside ends it (OP_RELEASE),</li>
+ *     <li>with probability {@code --query-share} (default 0.5) it asks for
+ *     the capacity (OP_QUERY) instead.</li>
+ * </ul>
+ * A client holds at most one group, so every waiting start is eventually
+ * served by the ends of the others. With {@code --tunnels=N} the server
+ * creates N tunnels and client i uses tunnel i mod N, which shows how far
+ * the per-tunnel monitors take contention off each other. Printed and appended to
+ * {@code --out=loopback-results.csv} are operations per second and the
+ * p50/p99/p99.9/max round trip per operation and overall, one CSV line each.
+ * <p>
+ * {@code java tunnel.bench.LoopbackBenchmark --engine=nio --clients=64 --port=56000}
+ */
+public class LoopbackBenchmark {
+
+    private static final String[] OPERATIONS = {"start", "end", "query"};
+    private static final String CSV_HEADER = "timestamp,engine,monitor,executor,tunnels,clients,group_size,query_share,"
+            + "operation,operations,ops_per_s,p50_ms,p99_ms,p999_ms,max_ms,timeouts,errors";
+    private static final long SERVER_START_TIMEOUT_MS = 10_000L;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] operations = new LongAdder[OPERATIONS.length];
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram allLatencies = new LatencyHistogram();
+    private volatile boolean measuring = false;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        try {
+            new LoopbackBenchmark().run(args, new Options(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private LoopbackBenchmark() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            operations[i] = new LongAdder();
+        }
+    }
+
+    private void run(String[] args, Options options) throws InterruptedException, IOException {
+        int port = options.getInt("port", 65535);
+        int clients = options.getInt("clients", 32);
+        int tunnels = options.getInt("tunnels", 1);
+        int groupSize = options.getInt("group-size", 1);
+        int timeoutMillis = options.getInt("request-timeout-ms", 0);
+        double queryShare = Double.parseDouble(options.get("query-share", "0.5"));
+        int warmupSeconds = options.getInt("warmup-s", 2);
+        int durationSeconds = options.getInt("duration-s", 10);
+        Path out = Paths.get(options.get("out", "loopback-results.csv"));
+        if (clients <= 0 || tunnels <= 0 || groupSize <= 0 || durationSeconds <= 0 || queryShare < 0 || queryShare > 1) {
+            throw new IllegalArgumentException("--clients, --tunnels, --group-size and --duration-s must be positive, "
+                    + "--query-share between 0 and 1");
+        }
+
+        // The server reports every change on the console
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> ServerMain.main(args), "loopback-server");
+        server.setDaemon(true);
+        server.start();
+        List<Thread> clientThreads = new ArrayList<>();
+        double seconds;
+        try {
+            awaitServer(port);
+            for (int i = 0; i < clients; i++) {
+                int tunnelId = i % tunnels;
+                Thread client = new Thread(() -> runClient(port, tunnelId, groupSize, timeoutMillis, queryShare),
+                        "loopback-client-" + i);
+                client.setDaemon(true);
+                client.start();
+                clientThreads.add(client);
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+            measuring = true;
+            long start = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+            measuring = false;
+            seconds = (System.nanoTime() - start) / 1e9;
+        } finally {
+            running = false;
+            for (Thread client : clientThreads) {
+                client.join(SERVER_START_TIMEOUT_MS);
+            }
+            ServerMain.stop();
+            server.join(SERVER_START_TIMEOUT_MS);
+            System.setOut(console);
+        }
+
+        String prefix = String.format(Locale.ROOT, "%s,%s,%s,%s,%d,%d,%d,%.2f", Instant.now(),
+                options.get("engine", "blocking"), options.get("monitor", "synchronized"),
+                options.get("executor", "platform"), tunnels, clients, groupSize, queryShare);
+        List<String> lines = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            total += operations[i].sum();
+            lines.add(csvLine(prefix, OPERATIONS[i], operations[i].sum(), seconds, latencies[i]));
+        }
+        lines.add(csvLine(prefix, "all", total, seconds, allLatencies));
+
+        console.printf("%-6s %10s %12s %9s %9s %9s %9s%n", "op", "count", "ops/s", "p50-ms", "p99-ms", "p999-ms", "max-ms");
+        for (String line : lines) {
+            String[] fields = line.split(",");
+            console.printf("%-6s %10s %12s %9s %9s %9s %9s%n",
+                    fields[8], fields[9], fields[10], fields[11], fields[12], fields[13], fields[14]);
+        }
+        console.printf("%d start(s) timed out, %d error(s); results appended to %s%n", timeouts.sum(), errors.sum(), out);
+
+        boolean header = !Files.exists(out);
+        try (PrintWriter writer = new PrintWriter(new FileWriter(out.toFile(), true))) {
+            if (header) {
+                writer.println(CSV_HEADER);
+            }
+            for (String line : lines) {
+                writer.println(line);
+            }
+        }
+    }
+
+    private String csvLine(String prefix, String operation, long count, double seconds, LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "%s,%s,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%d,%d", prefix, operation, count,
+                count / seconds, histogram.getPercentileMillis(50), histogram.getPercentileMillis(99),
+                histogram.getPercentileMillis(99.9), histogram.getMaxMillis(), timeouts.sum(), errors.sum());
+    }
+
+    /**
+     * One closed-loop client: the next operation is sent when the previous
+     * one was answered.
+     */
+    private void runClient(int port, int tunnelId, int groupSize, int timeoutMillis, double queryShare) {
+        ServerGateway gateway = new ServerGateway("localhost", port, tunnelId);
+        boolean inside = false;
+        try {
+            while (running) {
+                int operation;
+                if (ThreadLocalRandom.current().nextDouble() < queryShare) {
+                    operation = 2;
+                } else {
+                    operation = inside ? 1 : 0;
+                }
+                long start = System.nanoTime();
+                int result;
+                try {
+                    switch (operation) {
+                        case 0:
+                            result = gateway.request(groupSize, timeoutMillis);
+                            break;
+                        case 1:
+                            result = gateway.release(groupSize);
+                            break;
+                        default:
+                            result = gateway.query();
+                            break;
+                    }
+                } catch (IOException e) {
+                    if (measuring) {
+                        errors.increment();
+                    }
+                    inside = false;
+                    continue;
+                }
+                long elapsed = System.nanoTime() - start;
+                if (measuring) {
+                    latencies[operation].recordNanos(elapsed);
+                    allLatencies.recordNanos(elapsed);
+                    operations[operation].increment();
+                    if (result < 0) {
+                        errors.increment();
+                    } else if (operation == 0 && result == 0) {
+                        timeouts.increment();
+                    }
+                }
+                if (operation == 0) {
+                    inside = result == groupSize;
+                } else if (operation == 1) {
+                    inside = false;
+                }
+            }
+            if (inside) {
+                gateway.release(groupSize);
+            }
+        } catch (IOException | InterruptedException e) {
+            // Benchmark is over
+        } finally {
+            gateway.close();
+        }
+    }
+
+    private static void awaitServer(int port) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 200);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package tunnel.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tunnel.common.Options;
+import tunnel.server.VisitorsMonitor;
+
+/**
+ * Measures how long {@link VisitorsMonitor#release(int)} takes while more
+ * and more groups wait that the released visitors cannot satisfy. Every
+ * waiter asks for the whole tunnel; the benchmark thread repeatedly releases
+ * one visitor and takes it back. Reported are the release itself and the
+ * whole release/take-back cycle, which also pays for waiters that were woken
+ * for nothing and compete for the lock. With targeted wake-up both stay flat,
+ * with {@code notifyAll()} (the {@code notifyall} baseline, the former
+ * VisitorsMonitor) every release wakes all waiters.
+ * <p>
+ * {@code java tunnel.bench.ReleaseLatency --waiters=0,10,100,1000 --iterations=20000}
+ * and optionally {@code --monitor=synchronized|notifyall}.
+ */
+public class ReleaseLatency {
+
+    /**
+     * The LockFreeVisitorsMonitor is not measured: its strict FIFO queue does
+     * not let the benchmark thread take the released visitor back while the
+     * waiters are queued.
+     */
+    private static final String[] ALL_MONITORS = {"synchronized", "notifyall"};
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = new Options(args);
+        int iterations = options.getInt("iterations", 20_000);
+        String[] waiterCounts = options.get("waiters", "0,10,100,1000").split(",");
+        String[] monitors = options.has("monitor") ? new String[]{options.get("monitor", "")} : ALL_MONITORS;
+
+        PrintStream console = System.out;
+        console.printf("%-13s %8s %14s %14s %14s %14s%n", "monitor", "waiters",
+                "release-avg-ns", "release-p99-ns", "cycle-avg-ns", "cycle-p99-ns");
+        for (String monitorName : monitors) {
+            for (String waiterCount : waiterCounts) {
+                int waiters = Integer.parseInt(waiterCount.trim());
+                // The monitors report every change on the console
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                long[] releaseSamples = new long[iterations];
+                long[] cycleSamples = new long[iterations];
+                try {
+                    measure(createMonitor(monitorName), waiters, releaseSamples, cycleSamples);
+                } finally {
+                    System.setOut(console);
+                }
+                console.printf("%-13s %8d %14d %14d %14d %14d%n", monitorName, waiters,
+                        average(releaseSamples), p99(releaseSamples), average(cycleSamples), p99(cycleSamples));
+            }
+        }
+    }
+
+    private static void measure(VisitorsMonitor monitor, int waiters, long[] releaseSamples, long[] cycleSamples)
+            throws InterruptedException {
+        int iterations = releaseSamples.length;
+        int capacity = monitor.getAvailableVisitors();
+        monitor.request(capacity);
+
+        List<Thread> waiterThreads = new ArrayList<>(waiters);
+        for (int i = 0; i < waiters; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    monitor.request(capacity);
+                    monitor.release(capacity);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "waiter-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            waiterThreads.add(thread);
+        }
+        awaitParked(waiterThreads);
+
+        int warmup = Math.max(1, iterations / 10);
+        for (int i = 0; i < warmup; i++) {
+            monitor.release(1);
+            monitor.request(1);
+        }
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            monitor.release(1);
+            long released = System.nanoTime();
+            monitor.request(1);
+            releaseSamples[i] = released - start;
+            cycleSamples[i] = System.nanoTime() - start;
+        }
+
+        // Let the waiters through one after another
+        monitor.release(capacity);
+        for (Thread thread : waiterThreads) {
+            thread.join();
+        }
+    }
+
+    private static long average(long[] samples) {
+        long sum = 0;
+        for (long sample : samples) {
+            sum += sample;
+        }
+        return sum / samples.length;
+    }
+
+    private static long p99(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) (sorted.length * 0.99)];
+    }
+
+    private static void awaitParked(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            while (thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static VisitorsMonitor createMonitor(String name) {
+        switch (name) {
+            case "synchronized":
+                return new VisitorsMonitor();
+            case "notifyall":
+                return new NotifyAllVisitorsMonitor();
+            default:
+                throw new IllegalArgumentException("Unknown monitor '" + name + "'");
+        }
+    }
+
+    /**
+     * The VisitorsMonitor before targeted wake-up: waiters loop on wait() and
+     * every release wakes all of them.
+     */
+    private static final class NotifyAllVisitorsMonitor extends VisitorsMonitor {
+        @Override
+        public synchronized void request(int count) throws InterruptedException {
+            checkRequestedCount(count);
+            while (availableVisitors < count) {
+                wait();
+            }
+            availableVisitors -= count;
+            System.out.println(count + " visitors received. " + availableVisitors + " visitors available");
+        }
+
+        @Override
+        public synchronized void release(int count) {
+            if (count <= 0 || availableVisitors + count > MAX_VISITORS) {
+                throw new IllegalArgumentException("Invalid release of " + count + " visitors");
+            }
+            availableVisitors += count;
+            System.out.println(count + " visitors released. " + availableVisitors + " visitors available");
+            notifyAll();
+        }
+    }
+}
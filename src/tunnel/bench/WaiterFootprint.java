@@ -0,0 +1,129 @@
+package tunnel.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tunnel.common.Options;
+import tunnel.common.TaskExecutors;
+import tunnel.server.VisitorsMonitor;
+
+/**
+ * Compares the cost of the executor modes when many groups wait in
+ * {@link VisitorsMonitor#request(int)} at the same time. The tunnel is filled
+ * first, then {@code --waiters} tasks each request one visitor and give it
+ * back right away. While they are parked the live thread count and the used
+ * heap are sampled; afterwards the tunnel is emptied and the time until every
+ * waiter got through is measured.
+ * <p>
+ * Run one mode per JVM for clean memory numbers, e.g.
+ * {@code java tunnel.bench.WaiterFootprint --executor=virtual --waiters=10000}.
+ * Without {@code --executor} all modes run one after another.
+ */
+public class WaiterFootprint {
+
+    private static final long SETTLE_TIMEOUT_MS = 30_000L;
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = new Options(args);
+        int waiters = options.getInt("waiters", 10_000);
+        int maxThreads = options.getInt("max-threads", TaskExecutors.DEFAULT_MAX_THREADS);
+
+        List<String> modes = new ArrayList<>();
+        if (options.has("executor")) {
+            modes.add(options.get("executor", TaskExecutors.MODE_PLATFORM));
+        } else {
+            modes.add(TaskExecutors.MODE_PLATFORM);
+            if (TaskExecutors.virtualThreadsSupported()) {
+                modes.add(TaskExecutors.MODE_VIRTUAL);
+            }
+            modes.add(TaskExecutors.MODE_BOUNDED);
+        }
+
+        System.out.printf("%-10s %8s %8s %12s %12s %12s%n",
+                "executor", "parked", "threads", "heap-MiB", "park-ms", "drain-ms");
+        for (String mode : modes) {
+            measure(mode, waiters, maxThreads);
+        }
+    }
+
+    private static void measure(String mode, int waiters, int maxThreads) throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        PrintStream console = System.out;
+
+        VisitorsMonitor monitor = new VisitorsMonitor();
+        int capacity = monitor.getAvailableVisitors();
+        ExecutorService executor = TaskExecutors.create(mode, maxThreads, "waiter");
+        AtomicInteger parked = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(waiters);
+
+        // The monitor reports every admission on the console
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            System.gc();
+            long heapBefore = memory.getHeapMemoryUsage().getUsed();
+            monitor.request(capacity);
+
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < waiters; i++) {
+                executor.execute(() -> {
+                    parked.incrementAndGet();
+                    try {
+                        monitor.request(1);
+                        monitor.release(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            awaitSettled(parked, waiters);
+            long parkMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            // Give the last waiters time to reach wait() before sampling
+            Thread.sleep(200);
+
+            int parkedCount = parked.get();
+            int threadCount = threads.getThreadCount();
+            long heapUsed = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+
+            long drainStart = System.nanoTime();
+            monitor.release(capacity);
+            done.await(SETTLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStart);
+
+            console.printf("%-10s %8d %8d %12.1f %12d %12d%n", mode, parkedCount, threadCount,
+                    heapUsed / (1024.0 * 1024.0), parkMillis, drainMillis);
+        } finally {
+            System.setOut(console);
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Waits until all tasks started or the count stopped growing, which is
+     * the case for a bounded executor whose threads are all parked.
+     */
+    private static void awaitSettled(AtomicInteger parked, int waiters) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        int last = -1;
+        while (System.currentTimeMillis() < deadline) {
+            int now = parked.get();
+            if (now == waiters || now == last) {
+                return;
+            }
+            last = now;
+            Thread.sleep(100);
+        }
+    }
+}
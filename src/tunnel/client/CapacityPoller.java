@@ -0,0 +1,154 @@
+package tunnel.client;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tunnel.common.Protocol;
+
+/**
+ * Fragt die Tunnelkapazität ab, solange kein CapacitySubscription besteht.
+ * Je Eingang ist höchstens eine Abfrage unterwegs: ein Tick, der kommt,
+ * während sie noch läuft, schickt keine weitere ab, sondern übernimmt ihr
+ * Ergebnis, sobald es da ist.<br>
+ * Antwortet der Server langsamer als SLOW_RESPONSE_MS oder scheitert die
+ * Abfrage (auch, wenn nach QUERY_TIMEOUT_MS keine Antwort da ist), wird der
+ * Abstand zur nächsten Abfrage verdoppelt, höchstens bis MAX_BACKOFF_MS; die
+ * erste schnelle Antwort setzt ihn auf einen Tick zurück. Übersprungene Ticks werden nach Grund gezählt.
+ */
+public class CapacityPoller {
+    /**
+     * Ab dieser Antwortzeit gilt der Server als langsam
+     */
+    protected static final long SLOW_RESPONSE_MS = 500L;
+    protected static final long MAX_BACKOFF_MS = 30000L;
+    /**
+     * Danach gilt eine Abfrage als gescheitert, damit ein hängender Server
+     * das Abfragen nicht für immer anhält
+     */
+    protected static final long QUERY_TIMEOUT_MS = 5000L;
+
+    private final ServerGateway serverGateway;
+    private final RequestExecutor requestExecutor;
+    private final EntranceView clientForm;
+    private final long intervalMillis;
+    /**
+     * Wird nach jedem Tick und jeder beantworteten Abfrage aufgerufen
+     */
+    private final Runnable countersChanged;
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+    /**
+     * Aktueller Abstand zwischen den Abfragen, 0 solange der Server schnell antwortet
+     */
+    private volatile long backoffMillis = 0;
+    private volatile long notBeforeNanos = System.nanoTime();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skippedInFlight = new AtomicLong();
+    private final AtomicLong skippedBackoff = new AtomicLong();
+    private final AtomicLong skippedSaturated = new AtomicLong();
+
+    /**
+     * @param intervalMillis  Abstand der Ticks, in dem tick() aufgerufen wird
+     * @param countersChanged wird aufgerufen, wenn sich Zähler oder Abstand geändert haben
+     */
+    public CapacityPoller(ServerGateway serverGateway, RequestExecutor requestExecutor, EntranceView clientForm,
+                          long intervalMillis, Runnable countersChanged) {
+        this.serverGateway = serverGateway;
+        this.requestExecutor = requestExecutor;
+        this.clientForm = clientForm;
+        this.intervalMillis = intervalMillis;
+        this.countersChanged = countersChanged;
+    }
+
+    /**
+     * Schickt eine Abfrage ab, falls keine unterwegs ist, der Abstand abgelaufen
+     * ist und der RequestExecutor sie annimmt; sonst wird der Tick übersprungen.
+     */
+    public void tick() {
+        if (!inFlight.compareAndSet(false, true)) {
+            skippedInFlight.incrementAndGet();
+        } else if (System.nanoTime() - notBeforeNanos < 0) {
+            inFlight.set(false);
+            skippedBackoff.incrementAndGet();
+        } else if (!requestExecutor.submit(this::poll)) {
+            inFlight.set(false);
+            skippedSaturated.incrementAndGet();
+        } else {
+            sent.incrementAndGet();
+        }
+        countersChanged.run();
+    }
+
+    private void poll() {
+        long start = System.nanoTime();
+        boolean answered = false;
+        try {
+            int currentCapacity = serverGateway.submit(Protocol.OP_QUERY, 0)
+                    .get(QUERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            clientForm.capacityUpdated(currentCapacity);
+            answered = true;
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            failed.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            long end = System.nanoTime();
+            boolean fast = answered && TimeUnit.NANOSECONDS.toMillis(end - start) <= SLOW_RESPONSE_MS;
+            if (fast) {
+                backoffMillis = 0;
+            } else {
+                backoffMillis = Math.min(MAX_BACKOFF_MS, Math.max(2 * intervalMillis, 2 * backoffMillis));
+            }
+            notBeforeNanos = end + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+            inFlight.set(false);
+            countersChanged.run();
+        }
+    }
+
+    /**
+     * @return abgeschickte Abfragen
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return gescheiterte Abfragen
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return Ticks, die das Ergebnis einer laufenden Abfrage übernommen haben
+     */
+    public long getSkippedInFlight() {
+        return skippedInFlight.get();
+    }
+
+    /**
+     * @return Ticks, die wegen des vergrößerten Abstands ausgefallen sind
+     */
+    public long getSkippedBackoff() {
+        return skippedBackoff.get();
+    }
+
+    /**
+     * @return Ticks, deren Abfrage der ausgelastete RequestExecutor abgewiesen hat
+     */
+    public long getSkippedSaturated() {
+        return skippedSaturated.get();
+    }
+
+    /**
+     * @return aktueller Abstand zwischen den Abfragen, 0 solange der Server schnell antwortet
+     */
+    public long getBackoffMillis() {
+        return backoffMillis;
+    }
+}
@@ -0,0 +1,111 @@
+package tunnel.client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hält ein Abonnement der Tunnelkapazität beim Server offen und zeigt jede vom
+ * Server geschickte Änderung des Tunnels aus der EntranceConfig sofort im
+ * ClientForm an. Damit entfällt die
+ * sekündliche Abfrage. Bricht die Verbindung ab, meldet das Abonnement dies
+ * dem ClientForm (das dann wieder abfragt) und verbindet sich mit wachsendem
+ * Abstand neu.
+ */
+public class CapacitySubscription implements Runnable {
+    /**
+     * Wartezeit vor dem ersten bzw. höchstens vor jedem weiteren Neuverbinden
+     */
+    protected static final long INITIAL_RECONNECT_DELAY_MS = 1000L;
+    protected static final long MAX_RECONNECT_DELAY_MS = 10000L;
+
+    private final String host;
+    private final int port;
+    private final EntranceView clientForm;
+    private volatile boolean running = true;
+    private volatile ServerConnection connection;
+    private volatile Thread subscriptionThread;
+
+    public CapacitySubscription(String host, int port, EntranceView clientForm) {
+        if (clientForm == null) {
+            throw new IllegalArgumentException("clientForm is null");
+        }
+        this.host = host;
+        this.port = port;
+        this.clientForm = clientForm;
+    }
+
+    /**
+     * Startet das Abonnement in einem eigenen Daemon-Thread.
+     *
+     * @param name Name des Threads
+     */
+    public void start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        subscriptionThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Beendet das Abonnement und schließt die Verbindung.
+     */
+    public void stop() {
+        running = false;
+        ServerConnection current = connection;
+        if (current != null) {
+            current.close();
+        }
+        Thread thread = subscriptionThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long reconnectDelay = INITIAL_RECONNECT_DELAY_MS;
+        while (running) {
+            AtomicBoolean connected = new AtomicBoolean();
+            try {
+                ServerConnection current = new ServerConnection(host, port);
+                connection = current;
+                current.subscribeCapacity(clientForm.getConfig().getTunnelId(), availableVisitors -> {
+                    if (availableVisitors < 0) {
+                        // Server bietet keine Abonnements an oder kennt den Tunnel nicht
+                        running = false;
+                        current.close();
+                        return;
+                    }
+                    if (connected.compareAndSet(false, true)) {
+                        clientForm.capacitySubscriptionChanged(true);
+                    }
+                    clientForm.capacityUpdated(availableVisitors);
+                });
+                current.awaitClosed();
+                if (connected.get()) {
+                    reconnectDelay = INITIAL_RECONNECT_DELAY_MS;
+                }
+            } catch (IOException e) {
+                // Neu verbinden, siehe unten
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                ServerConnection current = connection;
+                if (current != null) {
+                    current.close();
+                }
+                connection = null;
+                if (connected.get() && running) {
+                    clientForm.capacitySubscriptionChanged(false);
+                }
+            }
+
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+        }
+    }
+}
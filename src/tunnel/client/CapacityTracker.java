@@ -0,0 +1,64 @@
+package tunnel.client;
+
+/**
+ * Merkt sich die zuletzt vom Server gemeldete Anzahl freier Besucher (aus dem
+ * Abonnement oder einer Abfrage). Eine Gruppe, die bei der gemeinsamen
+ * Anforderung von Führer und Kapazität keinen Platz bekommen hat, wartet hier
+ * ohne Führer, bis wieder genügend Besucher frei sein könnten.
+ */
+public class CapacityTracker {
+    /**
+     * Zuletzt gemeldete freie Besucher, -1 solange nichts bekannt ist
+     */
+    private int knownCapacity = -1;
+    /**
+     * Wird bei jeder Meldung erhöht, damit Wartende auch dann weiterlaufen,
+     * wenn der gemeldete Wert gleich geblieben ist
+     */
+    private long updates = 0;
+
+    /**
+     * Neue Meldung des Servers
+     *
+     * @param availableVisitors momentan freie Besucher
+     */
+    public synchronized void update(int availableVisitors) {
+        knownCapacity = availableVisitors;
+        updates++;
+        notifyAll();
+    }
+
+    /**
+     * Die gemeldete Kapazität gilt nicht mehr, z. B. weil gerade eine
+     * Anforderung abgewiesen wurde.
+     */
+    public synchronized void invalidate() {
+        knownCapacity = -1;
+    }
+
+    /**
+     * Wartet, bis mindestens count Besucher als frei gemeldet sind, höchstens
+     * aber maxWaitMillis. Ist nichts bekannt, genügt die nächste Meldung.
+     *
+     * @param count         Größe der wartenden Gruppe
+     * @param maxWaitMillis längste Wartezeit, danach wird es einfach erneut versucht
+     */
+    public synchronized void awaitAtLeast(int count, long maxWaitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        long seen = updates;
+        while (knownCapacity < count && (knownCapacity >= 0 || updates == seen)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            wait(remaining);
+        }
+    }
+
+    /**
+     * @return zuletzt gemeldete freie Besucher, -1 falls unbekannt
+     */
+    public synchronized int getKnownCapacity() {
+        return knownCapacity;
+    }
+}
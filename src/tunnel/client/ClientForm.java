@@ -10,7 +10,9 @@ import java.time.format.DateTimeFormatter;
 import java.util.Timer;
 import java.util.TimerTask;
 
-public class ClientForm extends JFrame {
+import tunnel.common.Options;
+
+public class ClientForm extends JFrame implements EntranceView {
 
     public static final int MAX_GROUP_SIZE = 50;
 
@@ -37,8 +39,12 @@ public class ClientForm extends JFrame {
 
     // --- Component Fields ---
     private GuidesMonitor guidesMonitor;
-    private DefaultListModel<String> mActiveVisits;
-    private JList<String> activeVisitsList;
+    private final ServerGateway serverGateway;
+    private final RequestExecutor requestExecutor;
+    private final EntranceConfig config;
+    private final CapacityTracker capacityTracker = new CapacityTracker();
+    private DefaultListModel<ActiveVisit> mActiveVisits;
+    private JList<ActiveVisit> activeVisitsList;
     private JLabel availableGuidesLabel;
     private JLabel visitorsLabel;
     private JTextField visitorsField;
@@ -46,6 +52,15 @@ public class ClientForm extends JFrame {
     private JLabel activeVisitsLabel;
     private JButton finishVisitButton;
     private JLabel availableVisitorsLabel;
+    private JLabel requestsLabel;
+    private JLabel pollsLabel;
+
+    // --- Batched UI Updates ---
+    private final EdtBatcher uiUpdates = new EdtBatcher(this::appendStatus);
+    private final EdtBatcher.Latest<Integer> availableGuidesUpdate = uiUpdates.latest(this::showAvailableGuides);
+    private final EdtBatcher.Latest<String> availableVisitorsUpdate = uiUpdates.latest(this::showAvailableVisitors);
+    private final Runnable requestsUpdate = uiUpdates.refresh(this::showRequests);
+    private final Runnable pollsUpdate = uiUpdates.refresh(this::showPolls);
     private JLabel statusTitleLabel;
     private JTextArea statusTextArea;
 
@@ -56,8 +71,28 @@ public class ClientForm extends JFrame {
 
 
     public ClientForm(String entranceName) {
+        this(entranceName, new RequestExecutor(RequestExecutor.DEFAULT_MAX_THREADS, RequestExecutor.DEFAULT_MAX_QUEUED, entranceName));
+    }
+
+    /**
+     * @param entranceName    Title of the window and name of the entrance.
+     * @param requestExecutor Runs the ClientThreads of this entrance.
+     */
+    public ClientForm(String entranceName, RequestExecutor requestExecutor) {
+        this(entranceName, requestExecutor, EntranceConfig.defaults());
+    }
+
+    /**
+     * @param entranceName    Title of the window and name of the entrance.
+     * @param requestExecutor Runs the ClientThreads of this entrance.
+     * @param config          How starts acquire guide and capacity.
+     */
+    public ClientForm(String entranceName, RequestExecutor requestExecutor, EntranceConfig config) {
         super(entranceName);
         this.entranceName = entranceName;
+        this.requestExecutor = requestExecutor;
+        this.config = config;
+        this.serverGateway = new ServerGateway(ClientThread.HOST, ClientThread.PORT, config.getTunnelId());
 
         try {
             for (UIManager.LookAndFeelInfo info : UIManager.getInstalledLookAndFeels()) {
@@ -92,6 +127,8 @@ public class ClientForm extends JFrame {
         guidesMonitor = new GuidesMonitor(this);
         updateAvailableGuides(guidesMonitor.getAvailableGuides());
         UpdateVisitors("?");
+        requestExecutor.addListener(requestsUpdate);
+        capacityPoller = new CapacityPoller(serverGateway, requestExecutor, this, POLLING_INTERVAL_MS, pollsUpdate);
         startMonitoringAvailability();
 
         // Frame settings
@@ -99,6 +136,17 @@ public class ClientForm extends JFrame {
         setSize(700, 500);
         setMinimumSize(new Dimension(650, 450));
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                stopPeriodicChecks();
+                if (capacitySubscription != null) {
+                    capacitySubscription.stop();
+                }
+                requestExecutor.shutdown();
+                serverGateway.close();
+            }
+        });
         // Code below overrides the centering and places it near top-left
         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
         int screenHeight = screenSize.height;
@@ -166,6 +214,14 @@ public class ClientForm extends JFrame {
 
         availableVisitorsLabel = createStyledLabel("Available visitors: ?");
         leftPanel.add(availableVisitorsLabel);
+        leftPanel.add(Box.createVerticalStrut(5));
+
+        requestsLabel = createStyledLabel("Requests: 0 running, 0 queued");
+        leftPanel.add(requestsLabel);
+        leftPanel.add(Box.createVerticalStrut(5));
+
+        pollsLabel = createStyledLabel("Capacity polls: 0 sent, 0 skipped");
+        leftPanel.add(pollsLabel);
 
         leftPanel.add(Box.createVerticalGlue());
 
@@ -231,6 +287,24 @@ public class ClientForm extends JFrame {
         }
     }
 
+    /**
+     * Entry of the active visits list; the visit is ended by its id.
+     */
+    private static final class ActiveVisit {
+        private final int visitId;
+        private final int count;
+
+        ActiveVisit(int visitId, int count) {
+            this.visitId = visitId;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return count + " visitors (#" + visitId + ")";
+        }
+    }
+
     private static class RoundedButton extends JButton {
         private Color backgroundColor;
         private Color hoverColor;
@@ -316,8 +390,11 @@ public class ClientForm extends JFrame {
             } else if (participantCount > MAX_GROUP_SIZE) {
                 displayWarning("A maximum of " + MAX_GROUP_SIZE + " visitors is allowed per group.");
             } else {
-                new ClientThread(participantCount, this, guidesMonitor).start();
-                visitorsField.setText("");
+                if (requestExecutor.submitStart(new ClientThread(participantCount, this, guidesMonitor, serverGateway))) {
+                    visitorsField.setText("");
+                } else {
+                    displayWarning("Too many requests pending, please try again later.");
+                }
             }
         } catch (NumberFormatException formatException) {
             displayError("Invalid entry: Please use only numbers for visitor count.");
@@ -335,33 +412,22 @@ public class ClientForm extends JFrame {
         if (selectedListPosition < 0) {
             displayWarning("No visit selected from the list to end.");
         } else {
-            String selectedItemText = mActiveVisits.getElementAt(selectedListPosition);
-            try {
-                String[] parts = selectedItemText.split(" ");
-                if (parts.length < 1) {
-                    throw new ArrayIndexOutOfBoundsException("Could not split entry text.");
-                }
-                String countStr = parts[0];
-                int groupSizeToEnd = Integer.parseInt(countStr);
-
-                if (groupSizeToEnd > 0) {
-                    new ClientThread(-groupSizeToEnd, this, guidesMonitor).start();
-
-                    final int indexToRemoveSafely = selectedListPosition;
-                    if (SwingUtilities.isEventDispatchThread()) {
-                        mActiveVisits.remove(indexToRemoveSafely);
-                        activeVisitsList.clearSelection();
-                    } else {
-                        SwingUtilities.invokeLater(() -> {
-                            mActiveVisits.remove(indexToRemoveSafely);
-                            activeVisitsList.clearSelection();
-                        });
-                    }
-                } else {
-                    displayError("Invalid visitor count found in list entry: '" + selectedItemText + "'");
-                }
-            } catch (NumberFormatException | ArrayIndexOutOfBoundsException processingError) {
-                displayError("Error processing selected list item: '" + selectedItemText + "'");
+            ActiveVisit selectedVisit = mActiveVisits.getElementAt(selectedListPosition);
+            if (!requestExecutor.submit(new ClientThread(-selectedVisit.count, selectedVisit.visitId, this,
+                    guidesMonitor, serverGateway))) {
+                displayWarning("Too many requests pending, the visit stays active. Please try again later.");
+                return;
+            }
+
+            final int indexToRemoveSafely = selectedListPosition;
+            if (SwingUtilities.isEventDispatchThread()) {
+                mActiveVisits.remove(indexToRemoveSafely);
+                activeVisitsList.clearSelection();
+            } else {
+                SwingUtilities.invokeLater(() -> {
+                    mActiveVisits.remove(indexToRemoveSafely);
+                    activeVisitsList.clearSelection();
+                });
             }
         }
     }
@@ -369,14 +435,39 @@ public class ClientForm extends JFrame {
     private static final long POLLING_DELAY_MS = 1500L;
     private static final long POLLING_INTERVAL_MS = 1000L;
     private Timer recurringCapacityCheck;
+    private CapacityPoller capacityPoller;
+    private CapacitySubscription capacitySubscription;
 
+    /**
+     * Subscribes to capacity updates pushed by the server. Until the
+     * subscription is up (and whenever it is lost) the capacity is polled,
+     * one query at a time (see {@link CapacityPoller}).
+     */
     private void startMonitoringAvailability() {
+        startPeriodicChecks();
+        capacitySubscription = new CapacitySubscription(ClientThread.HOST, ClientThread.PORT, this);
+        capacitySubscription.start("Subscription-" + entranceName + "-Thread");
+    }
+
+    /**
+     * Called by the CapacitySubscription when it (re)connected or lost the
+     * server; polling only runs while no subscription is active.
+     */
+    public void capacitySubscriptionChanged(boolean connected) {
+        if (connected) {
+            stopPeriodicChecks();
+        } else {
+            startPeriodicChecks();
+        }
+    }
+
+    private synchronized void startPeriodicChecks() {
         this.stopPeriodicChecks();
 
         TimerTask capacityPollingAction = new TimerTask() {
             @Override
             public void run() {
-                new ClientThread(0, ClientForm.this, guidesMonitor).start();
+                capacityPoller.tick();
             }
         };
 
@@ -392,7 +483,7 @@ public class ClientForm extends JFrame {
     /**
      * Helper to stop the periodic check timer
      */
-    private void stopPeriodicChecks() {
+    private synchronized void stopPeriodicChecks() {
         if (this.recurringCapacityCheck != null) {
             this.recurringCapacityCheck.cancel();
             this.recurringCapacityCheck = null;
@@ -400,64 +491,97 @@ public class ClientForm extends JFrame {
     }
 
     /**
-     * Appends a message to the status area, ensuring EDT (Event Display Thread) execution.
+     * Appends a message to the status area with the next frame.
      */
     public void refreshStatus(String statusUpdate) {
         String timestamp = LocalTime.now().format(TIME_FORMATTER);
-        String logEntry = "[" + timestamp + "] " + statusUpdate; // Add timestamp prefix
-
-        if (SwingUtilities.isEventDispatchThread()) {
-            statusTextArea.append(logEntry + "\n");
-            statusTextArea.setCaretPosition(statusTextArea.getDocument().getLength());
-        } else {
-            SwingUtilities.invokeLater(() -> {
-                statusTextArea.append(logEntry + "\n");
-                statusTextArea.setCaretPosition(statusTextArea.getDocument().getLength());
-            });
-        }
+        uiUpdates.log("[" + timestamp + "] " + statusUpdate); // Add timestamp prefix
     }
 
+    /**
+     * Appends the lines logged during a frame at once; runs on the EDT.
+     */
+    private void appendStatus(String lines) {
+        statusTextArea.append(lines);
+        statusTextArea.setCaretPosition(statusTextArea.getDocument().getLength());
+    }
 
     /**
-     * Updates the guides label, ensuring EDT execution.
+     * Updates the guides label with the next frame.
      */
     public void updateAvailableGuides(int currentGuides) {
-        final String guideStatusText = "Available guides: " + currentGuides + " / " + GuidesMonitor.MAX_GUIDES;
-        if (SwingUtilities.isEventDispatchThread()) {
-            if (availableGuidesLabel != null) {
-                availableGuidesLabel.setText(guideStatusText);
-            }
-        } else {
-            SwingUtilities.invokeLater(() -> updateAvailableGuides(currentGuides));
+        availableGuidesUpdate.set(currentGuides);
+    }
+
+    private void showAvailableGuides(int currentGuides) {
+        availableGuidesLabel.setText("Available guides: " + currentGuides + " / " + GuidesMonitor.MAX_GUIDES);
+    }
+
+    /**
+     * Shows the executor's counts; runs on the EDT.
+     */
+    private void showRequests() {
+        requestsLabel.setText("Requests: " + requestExecutor.getInFlight() + " running, "
+                + requestExecutor.getQueued() + " queued");
+    }
+
+    /**
+     * Shows the poller's counters; runs on the EDT.
+     */
+    private void showPolls() {
+        long skipped = capacityPoller.getSkippedInFlight() + capacityPoller.getSkippedBackoff()
+                + capacityPoller.getSkippedSaturated();
+        String text = "Capacity polls: " + capacityPoller.getSent() + " sent, " + skipped + " skipped";
+        long backoffMillis = capacityPoller.getBackoffMillis();
+        if (backoffMillis > 0) {
+            text += " (every " + backoffMillis / 1000 + " s)";
         }
+        pollsLabel.setText(text);
+        pollsLabel.setToolTipText(capacityPoller.getSkippedInFlight() + " while a poll was running, "
+                + capacityPoller.getSkippedBackoff() + " backing off, "
+                + capacityPoller.getSkippedSaturated() + " rejected; "
+                + capacityPoller.getFailed() + " failed");
     }
 
     /**
-     * Updates the available visitors label, ensuring EDT execution.
+     * Called with every capacity the server reported, pushed or polled.
+     */
+    public void capacityUpdated(int availableVisitors) {
+        capacityTracker.update(availableVisitors);
+        UpdateVisitors(String.valueOf(availableVisitors));
+    }
+
+    /**
+     * @return the last capacity reported by the server, for starts waiting without a guide.
+     */
+    public CapacityTracker getCapacityTracker() {
+        return capacityTracker;
+    }
+
+    /**
+     * @return how starts of this entrance acquire guide and capacity.
+     */
+    public EntranceConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Updates the available visitors label with the next frame.
      */
     public void UpdateVisitors(String visitorsValue) {
-        final String visitorInfoText = "Available visitors: " + visitorsValue;
-        if (SwingUtilities.isEventDispatchThread()) {
-            if (availableVisitorsLabel != null) {
-                availableVisitorsLabel.setText(visitorInfoText);
-            }
-        } else {
-            SwingUtilities.invokeLater(() -> UpdateVisitors(visitorsValue));
-        }
+        availableVisitorsUpdate.set(visitorsValue);
+    }
+
+    private void showAvailableVisitors(String visitorsValue) {
+        availableVisitorsLabel.setText("Available visitors: " + visitorsValue);
     }
 
     /**
-     * Adds an entry to the active visits list, ensuring EDT execution.
+     * Adds an entry to the active visits list with the next frame.
      */
-    public void displayNewVisit(int numberOfParticipants) {
-        final String visitInfo = numberOfParticipants + " visitors";
-        if (SwingUtilities.isEventDispatchThread()) {
-            if (mActiveVisits != null) {
-                mActiveVisits.addElement(visitInfo);
-            }
-        } else {
-            SwingUtilities.invokeLater(() -> displayNewVisit(numberOfParticipants));
-        }
+    public void displayNewVisit(int visitId, int numberOfParticipants) {
+        ActiveVisit visit = new ActiveVisit(visitId, numberOfParticipants);
+        uiUpdates.post(() -> mActiveVisits.addElement(visit));
     }
 
     // --- Message Dialogs ---
@@ -486,14 +610,27 @@ public class ClientForm extends JFrame {
 
     // --- Main Method ---
     public static void main(String[] args) {
+        RequestExecutor requestExecutor1;
+        RequestExecutor requestExecutor2;
+        EntranceConfig config;
+        try {
+            Options options = new Options(args);
+            config = EntranceConfig.fromOptions(options);
+            requestExecutor1 = RequestExecutor.fromOptions(options, "entrance-1");
+            requestExecutor2 = RequestExecutor.fromOptions(options, "entrance-2");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
         SwingUtilities.invokeLater(() -> {
-            ClientForm entrance1 = new ClientForm("Entrance 1");
+            ClientForm entrance1 = new ClientForm("Entrance 1", requestExecutor1, config);
 
             Point location1 = entrance1.getLocation();
             int width1 = entrance1.getWidth();
             int gap = 10;
 
-            ClientForm entrance2 = new ClientForm("Entrance 2");
+            ClientForm entrance2 = new ClientForm("Entrance 2", requestExecutor2, config);
 
             int newX = location1.x + width1 + gap;
             int newY = location1.y;
@@ -1,9 +1,6 @@
 package tunnel.client;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.net.UnknownHostException;
 
 /**
@@ -20,13 +17,18 @@ import java.net.UnknownHostException;
  * beim GuidesMonitor einen F�hrer f�r die Gruppe an. Erh�lt er diese, so wird
  * �ber eine Netzwerkverbindung mit dem Programm ServerMain Verbindung aufgenommen
  * und um die eingegebene Anzahl von Besuchern angefragt.<br>
+ * Im Modus EntranceConfig.ACQUISITION_ATOMIC wird der Führer dagegen nur
+ * reserviert und erst vergeben, wenn der Server die Besucher sofort einlässt
+ * (siehe startAtomic()).<br>
  * Ist die Besucheranzahl negativ, so bedeutet dies, dass die F�hrung beendet
  * wird, der F�hrer dem GuidesMonitor zur�ck gegeben und beim Server ebenfalls
  * die Besucheranzahl zur�ck gegeben wird.<br>
  * Ist die Besucheranzahl gleich 0, so wird der Thread anweisen beim Server die
- * Anzahl der verf�gbaren Besucher nachzufragen, die noch im Tunnel Platz haben
+ * Anzahl der verf�gbaren Besucher nachzufragen, die noch im Tunnel Platz haben<br>
+ * Gestartet wird der ClientThread nicht selbst, sondern �ber den Executor des
+ * ClientForm (begrenzte Threads und Warteschlange, siehe RequestExecutor).
  */
-public class ClientThread extends Thread
+public class ClientThread implements Runnable
 {
 	/**
 	 * IP-Adresse des Besucherservers
@@ -36,6 +38,11 @@ public class ClientThread extends Thread
 	 * Port
 	 */
 	protected static final int PORT = 65535;
+	/**
+	 * Wie lange eine Gruppe im Modus ACQUISITION_ATOMIC höchstens auf eine
+	 * Kapazitätsmeldung wartet, bevor sie es erneut versucht
+	 */
+	protected static final long ATOMIC_RETRY_MILLIS = 500L;
 	/**
 	 * Falls positiv: Anzahl der anzufordernden Besucher die eine Besichtigung machen
 	 * m�chten<br>
@@ -45,30 +52,56 @@ public class ClientThread extends Thread
 	 */
 	protected int count = 0;
 	/**
-	 * Referenz auf das ClientForm. Diese ist notwendig, damit der ClientThread
+	 * ID der Besichtigung, die beendet werden soll (count < 0); 0 falls sie
+	 * keine hat, dann wird irgendeine Besichtigung dieser Größe beendet
+	 */
+	protected int visitId = 0;
+	/**
+	 * Referenz auf das ClientForm bzw. einen anderen EntranceView. Diese ist notwendig, damit der ClientThread
 	 * die Benutzerschnittstelle aktualisieren und z. B. Statusmeldungen dort
 	 * anzeigen kann
 	 */
-	protected ClientForm clientForm = null;
+	protected EntranceView clientForm = null;
 	/**
 	 * Referent auf den GuidesMonitor. Diese ist notwendig, dass der ClientThread
 	 * an diesem einen F�hrer anfordern bzw. nach Beendigung einer F�hrung den
 	 * F�hrer zur�ckgeben kann
 	 */
 	protected GuidesMonitor guidesMonitor = null;
+	/**
+	 * Die Verbindung des Eingangs zum Server, über die alle ClientThreads
+	 * gleichzeitig ihre Anfragen schicken
+	 */
+	protected ServerGateway serverGateway = null;
 
 	/**
-	 * Konstruktor dem die Anzahl der Besucher, das ClientForm und der
-	 * GuidesMonitor �bergeben wird
+	 * Konstruktor dem die Anzahl der Besucher, das ClientForm, der
+	 * GuidesMonitor und das ServerGateway des Eingangs übergeben wird
 	 * @param anzahl
 	 * @param clientForm
 	 * @param guidesMonitor
+	 * @param serverGateway
 	 */
-	public ClientThread(int anzahl, ClientForm clientForm,
-		GuidesMonitor guidesMonitor) {
+	public ClientThread(int anzahl, EntranceView clientForm,
+		GuidesMonitor guidesMonitor, ServerGateway serverGateway) {
+		this(anzahl, 0, clientForm, guidesMonitor, serverGateway);
+	}
+
+	/**
+	 * Konstruktor zum Beenden der Besichtigung mit der ID visitId
+	 * @param anzahl negative Anzahl der Besucher der Besichtigung
+	 * @param visitId
+	 * @param clientForm
+	 * @param guidesMonitor
+	 * @param serverGateway
+	 */
+	public ClientThread(int anzahl, int visitId, EntranceView clientForm,
+		GuidesMonitor guidesMonitor, ServerGateway serverGateway) {
 		this.count = anzahl;
+		this.visitId = visitId;
 		this.clientForm = clientForm;
 		this.guidesMonitor = guidesMonitor;
+		this.serverGateway = serverGateway;
 
 	}
 
@@ -77,13 +110,15 @@ public class ClientThread extends Thread
 	 * vom Wert der Variable count wird folgendes erledigt:<br><br>
 	 * <b>count > 0: Eine neue Besichtigung soll durchgef�hrt werden</b><br>
 	 * In einem ersten Schritt wird am GuidesMonitor ein F�hrer angefordert. War
-	 * dies erfolgreich, so wird in einem zweiten Schritt eine Socket-Verbindung
-	 * mit dem Server aufgebaut. Konnte die Verbindung nicht aufgebaut werden, so
+	 * dies erfolgreich, so wird in einem zweiten Schritt die Anforderung über
+	 * das ServerGateway geschickt. Konnte keine Verbindung aufgebaut werden, so
 	 * wird der F�hrer wieder zur�ck gegeben. Bei aufrechter Verbindung wird die
 	 * Anzahl �bermittelt. Dann wartet der Thread auf die Antwort des Servers. Da
 	 * der Thread neben anderen Threads eigenst�ndig wartet, werden alle anderen
 	 * Aktivit�ten nicht blockiert. Nachdem die Antwort des Servers da ist, muss
-	 * auch noch die JList mit einem neuen Eintrag erg�nzt werden.Bei diesem Vorgang
+	 * auch noch die JList mit einem neuen Eintrag erg�nzt werden. Läuft vorher
+	 * die Frist aus EntranceConfig ab, zieht der Server die Anforderung zurück
+	 * und der Führer wird wieder zurückgegeben.Bei diesem Vorgang
 	 * m�ssen �nderungen und Ausgaben von Statusmeldungen am ClientFormular erfolgen<br><br>
 	 * <b>count < 0: Eine Besichtigung soll beendet werden</b><br>
 	 * Zuerst wird der F�hrer dem GuidesMonitor zur�ck gegeben. Dann wird eine
@@ -92,8 +127,7 @@ public class ClientThread extends Thread
 	 * W�hrend dieses Vorganges werden die Inhalte von ClienForm angepasst<br><br>
 	 * <b>count == 0: Eine Anfrage an den Server soll ermitteln, wie viele
 	 * Besucher noch im Tunnel Platz finden</b><br>
-	 * Der Thread erstellt eine Socketverbindung mit dem Server, und schickt diesem
-	 * eine 0. Der Server - falls aktiv - antwortet mit der aktuellen Besucheranzahl
+	 * Der Thread schickt über das ServerGateway eine Abfrage (OP_QUERY). Der Server - falls aktiv - antwortet mit der aktuellen Besucheranzahl
 	 * die noch in den Tunnel einglassen werden d�rfen. Diese Anzahl wird im
 	 * ClientForm ausgegeben
 	 */
@@ -105,14 +139,9 @@ public class ClientThread extends Thread
 			// --- Case: Check Capacity (count == 0) ---
 			// Moved this check to the beginning
 			if (count == 0) {
-				try (Socket checkSocket = new Socket(HOST, PORT); // Renamed socket
-					 DataOutputStream checkOut = new DataOutputStream(checkSocket.getOutputStream()); // Renamed out
-					 DataInputStream checkIn = new DataInputStream(checkSocket.getInputStream())) { // Renamed in
-
-					checkOut.writeInt(0); // Send 0 to indicate capacity check
-					checkOut.flush();
-					int currentCapacity = checkIn.readInt(); // Renamed available
-					clientForm.UpdateVisitors(String.valueOf(currentCapacity));
+				try {
+					int currentCapacity = serverGateway.query();
+					clientForm.capacityUpdated(currentCapacity);
 
 
 				} catch (IOException e) {
@@ -129,13 +158,10 @@ public class ClientThread extends Thread
 				// Release the guide *before* contacting the server for end confirmation
 				guidesMonitor.release();
 
-				try (Socket endSocket = new Socket(HOST, PORT); // Renamed socket
-					 DataOutputStream endOut = new DataOutputStream(endSocket.getOutputStream()); // Renamed out
-					 DataInputStream endIn = new DataInputStream(endSocket.getInputStream())) { // Renamed in
-
-					endOut.writeInt(count); // Send the negative count to signal end
-					endOut.flush();
-					int endResponseCode = endIn.readInt(); // Renamed response
+				try {
+					int endResponseCode = visitId > 0
+							? serverGateway.endVisit(visitId)
+							: serverGateway.release(numVisitorsExiting);
 
 					if (endResponseCode == numVisitorsExiting) {
 						clientForm.refreshStatus("Visit with " + numVisitorsExiting + " visitors finished");
@@ -151,26 +177,28 @@ public class ClientThread extends Thread
 			}
 			// --- Case: Start Visit (count > 0) ---
 			// This case is now last
+			else if (clientForm.getConfig().isAtomicAcquisition()) {
+				startAtomic();
+			}
 			else { // count > 0 must be true here
 				guidesMonitor.request(); // Request a guide first
 				monitorLockObtained = true; // Mark that we've acquired the monitor lock
 
-				try (Socket startSocket = new Socket(HOST, PORT); // Renamed socket
-					 DataOutputStream startOut = new DataOutputStream(startSocket.getOutputStream()); // Renamed out
-					 DataInputStream startIn = new DataInputStream(startSocket.getInputStream())) { // Renamed in
-
+				try {
 					clientForm.refreshStatus("Visit with " + count + " visitors requested...");
-					startOut.writeInt(count); // Send the positive visitor count
-					startOut.flush();
-					int startResponseCode = startIn.readInt(); // Renamed response
+					int startResponseCode = serverGateway.startVisit(count, clientForm.getConfig().getRequestTimeoutMillis());
 
-					if (startResponseCode == count) {
+					if (startResponseCode > 0) { // ID der Besichtigung
 						clientForm.refreshStatus("Visit with " + count + " visitors enter the tunnel");
-						clientForm.displayNewVisit(count);
+						clientForm.displayNewVisit(startResponseCode, count);
 						// If successful, the monitor lock is conceptually "held" by the visit now.
 						// This thread is no longer responsible for releasing it *unless* an error occurred below.
 						// Setting the flag false signifies this thread doesn't need to release in normal exit.
 						monitorLockObtained = false;
+					} else if (startResponseCode == 0) {
+						clientForm.refreshStatus("Visit with " + count + " visitors timed out waiting for capacity");
+						guidesMonitor.release(); // Release monitor, the server withdrew the request
+						monitorLockObtained = false; // Mark lock as released
 					} else if (startResponseCode == -1) {
 						clientForm.refreshStatus("Error:Server error during start request.");
 						guidesMonitor.release(); // Release monitor due to server error
@@ -195,7 +223,7 @@ public class ClientThread extends Thread
 						monitorLockObtained = false;
 					}
 				}
-				// If we reach here successfully (startResponseCode == count), monitorLockObtained is already false.
+				// If we reach here successfully (startResponseCode > 0), monitorLockObtained is already false.
 				// If we reach here after an error/exception inside the try, monitorLockObtained should also be false
 				// because it was explicitly released and set.
 			}
@@ -218,6 +246,68 @@ public class ClientThread extends Thread
 		// and not successfully transferred to an active visit or already released due to an error).
 	}
 
+	/**
+	 * Start einer Besichtigung im Modus EntranceConfig.ACQUISITION_ATOMIC: Führer
+	 * und Tunnelkapazität werden gemeinsam belegt oder gar nicht.<br>
+	 * Der Führer wird zunächst nur reserviert und der Server gefragt, ob er die
+	 * Besucher sofort einlassen kann (Protocol.OP_TRY_REQUEST). Erst wenn der
+	 * Server zustimmt, begleitet der Führer die Gruppe. Andernfalls wird er
+	 * sofort wieder frei, damit eine Gruppe, die in den Tunnel passt, ihn
+	 * benutzen kann, und diese Gruppe wartet ohne Führer auf die nächste
+	 * Kapazitätsmeldung, die für sie reicht.<br>
+	 * Die Frist der Anforderung (--request-timeout-ms) gilt für das Warten auf
+	 * den Führer und auf die Kapazität zusammen.
+	 */
+	protected void startAtomic() throws InterruptedException {
+		CapacityTracker capacityTracker = clientForm.getCapacityTracker();
+		int timeoutMillis = clientForm.getConfig().getRequestTimeoutMillis();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		clientForm.refreshStatus("Visit with " + count + " visitors requested...");
+		while (true) {
+			// Auch das Warten auf einen Führer zählt zur Frist der Anforderung
+			long guideWaitMillis = timeoutMillis > 0 ? Math.max(1L, deadline - System.currentTimeMillis()) : 0L;
+			if (!guidesMonitor.reserve(guideWaitMillis)) {
+				clientForm.refreshStatus("Visit with " + count + " visitors timed out waiting for a guide");
+				return;
+			}
+			int startResponseCode;
+			try {
+				startResponseCode = serverGateway.tryStartVisit(count);
+			} catch (IOException e) {
+				guidesMonitor.cancelReservation();
+				clientForm.refreshStatus("Error:Network error (start): " + e.getMessage());
+				return;
+			} catch (InterruptedException e) {
+				guidesMonitor.cancelReservation();
+				throw e;
+			}
+
+			if (startResponseCode > 0) {
+				guidesMonitor.commitReservation();
+				clientForm.refreshStatus("Visit with " + count + " visitors enter the tunnel");
+				clientForm.displayNewVisit(startResponseCode, count);
+				return;
+			}
+			guidesMonitor.cancelReservation();
+			if (startResponseCode != 0) {
+				clientForm.refreshStatus("Error:Server denied start request (Code: " + startResponseCode + ")");
+				return;
+			}
+			// Kein Platz: ohne Führer auf die nächste passende Meldung warten
+			long waitMillis = ATOMIC_RETRY_MILLIS;
+			if (timeoutMillis > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					clientForm.refreshStatus("Visit with " + count + " visitors timed out waiting for capacity");
+					return;
+				}
+				waitMillis = Math.min(waitMillis, remaining);
+			}
+			capacityTracker.invalidate();
+			capacityTracker.awaitAtLeast(count, waitMillis);
+		}
+	}
+
 	/**
 	 * Methode zur Behandlung der Netzwerkexceptions
 	 * @param e
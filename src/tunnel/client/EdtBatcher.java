@@ -0,0 +1,141 @@
+package tunnel.client;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Collects UI updates from any thread and applies them on the event dispatch
+ * thread in one pass per frame, instead of one {@code invokeLater} per event.
+ * Recording an update never blocks and never touches Swing, so worker threads
+ * (and monitors that report while holding their lock) only pay for an atomic
+ * write.
+ * <ul>
+ *     <li>{@link Latest} values keep only the most recent value; a label that
+ *     changed ten times within a frame is set once.</li>
+ *     <li>Log lines are queued and handed over as one block of text.</li>
+ *     <li>Other updates, e.g. new list entries, are queued and run in the
+ *     order they were posted.</li>
+ * </ul>
+ * The pass is scheduled by the first update after the previous pass, so an
+ * idle window costs nothing.
+ */
+final class EdtBatcher {
+
+    /**
+     * Length of a frame; at most one pass runs per frame.
+     */
+    static final int FRAME_MILLIS = 40;
+
+    /**
+     * A value of which only the latest matters.
+     */
+    final class Latest<T> {
+        private final AtomicReference<T> pending = new AtomicReference<>();
+        private final Consumer<T> apply;
+
+        private Latest(Consumer<T> apply) {
+            this.apply = apply;
+        }
+
+        /**
+         * @param value Replaces a value not yet applied; must not be null.
+         */
+        void set(T value) {
+            pending.set(value);
+            schedule();
+        }
+
+        private void flush() {
+            T value = pending.getAndSet(null);
+            if (value != null) {
+                apply.accept(value);
+            }
+        }
+    }
+
+    private final List<Latest<?>> latest = new CopyOnWriteArrayList<>();
+    private final Queue<String> lines = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    private final Consumer<String> appendLines;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final javax.swing.Timer frame;
+
+    /**
+     * @param appendLines Called on the EDT with all lines logged since the
+     *                    last pass, each terminated by a newline.
+     */
+    EdtBatcher(Consumer<String> appendLines) {
+        this.appendLines = appendLines;
+        this.frame = new javax.swing.Timer(FRAME_MILLIS, event -> pass());
+        this.frame.setRepeats(false);
+    }
+
+    /**
+     * @param apply Called on the EDT with the latest value.
+     * @return the value to set from any thread.
+     */
+    <T> Latest<T> latest(Consumer<T> apply) {
+        Latest<T> value = new Latest<>(apply);
+        latest.add(value);
+        return value;
+    }
+
+    /**
+     * @param apply Called on the EDT once per frame in which it was marked.
+     * @return marks the update as due, from any thread.
+     */
+    Runnable refresh(Runnable apply) {
+        Latest<Boolean> due = latest(ignored -> apply.run());
+        return () -> due.set(Boolean.TRUE);
+    }
+
+    /**
+     * Queues a line for the next pass.
+     */
+    void log(String line) {
+        lines.add(line);
+        schedule();
+    }
+
+    /**
+     * Queues an update that must not be coalesced, for the next pass.
+     */
+    void post(Runnable update) {
+        updates.add(update);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            frame.restart();
+        }
+    }
+
+    /**
+     * Applies everything recorded so far. Updates recorded while the pass
+     * runs schedule the next one.
+     */
+    private void pass() {
+        scheduled.set(false);
+        for (Latest<?> value : latest) {
+            value.flush();
+        }
+        Runnable update;
+        while ((update = updates.poll()) != null) {
+            update.run();
+        }
+        String line = lines.poll();
+        if (line != null) {
+            StringBuilder block = new StringBuilder();
+            do {
+                block.append(line).append('\n');
+            } while ((line = lines.poll()) != null);
+            appendLines.accept(block.toString());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package tunnel.client;
+
+import tunnel.common.Options;
+import tunnel.common.Protocol;
+
+/**
+ * Settings of an entrance that change how its ClientThreads talk to the
+ * server. Read from the startup options:
+ * <ul>
+ *     <li>{@code --acquisition=sequential|atomic} - how a start gets its guide
+ *     and tunnel capacity</li>
+ *     <li>{@code --request-timeout-ms=N} - how long a start waits for tunnel
+ *     capacity before it gives up, 0 (default) waits without limit</li>
+ *     <li>{@code --tunnel=N} - id of the tunnel the entrance leads into, 0
+ *     (default) for the tunnel every server has</li>
+ * </ul>
+ */
+public final class EntranceConfig {
+
+    /**
+     * A start waits for a guide, then for tunnel capacity while holding the guide.
+     */
+    public static final String ACQUISITION_SEQUENTIAL = "sequential";
+    /**
+     * A start takes a guide and tunnel capacity together or neither.
+     */
+    public static final String ACQUISITION_ATOMIC = "atomic";
+
+    private final boolean atomicAcquisition;
+    private final int requestTimeoutMillis;
+    private final int tunnelId;
+
+    /**
+     * @param atomicAcquisition    Whether a start takes guide and capacity together.
+     * @param requestTimeoutMillis Longest wait for capacity, 0 for none.
+     */
+    public EntranceConfig(boolean atomicAcquisition, int requestTimeoutMillis) {
+        this(atomicAcquisition, requestTimeoutMillis, Protocol.DEFAULT_TUNNEL);
+    }
+
+    /**
+     * @param atomicAcquisition    Whether a start takes guide and capacity together.
+     * @param requestTimeoutMillis Longest wait for capacity, 0 for none.
+     * @param tunnelId             Tunnel the entrance leads into.
+     */
+    public EntranceConfig(boolean atomicAcquisition, int requestTimeoutMillis, int tunnelId) {
+        if (requestTimeoutMillis < 0) {
+            throw new IllegalArgumentException("--request-timeout-ms must not be negative");
+        }
+        if (tunnelId < 0) {
+            throw new IllegalArgumentException("--tunnel must not be negative");
+        }
+        this.atomicAcquisition = atomicAcquisition;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.tunnelId = tunnelId;
+    }
+
+    /**
+     * @return sequential acquisition without a timeout.
+     */
+    public static EntranceConfig defaults() {
+        return new EntranceConfig(false, 0);
+    }
+
+    /**
+     * @param options Startup options.
+     * @return the configuration.
+     * @throws IllegalArgumentException for unknown or invalid values.
+     */
+    public static EntranceConfig fromOptions(Options options) {
+        String acquisition = options.get("acquisition", ACQUISITION_SEQUENTIAL);
+        if (!ACQUISITION_SEQUENTIAL.equals(acquisition) && !ACQUISITION_ATOMIC.equals(acquisition)) {
+            throw new IllegalArgumentException("Unknown acquisition '" + acquisition + "', expected "
+                    + ACQUISITION_SEQUENTIAL + " or " + ACQUISITION_ATOMIC);
+        }
+        return new EntranceConfig(ACQUISITION_ATOMIC.equals(acquisition), options.getInt("request-timeout-ms", 0),
+                options.getInt("tunnel", Protocol.DEFAULT_TUNNEL));
+    }
+
+    /**
+     * @param tunnelId Tunnel of the other entrance.
+     * @return the same settings for an entrance into that tunnel.
+     */
+    public EntranceConfig withTunnelId(int tunnelId) {
+        return new EntranceConfig(atomicAcquisition, requestTimeoutMillis, tunnelId);
+    }
+
+    /**
+     * @return true if starts take a guide and tunnel capacity together.
+     */
+    public boolean isAtomicAcquisition() {
+        return atomicAcquisition;
+    }
+
+    /**
+     * @return longest wait of a start for tunnel capacity in milliseconds, 0 for none.
+     */
+    public int getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    /**
+     * @return id of the tunnel the entrance leads into.
+     */
+    public int getTunnelId() {
+        return tunnelId;
+    }
+}
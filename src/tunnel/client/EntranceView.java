@@ -0,0 +1,59 @@
+package tunnel.client;
+
+/**
+ * Was ClientThread, GuidesMonitor und CapacitySubscription von einem Eingang
+ * brauchen: Statusmeldungen, die Anzeige der Führer, Besichtigungen und der
+ * Kapazität sowie die Einstellungen des Eingangs. Umgesetzt vom ClientForm
+ * und, ohne Benutzerschnittstelle, vom Lastgenerator (tunnel.bench.LoadGenerator).
+ * <br>
+ * Die Methoden werden von beliebigen Threads aufgerufen. Fehlermeldungen an
+ * refreshStatus() beginnen mit {@link #ERROR_PREFIX}.
+ */
+public interface EntranceView {
+    /**
+     * Anfang aller Statusmeldungen, die einen Fehler melden
+     */
+    String ERROR_PREFIX = "Error:";
+
+    /**
+     * Gibt eine Statusmeldung aus
+     *
+     * @param statusUpdate Meldung, bei Fehlern mit ERROR_PREFIX
+     */
+    void refreshStatus(String statusUpdate);
+
+    /**
+     * Eine Gruppe hat den Tunnel betreten
+     *
+     * @param visitId              ID der Besichtigung beim Server, zum Beenden
+     * @param numberOfParticipants Größe der Gruppe
+     */
+    void displayNewVisit(int visitId, int numberOfParticipants);
+
+    /**
+     * @param currentGuides Anzahl der nicht vergebenen Führer
+     */
+    void updateAvailableGuides(int currentGuides);
+
+    /**
+     * Der Server hat eine Kapazität gemeldet (Abonnement oder Abfrage)
+     *
+     * @param availableVisitors momentan freie Besucher
+     */
+    void capacityUpdated(int availableVisitors);
+
+    /**
+     * Das Kapazitätsabonnement wurde (wieder) aufgebaut oder ist abgebrochen
+     */
+    void capacitySubscriptionChanged(boolean connected);
+
+    /**
+     * @return die zuletzt gemeldete Kapazität, auf die Starts ohne Führer warten
+     */
+    CapacityTracker getCapacityTracker();
+
+    /**
+     * @return wie Starts dieses Eingangs Führer und Kapazität belegen
+     */
+    EntranceConfig getConfig();
+}
@@ -1,9 +1,15 @@
 package tunnel.client;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * An ihm kann ein Führer angefordert aber auch ein solcher zurückgegeben
- * werden. Dieser muss eine Referenz auf ClientForm haben, damit die
- * Statusmeldungen dort angezeigt werden können.
+ * werden. Dieser muss eine Referenz auf ClientForm (bzw. einen EntranceView) haben, damit die
+ * Statusmeldungen dort angezeigt werden können.<br>
+ * Die Anzahl wird dem ClientForm noch unter der Sperre gemeldet, damit die
+ * Meldungen in der richtigen Reihenfolge ankommen. Das ClientForm merkt sich
+ * dabei nur den neuesten Wert und zeigt ihn mit dem nächsten Frame an, der
+ * Aufruf hält die Sperre also nicht mit Swing-Arbeit auf.
  */
 public class GuidesMonitor {
     /**
@@ -14,17 +20,21 @@ public class GuidesMonitor {
      * Anzahl der momentan verfügbaren Führer
      */
     protected int availableGuides = MAX_GUIDES;
+    /**
+     * Anzahl der vorläufig reservierten Führer, die noch keine Gruppe begleiten
+     */
+    protected int reservedGuides = 0;
     /**
      * Referenz auf das ClientForm, um Statustexte auszugeben
      */
-    protected ClientForm clientForm;
+    protected EntranceView clientForm;
 
     /**
      * Konstruktor, dem eine Referenz auf das ClientForm übergeben wird
      *
      * @param clientForm Referenz auf das ClientForm
      */
-    public GuidesMonitor(ClientForm clientForm) {
+    public GuidesMonitor(EntranceView clientForm) {
         if (clientForm == null) {
             throw new IllegalArgumentException("clientForm is null");
         }
@@ -36,16 +46,65 @@ public class GuidesMonitor {
      * ClientForm ausgegeben und die Benutzerschnittstelle angepasst.
      */
     public synchronized void request() throws InterruptedException {
-        if (availableGuides > 0) {
-            availableGuides--;
-            clientForm.updateAvailableGuides(availableGuides);
-        } else {
-            try {
+        while (availableGuides == 0) {
+            wait();
+        }
+        availableGuides--;
+        clientForm.updateAvailableGuides(availableGuides + reservedGuides);
+    }
+
+    /**
+     * Ein Führer wird vorläufig reserviert. Er steht anderen Gruppen nicht zur
+     * Verfügung, gilt aber erst nach commitReservation() als vergeben; bis
+     * dahin bleibt die Benutzerschnittstelle unverändert. Wird keine Kapazität
+     * im Tunnel gefunden, gibt cancelReservation() den Führer sofort wieder
+     * frei, statt ihn für eine wartende Gruppe zu blockieren.
+     */
+    public synchronized void reserve() throws InterruptedException {
+        reserve(0);
+    }
+
+    /**
+     * Wie reserve(), wartet aber höchstens timeoutMillis auf einen freien
+     * Führer.
+     *
+     * @param timeoutMillis Frist in Millisekunden, 0 für keine
+     * @return false, falls bis zur Frist kein Führer frei wurde
+     */
+    public synchronized boolean reserve(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (availableGuides == 0) {
+            if (timeoutMillis <= 0) {
                 wait();
-            } catch (InterruptedException e) {
-                throw new InterruptedException();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
             }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
         }
+        availableGuides--;
+        reservedGuides++;
+        return true;
+    }
+
+    /**
+     * Der reservierte Führer begleitet nun eine Gruppe in den Tunnel.
+     */
+    public synchronized void commitReservation() {
+        reservedGuides--;
+        clientForm.updateAvailableGuides(availableGuides + reservedGuides);
+    }
+
+    /**
+     * Der reservierte Führer wird nicht gebraucht und steht wieder zur
+     * Verfügung.
+     */
+    public synchronized void cancelReservation() {
+        reservedGuides--;
+        availableGuides++;
+        notifyAll();
     }
 
     /**
@@ -55,7 +114,7 @@ public class GuidesMonitor {
     public synchronized void release() {
         availableGuides++;
         notifyAll();
-        clientForm.updateAvailableGuides(availableGuides);
+        clientForm.updateAvailableGuides(availableGuides + reservedGuides);
     }
 
     /**
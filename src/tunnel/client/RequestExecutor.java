@@ -0,0 +1,164 @@
+package tunnel.client;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tunnel.common.Options;
+
+/**
+ * Runs the ClientThreads of an entrance on a fixed number of threads with a
+ * bounded queue, instead of a new thread per click or poll. When all threads
+ * are busy and the queue is full, a task is rejected and the caller reports
+ * it; nothing else is started.
+ * <p>
+ * Starts may block for a long time in {@link GuidesMonitor#request()}, and
+ * only an end frees the guide they wait for. Ends and capacity queries
+ * therefore run in a lane of their own, so they are never queued behind
+ * starts. Each lane has at most {@code --max-threads} threads and
+ * {@code --max-queued} waiting tasks.
+ * <p>
+ * Listeners are told whenever the number of running or queued tasks changed,
+ * on the thread that changed it.
+ */
+public class RequestExecutor {
+
+    public static final int DEFAULT_MAX_THREADS = 8;
+    public static final int DEFAULT_MAX_QUEUED = 32;
+
+    private final ThreadPoolExecutor starts;
+    private final ThreadPoolExecutor others;
+    private final int maxQueued;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param maxThreads Threads per lane.
+     * @param maxQueued  Tasks that may wait per lane.
+     * @param namePrefix Prefix for the names of the threads.
+     * @throws IllegalArgumentException if a bound is not positive.
+     */
+    public RequestExecutor(int maxThreads, int maxQueued, String namePrefix) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("--max-threads must be positive");
+        }
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("--max-queued must be positive");
+        }
+        this.maxQueued = maxQueued;
+        this.starts = newLane(maxThreads, maxQueued, namePrefix + "-start");
+        this.others = newLane(maxThreads, maxQueued, namePrefix + "-request");
+    }
+
+    /**
+     * Creates an executor bounded by {@code --max-threads} and {@code --max-queued}.
+     *
+     * @param options    Startup options.
+     * @param namePrefix Prefix for the names of the threads.
+     * @return the executor.
+     * @throws IllegalArgumentException if a bound is not positive.
+     */
+    public static RequestExecutor fromOptions(Options options, String namePrefix) {
+        return new RequestExecutor(options.getInt("max-threads", DEFAULT_MAX_THREADS),
+                options.getInt("max-queued", DEFAULT_MAX_QUEUED), namePrefix);
+    }
+
+    /**
+     * Runs a start, which may wait for a guide and capacity.
+     *
+     * @return false if the start lane is saturated and the task was not accepted.
+     */
+    public boolean submitStart(Runnable task) {
+        return submit(starts, task);
+    }
+
+    /**
+     * Runs an end or a capacity query; never queued behind starts.
+     *
+     * @return false if the lane is saturated and the task was not accepted.
+     */
+    public boolean submit(Runnable task) {
+        return submit(others, task);
+    }
+
+    private boolean submit(ThreadPoolExecutor lane, Runnable task) {
+        queued.incrementAndGet();
+        try {
+            lane.execute(() -> {
+                queued.decrementAndGet();
+                inFlight.incrementAndGet();
+                changed();
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                    changed();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            return false;
+        }
+        changed();
+        return true;
+    }
+
+    /**
+     * @return tasks that are running right now, in both lanes.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return tasks waiting for a thread, in both lanes.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return tasks that may wait per lane.
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @param listener Called whenever the running or queued count changed.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Accepts no further tasks; running and queued ones still finish.
+     */
+    public void shutdown() {
+        starts.shutdown();
+        others.shutdown();
+    }
+
+    private void changed() {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private static ThreadPoolExecutor newLane(int maxThreads, int maxQueued, String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor lane = new ThreadPoolExecutor(maxThreads, maxThreads, 30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxQueued), task -> {
+                    Thread thread = new Thread(task, namePrefix + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        lane.allowCoreThreadTimeOut(true);
+        return lane;
+    }
+}
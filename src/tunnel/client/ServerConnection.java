@@ -0,0 +1,316 @@
+package tunnel.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+import tunnel.common.Protocol;
+
+/**
+ * Eine langlebige Verbindung eines Eingangs zum Besucherserver, über die
+ * beliebig viele Operationen gleichzeitig laufen (siehe Protocol). Jede
+ * Operation bekommt eine Request-ID; ein eigener Lesethread ordnet die
+ * Antworten des Servers in beliebiger Reihenfolge wieder zu. Operationen, die
+ * mehrere Threads gleichzeitig abschicken, werden in gemeinsame Frames
+ * gepackt, sodass eine wartende Anforderung weder die Verbindung noch die
+ * übrigen Anfragen blockiert. Operationen ohne Tunnel-ID beziehen sich auf
+ * Protocol.DEFAULT_TUNNEL.
+ */
+public class ServerConnection implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    /**
+     * Offene Operationen nach Request-ID
+     */
+    private final Map<Integer, CompletableFuture<Integer>> pendingOps = new ConcurrentHashMap<>();
+    /**
+     * Abonnements nach Request-ID; sie bleiben bis zum Schließen bestehen
+     */
+    private final Map<Integer, IntConsumer> subscriptions = new ConcurrentHashMap<>();
+    /**
+     * Abgeschickte, aber noch nicht geschriebene Operationen
+     */
+    private final ConcurrentLinkedQueue<Op> outbox = new ConcurrentLinkedQueue<>();
+    /**
+     * Wer sie hält, schreibt die Operationen der outbox für alle anderen mit
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * Der Frame, der gerade geschrieben wird; nur unter writeLock benutzt
+     */
+    private final Op[] frame = new Op[Protocol.MAX_OPS_PER_FRAME];
+    private final CompletableFuture<Void> closedFuture = new CompletableFuture<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Eine noch nicht geschriebene Operation
+     */
+    private static final class Op {
+        final byte opcode;
+        final int requestId;
+        final int value;
+        final int arg;
+        final int tunnelId;
+
+        Op(byte opcode, int requestId, int value, int arg, int tunnelId) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.value = value;
+            this.arg = arg;
+            this.tunnelId = tunnelId;
+        }
+    }
+
+    /**
+     * Baut die Verbindung zum Server auf und startet den Lesethread.
+     *
+     * @param host Adresse des Besucherservers
+     * @param port Port des Besucherservers
+     * @throws IOException falls keine Verbindung aufgebaut werden kann
+     */
+    public ServerConnection(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Thread reader = new Thread(this::readResponses, "ServerConnection-" + socket.getLocalPort() + "-Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Schickt eine Operation ab, ohne auf die Antwort zu warten.
+     *
+     * @param opcode einer der OP_-Codes aus Protocol
+     * @param value  Anzahl der Besucher
+     * @return wird mit der Antwort des Servers erfüllt (-1 falls er die
+     * Operation abgelehnt hat) bzw. mit einer IOException, falls die
+     * Verbindung vorher abbricht
+     */
+    public CompletableFuture<Integer> submit(byte opcode, int value) {
+        return submit(opcode, value, 0);
+    }
+
+    /**
+     * Wie oben, mit dem zusätzlichen Argument der Operation.
+     *
+     * @param arg bei OP_REQUEST die Frist in Millisekunden, 0 für keine
+     * @return wird mit der Antwort des Servers erfüllt; 0 falls die Frist
+     * abgelaufen ist
+     */
+    public CompletableFuture<Integer> submit(byte opcode, int value, int arg) {
+        return submit(Protocol.DEFAULT_TUNNEL, opcode, value, arg);
+    }
+
+    /**
+     * Wie oben, für den Tunnel mit der übergebenen ID.
+     *
+     * @param tunnelId ID des adressierten Tunnels
+     */
+    public CompletableFuture<Integer> submit(int tunnelId, byte opcode, int value, int arg) {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Integer> response = new CompletableFuture<>();
+        pendingOps.put(requestId, response);
+        enqueue(new Op(opcode, requestId, value, arg, tunnelId));
+        return response;
+    }
+
+    /**
+     * Schickt eine Operation und wartet auf deren Antwort.
+     *
+     * @param opcode einer der OP_-Codes aus Protocol
+     * @param value  Anzahl der Besucher
+     * @return Antwort des Servers, -1 falls er die Operation abgelehnt hat
+     * @throws IOException bei Netzwerkfehlern
+     */
+    public int exchange(byte opcode, int value) throws IOException, InterruptedException {
+        return await(submit(opcode, value, 0));
+    }
+
+    /**
+     * Wie oben, mit dem zusätzlichen Argument der Operation.
+     *
+     * @param arg bei OP_REQUEST die Frist in Millisekunden, 0 für keine
+     */
+    public int exchange(byte opcode, int value, int arg) throws IOException, InterruptedException {
+        return await(submit(opcode, value, arg));
+    }
+
+    /**
+     * Wie oben, für den Tunnel mit der übergebenen ID.
+     *
+     * @param tunnelId ID des adressierten Tunnels
+     */
+    public int exchange(int tunnelId, byte opcode, int value, int arg) throws IOException, InterruptedException {
+        return await(submit(tunnelId, opcode, value, arg));
+    }
+
+    /**
+     * Abonniert die Tunnelkapazität. Der Listener wird vom Lesethread mit der
+     * momentanen Kapazität und danach bei jeder Änderung aufgerufen; mit -1,
+     * falls der Server keine Abonnements anbietet.
+     *
+     * @param listener darf nicht blockieren
+     */
+    public void subscribeCapacity(IntConsumer listener) {
+        subscribeCapacity(Protocol.DEFAULT_TUNNEL, listener);
+    }
+
+    /**
+     * Wie oben, für den Tunnel mit der übergebenen ID; -1 auch, falls der
+     * Server den Tunnel nicht kennt.
+     *
+     * @param tunnelId ID des abonnierten Tunnels
+     */
+    public void subscribeCapacity(int tunnelId, IntConsumer listener) {
+        int requestId = nextRequestId.incrementAndGet();
+        subscriptions.put(requestId, listener);
+        enqueue(new Op(Protocol.OP_SUBSCRIBE, requestId, 0, 0, tunnelId));
+    }
+
+    /**
+     * Wartet, bis die Verbindung abbricht oder geschlossen wird.
+     */
+    public void awaitClosed() throws InterruptedException {
+        try {
+            closedFuture.get();
+        } catch (ExecutionException e) {
+            // closedFuture wird nie mit einer Exception erfüllt
+        }
+    }
+
+    /**
+     * @return true, solange die Verbindung besteht
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Connection closed"));
+    }
+
+    private void enqueue(Op op) {
+        outbox.add(op);
+        if (closed) {
+            fail(new IOException("Connection closed"));
+            return;
+        }
+        writeOutbox();
+    }
+
+    /**
+     * Schreibt alle wartenden Operationen in möglichst wenigen Frames. Hält
+     * schon ein anderer Thread die Schreibsperre, nimmt dieser die Operation
+     * mit; nach dem Freigeben wird die outbox deshalb noch einmal geprüft.
+     */
+    private void writeOutbox() {
+        while (!outbox.isEmpty() && writeLock.tryLock()) {
+            try {
+                int opCount;
+                do {
+                    opCount = 0;
+                    Op op;
+                    while (opCount < frame.length && (op = outbox.poll()) != null) {
+                        frame[opCount++] = op;
+                    }
+                    if (opCount > 0) {
+                        writeFrame(opCount);
+                    }
+                } while (opCount == frame.length);
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void writeFrame(int opCount) throws IOException {
+        out.writeInt(opCount);
+        for (int i = 0; i < opCount; i++) {
+            out.writeByte(frame[i].opcode);
+            out.writeInt(frame[i].requestId);
+            out.writeInt(frame[i].value);
+            out.writeInt(frame[i].arg);
+            out.writeInt(frame[i].tunnelId);
+            frame[i] = null;
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                int opCount = in.readInt();
+                Protocol.checkOpCount(opCount);
+                for (int i = 0; i < opCount; i++) {
+                    byte status = in.readByte();
+                    int requestId = in.readInt();
+                    int value = in.readInt();
+                    in.readInt();
+                    in.readInt();
+                    int result = status == Protocol.STATUS_ERROR ? -1 : value;
+
+                    IntConsumer subscription = subscriptions.get(requestId);
+                    if (subscription != null) {
+                        subscription.accept(result);
+                        continue;
+                    }
+                    CompletableFuture<Integer> response = pendingOps.remove(requestId);
+                    if (response != null) {
+                        response.complete(result);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Schließt die Verbindung und lässt alle offenen Operationen scheitern.
+     */
+    private void fail(IOException cause) {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        outbox.clear();
+        for (Integer requestId : pendingOps.keySet()) {
+            CompletableFuture<Integer> response = pendingOps.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(cause);
+            }
+        }
+        closedFuture.complete(null);
+    }
+
+    private static int await(CompletableFuture<Integer> response) throws IOException, InterruptedException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
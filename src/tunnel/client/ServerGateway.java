@@ -0,0 +1,319 @@
+package tunnel.client;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import tunnel.common.Protocol;
+import tunnel.common.TaskExecutors;
+
+/**
+ * Die Verbindung eines Eingangs zum Besucherserver. Alle ClientThreads des
+ * Eingangs teilen sich eine ServerConnection: da jede Operation eine eigene
+ * Request-ID hat, laufen Starts, Enden und Abfragen gleichzeitig darüber, ohne
+ * aufeinander zu warten, und gleichzeitig abgeschickte Operationen gehen in
+ * einem gemeinsamen Frame hinaus.<br>
+ * Bricht die Verbindung ab, scheitern die offenen Operationen mit einer
+ * IOException; die nächste Operation baut eine neue Verbindung auf. Eine
+ * abgebrochene Operation wird nicht wiederholt, da der Server sie schon
+ * bearbeitet haben kann.<br>
+ * Alle Operationen beziehen sich auf den Tunnel, für den das Gateway erzeugt
+ * wurde.<br>
+ * Besichtigungen werden mit Lease angefordert (Protocol.OP_REQUEST_LEASED).
+ * Das Gateway merkt sich die IDs seiner laufenden Besichtigungen und
+ * verlängert ihre Leases alle Protocol.LEASE_RENEW_MILLIS, ohne dass die
+ * Aufrufer davon etwas merken; beendet wird eine Besichtigung über ihre ID
+ * (endVisit()). Stürzt der Eingang ab oder wird er mit laufenden
+ * Besichtigungen geschlossen, gibt der Server die Besucher nach Ablauf der
+ * Leases selbst zurück. Besichtigungen von vor einem Neustart des Servers
+ * laufen dort nicht ab; sie werden wie gewohnt über ihre ID beendet.<br>
+ * Jede neue Verbindung meldet sich mit der ID des Eingangs beim Server
+ * (Protocol.OP_IDENTIFY), damit er die Besichtigungen auch nach einem
+ * Verbindungsabbruch demselben Eingang zurechnet.
+ */
+public class ServerGateway {
+    private final String host;
+    private final int port;
+    private final int tunnelId;
+    /**
+     * Gemeinsamer Timer aller Gateways der JVM, der die Leases verlängert
+     */
+    private static ScheduledExecutorService renewalTimer;
+    /**
+     * Laufende Besichtigungen nach ID mit ihrer Besucheranzahl; negativ,
+     * falls ihr Lease abgelaufen ist
+     */
+    private final Map<Integer, Integer> visits = new ConcurrentHashMap<>();
+    /**
+     * Vom Server vergebene ID des Eingangs, 0 solange er keine vergeben hat
+     */
+    private volatile int entranceId = 0;
+    private ServerConnection connection;
+    private ScheduledFuture<?> renewal;
+    private boolean closed = false;
+
+    public ServerGateway(String host, int port) {
+        this(host, port, Protocol.DEFAULT_TUNNEL);
+    }
+
+    /**
+     * @param tunnelId ID des Tunnels, an den sich alle Operationen richten
+     */
+    public ServerGateway(String host, int port, int tunnelId) {
+        this.host = host;
+        this.port = port;
+        this.tunnelId = tunnelId;
+    }
+
+    /**
+     * Legt den Tunnel des Gateways beim Server an.
+     *
+     * @param capacity Maximalanzahl der Besucher im Tunnel
+     * @return capacity, -1 falls es den Tunnel schon gibt oder der Server ihn
+     * ablehnt
+     */
+    public int createTunnel(int capacity) throws IOException, InterruptedException {
+        return connection().exchange(tunnelId, Protocol.OP_CREATE_TUNNEL, capacity, 0);
+    }
+
+    /**
+     * @return die momentan verfügbaren Besucher
+     */
+    public int query() throws IOException, InterruptedException {
+        return connection().exchange(tunnelId, Protocol.OP_QUERY, 0, 0);
+    }
+
+    /**
+     * Fordert count Besucher an und wartet, bis der Server sie vergibt.
+     *
+     * @return count, -1 falls der Server die Anforderung ablehnt
+     */
+    public int request(int count) throws IOException, InterruptedException {
+        return request(count, 0);
+    }
+
+    /**
+     * Fordert count Besucher an und wartet höchstens timeoutMillis darauf.
+     *
+     * @param timeoutMillis Frist in Millisekunden, 0 wartet ohne Frist
+     * @return count, 0 falls die Frist abgelaufen ist, -1 falls der Server die
+     * Anforderung ablehnt
+     */
+    public int request(int count, int timeoutMillis) throws IOException, InterruptedException {
+        int visitId = startVisit(count, timeoutMillis);
+        return visitId > 0 ? count : visitId;
+    }
+
+    /**
+     * Fordert count Besucher an, ohne beim Server zu warten.
+     *
+     * @return count, 0 falls sie gerade nicht verfügbar sind, -1 falls der
+     * Server die Anforderung ablehnt
+     */
+    public int tryRequest(int count) throws IOException, InterruptedException {
+        int visitId = tryStartVisit(count);
+        return visitId > 0 ? count : visitId;
+    }
+
+    /**
+     * Startet eine Besichtigung mit count Besuchern und wartet höchstens
+     * timeoutMillis darauf, dass der Server sie einlässt.
+     *
+     * @param timeoutMillis Frist in Millisekunden, 0 wartet ohne Frist
+     * @return die ID der Besichtigung, 0 falls die Frist abgelaufen ist, -1
+     * falls der Server die Anforderung ablehnt
+     */
+    public int startVisit(int count, int timeoutMillis) throws IOException, InterruptedException {
+        return started(connection().exchange(tunnelId, Protocol.OP_REQUEST_LEASED, count, timeoutMillis), count);
+    }
+
+    /**
+     * Startet eine Besichtigung mit count Besuchern, ohne beim Server zu warten.
+     *
+     * @return die ID der Besichtigung, 0 falls die Besucher gerade nicht
+     * verfügbar sind, -1 falls der Server die Anforderung ablehnt
+     */
+    public int tryStartVisit(int count) throws IOException, InterruptedException {
+        return started(connection().exchange(tunnelId, Protocol.OP_TRY_REQUEST_LEASED, count, 0), count);
+    }
+
+    /**
+     * Beendet die Besichtigung mit der ID visitId.
+     *
+     * @return die Anzahl ihrer Besucher, -1 falls der Server sie nicht kennt
+     * oder ihr Lease schon abgelaufen ist
+     */
+    public int endVisit(int visitId) throws IOException, InterruptedException {
+        Integer visitCount = visits.remove(visitId);
+        if (visitCount != null && visitCount < 0) {
+            // Der Server hat die Besucher schon zurückgenommen
+            return -1;
+        }
+        // Mit der Anzahl, falls die Besichtigung von vor einem Neustart des Servers stammt
+        return connection().exchange(tunnelId, Protocol.OP_END_VISIT, visitId, visitCount != null ? visitCount : 0);
+    }
+
+    /**
+     * Gibt count Besucher zurück: beendet eine laufende Besichtigung dieser
+     * Größe. Hat das Gateway keine, werden die Besucher ohne Besichtigung
+     * zurückgegeben (Protocol.OP_RELEASE).
+     *
+     * @return count, -1 falls der Server die Rückgabe ablehnt oder der Lease
+     * der Besichtigung schon abgelaufen ist
+     */
+    public int release(int count) throws IOException, InterruptedException {
+        for (Map.Entry<Integer, Integer> visit : visits.entrySet()) {
+            int visitCount = visit.getValue();
+            if (Math.abs(visitCount) == count && visits.remove(visit.getKey(), visitCount)) {
+                if (visitCount < 0) {
+                    return -1;
+                }
+                return connection().exchange(tunnelId, Protocol.OP_END_VISIT, visit.getKey(), visitCount);
+            }
+        }
+        return connection().exchange(tunnelId, Protocol.OP_RELEASE, count, 0);
+    }
+
+    /**
+     * @return die Besucher aller laufenden Besichtigungen dieses Eingangs
+     * laut Server, über alle Tunnel; 0 solange der Server dem Eingang keine
+     * ID vergeben hat
+     */
+    public int queryEntranceVisitors() throws IOException, InterruptedException {
+        ServerConnection entranceConnection = connection();
+        int entrance = entranceId;
+        if (entrance == 0) {
+            return 0;
+        }
+        return entranceConnection.exchange(tunnelId, Protocol.OP_STATS, Protocol.STAT_ENTRANCE_VISITORS, entrance);
+    }
+
+    /**
+     * @return die vom Server vergebene ID des Eingangs, 0 solange keine
+     * Verbindung bestand
+     */
+    public int getEntranceId() {
+        return entranceId;
+    }
+
+    /**
+     * @return Anzahl der laufenden Besichtigungen, deren Lease das Gateway verlängert
+     */
+    public int getLeasedVisits() {
+        int leased = 0;
+        for (int visitCount : visits.values()) {
+            if (visitCount > 0) {
+                leased++;
+            }
+        }
+        return leased;
+    }
+
+    /**
+     * Merkt sich eine vergebene Besichtigung.
+     *
+     * @param result Antwort des Servers: ID der Besichtigung, 0 oder -1
+     * @return result
+     */
+    private int started(int result, int count) {
+        if (result <= 0) {
+            return result;
+        }
+        visits.put(result, count);
+        synchronized (this) {
+            if (renewal == null && !closed) {
+                renewal = renewalTimer().scheduleAtFixedRate(this::renewLeases, Protocol.LEASE_RENEW_MILLIS,
+                        Protocol.LEASE_RENEW_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Verlängert die Leases aller laufenden Besichtigungen, ohne auf die
+     * Antworten zu warten. Ist die Verbindung weg, wird es beim nächsten Mal
+     * über eine neue versucht.
+     */
+    private void renewLeases() {
+        ServerConnection renewalConnection;
+        try {
+            renewalConnection = connection();
+        } catch (IOException e) {
+            return;
+        }
+        for (Map.Entry<Integer, Integer> visit : visits.entrySet()) {
+            int visitId = visit.getKey();
+            int visitCount = visit.getValue();
+            if (visitCount > 0) {
+                renewalConnection.submit(tunnelId, Protocol.OP_RENEW, visitId, 0).thenAccept(result -> {
+                    if (result < 0) {
+                        visits.replace(visitId, visitCount, -visitCount);
+                    }
+                });
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService renewalTimer() {
+        if (renewalTimer == null) {
+            renewalTimer = TaskExecutors.newTimer("lease-renewal");
+        }
+        return renewalTimer;
+    }
+
+    /**
+     * Schickt eine Operation ab, ohne auf die Antwort zu warten, z. B. um
+     * viele Operationen hintereinander abzuschicken.
+     *
+     * @param opcode einer der OP_-Codes aus Protocol
+     * @param value  Anzahl der Besucher
+     * @return wird mit der Antwort des Servers erfüllt
+     * @throws IOException falls keine Verbindung aufgebaut werden kann
+     */
+    public CompletableFuture<Integer> submit(byte opcode, int value) throws IOException {
+        return connection().submit(tunnelId, opcode, value, 0);
+    }
+
+    private synchronized ServerConnection connection() throws IOException {
+        if (closed) {
+            throw new IOException("Server gateway is closed");
+        }
+        if (connection == null || !connection.isOpen()) {
+            connection = new ServerConnection(host, port);
+            identify(connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Meldet den Eingang über eine neue Verbindung an, ohne auf die Antwort zu
+     * warten: der Server bearbeitet die Operationen einer Verbindung der Reihe
+     * nach, die folgenden Besichtigungen zählen also schon für den Eingang.
+     */
+    private void identify(ServerConnection newConnection) {
+        newConnection.submit(tunnelId, Protocol.OP_IDENTIFY, entranceId, 0).thenAccept(result -> {
+            if (result > 0) {
+                entranceId = result;
+            }
+        });
+    }
+
+    /**
+     * Schließt die Verbindung. Danach sind keine Anfragen mehr möglich.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (renewal != null) {
+            renewal.cancel(false);
+            renewal = null;
+        }
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+}
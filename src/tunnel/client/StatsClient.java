@@ -0,0 +1,105 @@
+package tunnel.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import tunnel.common.Options;
+import tunnel.common.Protocol;
+
+/**
+ * Prints the live statistics of a running server (see {@link Protocol#OP_STATS}):
+ * waiting groups, occupied visitors and the percentiles of admission wait,
+ * visit duration and monitor lock hold time. All statistics of one line are
+ * sent back to back and answered in one round trip.
+ * <p>
+ * {@code java tunnel.client.StatsClient --host=localhost --port=65535 --tunnel=0 --interval-ms=1000};
+ * without {@code --interval-ms} one line is printed, without {@code --tunnel}
+ * the statistics of the default tunnel. {@code --entrance=N} adds the leased
+ * visits and their visitors of the entrance with that id (see
+ * {@link Protocol#OP_IDENTIFY}) across all tunnels.
+ */
+public class StatsClient {
+
+    private static final int[] PERCENTILES = {500, 990, 999, 1000};
+    private static final String[] HISTOGRAMS = {"wait-us", "visit-ms", "lock-ns"};
+    private static final int[] HISTOGRAM_STATS = {Protocol.STAT_ADMISSION_WAIT_MICROS,
+            Protocol.STAT_VISIT_DURATION_MILLIS, Protocol.STAT_LOCK_HOLD_NANOS};
+
+    public static void main(String[] args) throws InterruptedException {
+        String host;
+        int port;
+        long intervalMillis;
+        int tunnelId;
+        int entranceId;
+        try {
+            Options options = new Options(args);
+            host = options.get("host", ClientThread.HOST);
+            port = options.getInt("port", ClientThread.PORT);
+            intervalMillis = options.getLong("interval-ms", 0L);
+            tunnelId = options.getInt("tunnel", Protocol.DEFAULT_TUNNEL);
+            entranceId = options.getInt("entrance", -1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        try (ServerConnection connection = new ServerConnection(host, port)) {
+            System.out.printf("%8s %8s  %-26s  %-26s  %-26s%n", "waiting", "occupied",
+                    HISTOGRAMS[0] + " p50/p99/p99.9/max", HISTOGRAMS[1] + " p50/p99/p99.9/max",
+                    HISTOGRAMS[2] + " p50/p99/p99.9/max" + (entranceId >= 0 ? "  entrance visits/visitors" : ""));
+            do {
+                System.out.println(readLine(connection, tunnelId, entranceId));
+                if (intervalMillis > 0) {
+                    Thread.sleep(intervalMillis);
+                }
+            } while (intervalMillis > 0);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    private static String readLine(ServerConnection connection, int tunnelId, int entranceId)
+            throws IOException, InterruptedException {
+        CompletableFuture<Integer> waiting = connection.submit(tunnelId, Protocol.OP_STATS, Protocol.STAT_WAITING_GROUPS, 0);
+        CompletableFuture<Integer> occupied = connection.submit(tunnelId, Protocol.OP_STATS, Protocol.STAT_OCCUPIED_VISITORS, 0);
+        List<CompletableFuture<Integer>> percentiles = new ArrayList<>();
+        for (int stat : HISTOGRAM_STATS) {
+            for (int permille : PERCENTILES) {
+                percentiles.add(connection.submit(tunnelId, Protocol.OP_STATS, stat, permille));
+            }
+        }
+        CompletableFuture<Integer> entranceVisits = null;
+        CompletableFuture<Integer> entranceVisitors = null;
+        if (entranceId >= 0) {
+            entranceVisits = connection.submit(tunnelId, Protocol.OP_STATS, Protocol.STAT_ENTRANCE_VISITS, entranceId);
+            entranceVisitors = connection.submit(tunnelId, Protocol.OP_STATS, Protocol.STAT_ENTRANCE_VISITORS, entranceId);
+        }
+
+        StringBuilder line = new StringBuilder(String.format("%8d %8d", await(waiting), await(occupied)));
+        for (int i = 0; i < HISTOGRAM_STATS.length; i++) {
+            StringBuilder values = new StringBuilder();
+            for (int j = 0; j < PERCENTILES.length; j++) {
+                if (j > 0) {
+                    values.append('/');
+                }
+                values.append(await(percentiles.get(i * PERCENTILES.length + j)));
+            }
+            line.append(String.format("  %-26s", values));
+        }
+        if (entranceVisits != null) {
+            line.append("  ").append(await(entranceVisits)).append('/').append(await(entranceVisitors));
+        }
+        return line.toString();
+    }
+
+    private static int await(CompletableFuture<Integer> response) throws IOException, InterruptedException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
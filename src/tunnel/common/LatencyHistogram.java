@@ -0,0 +1,132 @@
+package tunnel.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Concurrent histogram of latencies with log-linear buckets: values are kept
+ * in a fixed resolution (microseconds unless given), every power of two is
+ * split into {@link #SUB_BUCKETS} equal buckets, so a percentile is off by at
+ * most 1/16 (about 6%). Recording is one atomic increment and allocates
+ * nothing, so it can be called from many threads on the measured path.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values from 2^40 units (about 12 days in microseconds, 18 minutes in
+     * nanoseconds) on share the last bucket.
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final TimeUnit resolution;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator maxValue = new LongAccumulator(Math::max, 0L);
+
+    public LatencyHistogram() {
+        this(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @param resolution Unit the latencies are kept in; shorter latencies count as 0.
+     */
+    public LatencyHistogram(TimeUnit resolution) {
+        this.resolution = resolution;
+    }
+
+    /**
+     * @param nanos Latency in nanoseconds, negative values count as 0.
+     */
+    public void recordNanos(long nanos) {
+        long value = Math.max(0L, resolution.convert(nanos, TimeUnit.NANOSECONDS));
+        counts.incrementAndGet(bucketOf(value));
+        maxValue.accumulate(value);
+    }
+
+    /**
+     * @return number of recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return upper bound of the bucket that holds the percentile in
+     * milliseconds, 0 if nothing was recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        return resolution.toNanos(getPercentile(percentile)) / 1e6;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @param unit       Unit of the result.
+     * @return upper bound of the bucket that holds the percentile, 0 if
+     * nothing was recorded.
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        return unit.convert(getPercentile(percentile), resolution);
+    }
+
+    /**
+     * @return the longest recorded latency in the given unit.
+     */
+    public long getMax(TimeUnit unit) {
+        return unit.convert(maxValue.get(), resolution);
+    }
+
+    public double getMaxMillis() {
+        return resolution.toNanos(maxValue.get()) / 1e6;
+    }
+
+    /**
+     * Reads the counts twice instead of copying them, so reading allocates
+     * nothing either. Values recorded in between shift the result by at
+     * most their share of all values.
+     */
+    private long getPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,89 @@
+package tunnel.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Startup options given on the command line as {@code --name=value} (or just
+ * {@code --name} for a flag). Unknown options are kept so each main class
+ * only looks up the ones it understands.
+ */
+public class Options {
+
+    private final Map<String, String> values;
+
+    /**
+     * Parses the command line arguments.
+     *
+     * @param args Command line arguments of the main method.
+     * @throws IllegalArgumentException if an argument does not start with "--".
+     */
+    public Options(String[] args) {
+        values = new HashMap<>();
+        if (args == null) {
+            return;
+        }
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                throw new IllegalArgumentException("Unrecognized argument '" + arg + "', expected --name=value");
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+    }
+
+    private Options(Map<String, String> values) {
+        this.values = values;
+    }
+
+    /**
+     * @return a copy of these options with the option set to the value, e.g.
+     * one point of a parameter sweep.
+     */
+    public Options with(String name, String value) {
+        Map<String, String> copy = new HashMap<>(values);
+        copy.put(name, value);
+        return new Options(copy);
+    }
+
+    public boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    public String get(String name, String defaultValue) {
+        String value = values.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number, got '" + value + "'");
+        }
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number, got '" + value + "'");
+        }
+    }
+
+    public boolean getFlag(String name) {
+        return Boolean.parseBoolean(values.getOrDefault(name, "false"));
+    }
+}
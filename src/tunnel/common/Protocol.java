@@ -0,0 +1,224 @@
+package tunnel.common;
+
+import java.net.ProtocolException;
+
+/**
+ * Constants of the framed wire protocol shared by client and server.
+ * <p>
+ * Both directions exchange frames. A frame starts with the number of
+ * operations it carries (an int between 1 and {@link #MAX_OPS_PER_FRAME}),
+ * followed by that many operations of {@link #OP_BYTES} bytes each:
+ * <pre>
+ *   byte opcode     request: one of the OP_ constants, response: a STATUS_ constant
+ *   int  requestId  chosen by the client, echoed in the response
+ *   int  value      visitor count for requests, result for responses
+ *   int  arg        request: timeout of an OP_REQUEST in milliseconds (0 waits
+ *                   without limit), percentile of an OP_STATS, otherwise 0;
+ *                   response: always 0
+ *   int  tunnel     request: id of the tunnel the operation addresses,
+ *                   {@link #DEFAULT_TUNNEL} unless the server manages several;
+ *                   response: always 0
+ * </pre>
+ * Every tunnel has its own capacity, queue and lock. An operation on a
+ * tunnel the server does not know is answered with {@link #STATUS_ERROR}.
+ * A client may send any number of frames without waiting for responses. The
+ * server answers every operation exactly once, except {@link #OP_SUBSCRIBE},
+ * which is answered with every capacity change. Responses come back as soon
+ * as the operation completes, so a request that has to wait for visitors is
+ * answered after later queries or releases. All operations that completed
+ * while a frame was handled are answered together in one frame.
+ */
+public final class Protocol {
+
+    /**
+     * Asks for the available capacity. Value: ignored. Response: the capacity.
+     */
+    public static final byte OP_QUERY = 1;
+    /**
+     * Starts a visit, waiting until the visitors are available. Value: visitor
+     * count. Arg: timeout in milliseconds, 0 for none. Response: the count,
+     * once the visitors were granted, or {@link #STATUS_TIMEOUT}. A waiting
+     * request is withdrawn when the client closes the connection.
+     */
+    public static final byte OP_REQUEST = 2;
+    /**
+     * Starts a visit only if the visitors are available right now. Value:
+     * visitor count. Response: the count if granted, 0 otherwise.
+     */
+    public static final byte OP_TRY_REQUEST = 3;
+    /**
+     * Ends a visit. Value: visitor count. Response: the count.
+     */
+    public static final byte OP_RELEASE = 4;
+    /**
+     * Subscribes to capacity updates. Value: ignored. Responses: the current
+     * capacity, then the new capacity after every (coalesced) change, all with
+     * the request id of the subscription.
+     */
+    public static final byte OP_SUBSCRIBE = 5;
+    /**
+     * Reads a live statistic of the server. Value: one of the STAT_ constants.
+     * Arg: for the latency statistics the percentile in per mille (500 the
+     * median, 990 p99, 999 p99.9, 1000 the maximum), ignored for the gauges.
+     * Response: the statistic, capped at Integer.MAX_VALUE. Send several in
+     * one frame to read a consistent-enough snapshot in one round trip.
+     */
+    public static final byte OP_STATS = 6;
+    /**
+     * Creates the tunnel given in the tunnel field. Value: its capacity.
+     * Response: the capacity, or {@link #STATUS_ERROR} if the id is taken or
+     * the capacity is not positive.
+     */
+    public static final byte OP_CREATE_TUNNEL = 7;
+    /**
+     * Like {@link #OP_REQUEST}, but the visit is held under a lease. Response:
+     * the id of the visit, a positive number unique on the server and not
+     * accepted by a restarted one, once the visitors were granted, or
+     * {@link #STATUS_TIMEOUT}. The lease has to be renewed with
+     * {@link #OP_RENEW} every {@link #LEASE_RENEW_MILLIS} ms; if it runs out,
+     * the server releases the visitors itself.
+     */
+    public static final byte OP_REQUEST_LEASED = 8;
+    /**
+     * Like {@link #OP_TRY_REQUEST} under a lease. Response: the id of the
+     * visit if granted, 0 otherwise.
+     */
+    public static final byte OP_TRY_REQUEST_LEASED = 9;
+    /**
+     * Renews the lease of a visit. Value: the visit id. Response: the visit
+     * id, or {@link #STATUS_ERROR} if the visit ended or its lease expired.
+     * A visit from before a restart of the server has no lease; it counts
+     * as renewed while the tunnel in the tunnel field still holds visitors
+     * restored after the restart (see {@link #OP_END_VISIT}).
+     */
+    public static final byte OP_RENEW = 10;
+    /**
+     * Ends a leased visit and releases its visitors. Value: the visit id.
+     * Arg: the visitor count of the visit, 0 if unknown. Response: the
+     * visitor count of the visit, or {@link #STATUS_ERROR} if it ended
+     * already or its lease expired. For a visit from before a restart of the
+     * server, up to Arg of the visitors restored into the tunnel in the
+     * tunnel field are released; restored visitors are never released by a
+     * lease.
+     */
+    public static final byte OP_END_VISIT = 11;
+    /**
+     * Tells the server which entrance the connection belongs to; leased
+     * visits started on it count for that entrance. Value: the entrance id
+     * the server gave out earlier, e.g. before a reconnect, or 0 for a new
+     * one. The tunnel field is ignored. Response: the entrance id, a new one
+     * if the server does not know the given id.
+     */
+    public static final byte OP_IDENTIFY = 12;
+
+    /**
+     * How often clients renew the leases of their visits. Servers keep a
+     * lease for several of these intervals.
+     */
+    public static final long LEASE_RENEW_MILLIS = 1000L;
+
+    /**
+     * The tunnel every server has, with the capacity it was started with.
+     */
+    public static final int DEFAULT_TUNNEL = 0;
+
+    /**
+     * Gauge: groups waiting for visitors.
+     */
+    public static final int STAT_WAITING_GROUPS = 1;
+    /**
+     * Gauge: visitors in the tunnel.
+     */
+    public static final int STAT_OCCUPIED_VISITORS = 2;
+    /**
+     * Histogram: wait of admitted groups in microseconds, 0 for groups
+     * admitted right away.
+     */
+    public static final int STAT_ADMISSION_WAIT_MICROS = 3;
+    /**
+     * Histogram: time between admission and release of a group in milliseconds.
+     */
+    public static final int STAT_VISIT_DURATION_MILLIS = 4;
+    /**
+     * Histogram: time the monitor lock was held per operation in nanoseconds.
+     */
+    public static final int STAT_LOCK_HOLD_NANOS = 5;
+    /**
+     * Gauge: visitors in the leased visits of the entrance given as arg,
+     * across all tunnels. The tunnel field is ignored.
+     */
+    public static final int STAT_ENTRANCE_VISITORS = 6;
+    /**
+     * Gauge: leased visits of the entrance given as arg, across all tunnels.
+     * The tunnel field is ignored.
+     */
+    public static final int STAT_ENTRANCE_VISITS = 7;
+    /**
+     * Gauge: milliseconds since the leased visit given as arg started, -1 if
+     * it is not active. The tunnel field is ignored.
+     */
+    public static final int STAT_VISIT_AGE_MILLIS = 8;
+
+    /**
+     * The operation succeeded, the value is its result.
+     */
+    public static final byte STATUS_OK = 0;
+    /**
+     * The operation was rejected (unknown opcode, unknown tunnel, invalid
+     * count, unknown statistic, no subscriptions or leases offered, unknown
+     * or expired visit). The value is -1.
+     */
+    public static final byte STATUS_ERROR = 1;
+    /**
+     * The timeout of an OP_REQUEST passed before the visitors were granted.
+     * The value is 0.
+     */
+    public static final byte STATUS_TIMEOUT = 2;
+
+    /**
+     * Bytes of the frame header (the operation count).
+     */
+    public static final int HEADER_BYTES = Integer.BYTES;
+    /**
+     * Bytes of one operation.
+     */
+    public static final int OP_BYTES = 1 + 4 * Integer.BYTES;
+    /**
+     * Upper bound of operations per frame, so a frame always fits into the
+     * fixed buffers of a session.
+     */
+    public static final int MAX_OPS_PER_FRAME = 64;
+    /**
+     * Size of the largest possible frame.
+     */
+    public static final int MAX_FRAME_BYTES = HEADER_BYTES + MAX_OPS_PER_FRAME * OP_BYTES;
+
+    private Protocol() {
+    }
+
+    /**
+     * @param opCount Number of operations.
+     * @return size of a frame carrying that many operations.
+     */
+    public static int frameBytes(int opCount) {
+        return HEADER_BYTES + opCount * OP_BYTES;
+    }
+
+    /**
+     * @param opCount Operation count read from a frame header.
+     * @return true if a frame may carry that many operations.
+     */
+    public static boolean isValidOpCount(int opCount) {
+        return opCount > 0 && opCount <= MAX_OPS_PER_FRAME;
+    }
+
+    /**
+     * @param opCount Operation count read from a frame header.
+     * @throws ProtocolException if the peer sent a malformed frame.
+     */
+    public static void checkOpCount(int opCount) throws ProtocolException {
+        if (!isValidOpCount(opCount)) {
+            throw new ProtocolException("Invalid operation count " + opCount + " in frame header");
+        }
+    }
+}
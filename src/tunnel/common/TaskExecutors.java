@@ -0,0 +1,169 @@
+package tunnel.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run ServerThread and ClientThread work. The mode
+ * is chosen at startup with {@code --executor=...}:
+ * <ul>
+ *     <li>{@code platform} - one platform thread per task, idle threads are
+ *     reused (the behaviour of starting a new Thread per operation)</li>
+ *     <li>{@code virtual} - one virtual thread per task; needs a JDK with
+ *     virtual threads and falls back to {@code bounded} otherwise</li>
+ *     <li>{@code bounded} - at most {@code --max-threads} platform threads,
+ *     further tasks wait in a queue; executors for sessions
+ *     ({@link #sessionsFromOptions(Options, String)}) have no queue and
+ *     reject them instead</li>
+ * </ul>
+ * Virtual threads are looked up reflectively so the code still compiles and
+ * runs on older JDKs.
+ */
+public final class TaskExecutors {
+
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_BOUNDED = "bounded";
+    public static final int DEFAULT_MAX_THREADS = 256;
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * Creates the executor configured by {@code --executor} and
+     * {@code --max-threads}.
+     *
+     * @param options    Startup options.
+     * @param namePrefix Prefix for the names of platform threads.
+     * @return the executor.
+     * @throws IllegalArgumentException for an unknown mode.
+     */
+    public static ExecutorService fromOptions(Options options, String namePrefix) {
+        return create(options.get("executor", MODE_PLATFORM),
+                options.getInt("max-threads", DEFAULT_MAX_THREADS), namePrefix);
+    }
+
+    /**
+     * Like {@link #fromOptions(Options, String)}, for tasks that run as long
+     * as a connection, like the persistent session of an entrance. Such a
+     * task would wait in a queue until some other connection closes, so in
+     * bounded mode the executor has none: a session beyond
+     * {@code --max-threads} is rejected with a RejectedExecutionException and
+     * the caller can refuse the connection.
+     *
+     * @param options    Startup options.
+     * @param namePrefix Prefix for the names of platform threads.
+     * @return the executor.
+     * @throws IllegalArgumentException for an unknown mode.
+     */
+    public static ExecutorService sessionsFromOptions(Options options, String namePrefix) {
+        return create(options.get("executor", MODE_PLATFORM),
+                options.getInt("max-threads", DEFAULT_MAX_THREADS), namePrefix, false);
+    }
+
+    /**
+     * @param mode       One of {@link #MODE_PLATFORM}, {@link #MODE_VIRTUAL} or {@link #MODE_BOUNDED}.
+     * @param maxThreads Upper bound of threads in bounded mode.
+     * @param namePrefix Prefix for the names of platform threads.
+     * @return the executor.
+     * @throws IllegalArgumentException for an unknown mode.
+     */
+    public static ExecutorService create(String mode, int maxThreads, String namePrefix) {
+        return create(mode, maxThreads, namePrefix, true);
+    }
+
+    /**
+     * @param queued Whether tasks beyond {@code maxThreads} wait in bounded
+     *               mode; otherwise they are rejected.
+     */
+    private static ExecutorService create(String mode, int maxThreads, String namePrefix, boolean queued) {
+        switch (mode) {
+            case MODE_PLATFORM:
+                return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30L, TimeUnit.SECONDS,
+                        new SynchronousQueue<>(), namedDaemonThreads(namePrefix));
+            case MODE_VIRTUAL:
+                ExecutorService virtualExecutor = newVirtualThreadExecutor();
+                if (virtualExecutor != null) {
+                    return virtualExecutor;
+                }
+                System.err.println("Virtual threads are not available on Java "
+                        + System.getProperty("java.version") + ", using " + MODE_BOUNDED + " executor instead.");
+                return create(MODE_BOUNDED, maxThreads, namePrefix, queued);
+            case MODE_BOUNDED:
+                if (maxThreads <= 0) {
+                    throw new IllegalArgumentException("--max-threads must be positive");
+                }
+                BlockingQueue<Runnable> queue = queued ? new LinkedBlockingQueue<>() : new SynchronousQueue<>();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 30L, TimeUnit.SECONDS,
+                        queue, namedDaemonThreads(namePrefix));
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+            default:
+                throw new IllegalArgumentException("Unknown executor '" + mode + "', expected "
+                        + MODE_PLATFORM + ", " + MODE_VIRTUAL + " or " + MODE_BOUNDED);
+        }
+    }
+
+    /**
+     * Creates a single daemon thread for timeouts. Cancelled tasks are removed
+     * at once, because most timeouts are cancelled long before they fire.
+     *
+     * @param name Name of the thread.
+     * @return the scheduler.
+     */
+    public static ScheduledExecutorService newTimer(String name) {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * @return true if the running JDK supports virtual threads.
+     */
+    public static boolean virtualThreadsSupported() {
+        return findVirtualThreadFactoryMethod() != null;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        Method factory = findVirtualThreadFactoryMethod();
+        if (factory == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Method findVirtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedDaemonThreads(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
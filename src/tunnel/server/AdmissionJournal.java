@@ -0,0 +1,539 @@
+package tunnel.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of every tunnel creation, admission and release, so a
+ * restarted server knows how many visitors are still inside each tunnel.
+ * <p>
+ * The monitors append a record while they hold their lock; appending only
+ * claims a slot in a preallocated ring (the same bounded queue as in
+ * AdmissionLog) and never touches the disk. A single writer thread takes all
+ * records that arrived since its last write, writes them in one go and forces
+ * them to disk once: group commit, so one fsync covers every admission that
+ * arrived while the previous one ran. Unlike the console log the journal
+ * never drops a record while it is writing; if the ring is full, appending
+ * waits for the writer. Once the writer has stopped, e.g. after an I/O error,
+ * a full ring drops the record instead, so the monitors appending under their
+ * lock never wait for a writer that is gone.
+ * <p>
+ * Sessions answer an admission only once it is durable
+ * ({@link #awaitDurable(long)}, {@link #whenDurable(long, Runnable)}); if the
+ * writer stops before, they close the connection instead of confirming. A
+ * release is not waited for: if it is lost in a crash, the restarted server
+ * believes the group is still inside, which errs on the safe side.
+ * <p>
+ * Every record is 13 bytes: kind, tunnel id, value and a CRC32 of the first
+ * nine bytes, so a record torn by a crash ends recovery instead of corrupting
+ * it. Every {@link #DEFAULT_COMPACT_RECORDS} records, and on startup, the
+ * writer replaces the file with a snapshot: one creation record and one
+ * admission of the current occupancy per tunnel.
+ */
+public class AdmissionJournal implements Runnable, Closeable {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_COMPACT_RECORDS = 100_000L;
+    /**
+     * How long the writer sleeps when nobody waits and the ring is empty
+     */
+    protected static final long IDLE_PARK_MS = 10L;
+
+    private static final byte CREATE = 1;
+    private static final byte ADMIT = 2;
+    private static final byte RELEASE = 3;
+    private static final int RECORD_BYTES = 1 + 3 * Integer.BYTES;
+    private static final int CHECKED_BYTES = 1 + 2 * Integer.BYTES;
+    /**
+     * Records written with one write call
+     */
+    private static final int BATCH_RECORDS = 4096;
+
+    /**
+     * Capacity and occupancy of one tunnel as recorded in the journal.
+     */
+    public static final class TunnelState {
+        private int capacity;
+        private int occupied;
+
+        TunnelState(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @return visitors admitted and not released yet.
+         */
+        public int getOccupied() {
+            return occupied;
+        }
+    }
+
+    private final Path path;
+    private final long compactRecords;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final byte[] kinds;
+    private final int[] tunnelIds;
+    private final int[] values;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long durable = 0;
+    private volatile boolean running = true;
+    /**
+     * Set when the writer thread ended; nothing appended afterwards reaches the disk
+     */
+    private volatile boolean stopped = false;
+    private volatile Thread writerThread;
+
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durableChanged = durableLock.newCondition();
+    /**
+     * Callbacks waiting for durability, only touched under durableLock
+     */
+    private final List<PendingCallback> callbacks = new ArrayList<>();
+    private volatile boolean waiting = false;
+
+    /**
+     * The following fields are only touched by the writer thread
+     */
+    private final Map<Integer, TunnelState> state;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_BYTES);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long head = 0;
+    private long recordsSinceCompaction = 0;
+
+    private static final class PendingCallback {
+        final long sequence;
+        final Runnable callback;
+
+        PendingCallback(long sequence, Runnable callback) {
+            this.sequence = sequence;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Opens the journal on top of a recovered state and replaces the file
+     * with its snapshot. Start the writer with {@link #start()}.
+     *
+     * @param path           Journal file.
+     * @param recovered      State read by {@link #recover(Path)}.
+     * @param capacity       Number of records the ring holds, rounded up to a power of two.
+     * @param compactRecords Records after which the file is compacted.
+     * @throws IOException if the file cannot be written.
+     */
+    public AdmissionJournal(Path path, Map<Integer, TunnelState> recovered, int capacity, long compactRecords)
+            throws IOException {
+        if (capacity <= 0 || compactRecords <= 0) {
+            throw new IllegalArgumentException("Capacity and compaction interval must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.path = path;
+        this.compactRecords = compactRecords;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        kinds = new byte[size];
+        tunnelIds = new int[size];
+        values = new int[size];
+        state = new LinkedHashMap<>();
+        for (Map.Entry<Integer, TunnelState> tunnel : recovered.entrySet()) {
+            TunnelState copy = new TunnelState(tunnel.getValue().capacity);
+            copy.occupied = tunnel.getValue().occupied;
+            state.put(tunnel.getKey(), copy);
+        }
+        compact();
+    }
+
+    /**
+     * Reads the journal. A missing file is an empty journal; reading stops at
+     * the first torn or corrupt record.
+     *
+     * @param path Journal file.
+     * @return capacity and occupancy per tunnel id, in order of creation.
+     * @throws IOException if the file cannot be read.
+     */
+    public static Map<Integer, TunnelState> recover(Path path) throws IOException {
+        Map<Integer, TunnelState> recovered = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return recovered;
+        }
+        CRC32 checksum = new CRC32();
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (records.remaining() >= RECORD_BYTES) {
+            int start = records.position();
+            byte kind = records.get();
+            int tunnelId = records.getInt();
+            int value = records.getInt();
+            checksum.reset();
+            checksum.update(records.array(), start, CHECKED_BYTES);
+            if (records.getInt() != (int) checksum.getValue()) {
+                break;
+            }
+            apply(recovered, kind, tunnelId, value);
+        }
+        return Collections.unmodifiableMap(recovered);
+    }
+
+    private static void apply(Map<Integer, TunnelState> tunnels, byte kind, int tunnelId, int value) {
+        TunnelState tunnel = tunnels.get(tunnelId);
+        if (kind == CREATE) {
+            if (tunnel == null) {
+                tunnels.put(tunnelId, new TunnelState(value));
+            } else {
+                // Created again after a restart, possibly with another capacity
+                tunnel.capacity = value;
+            }
+        } else if (tunnel != null) {
+            tunnel.occupied += kind == ADMIT ? value : -value;
+        }
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "admission-journal");
+        thread.setDaemon(true);
+        writerThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Records that a tunnel was created.
+     *
+     * @return sequence number of the record, -1 if the writer has stopped
+     * and the record was dropped.
+     */
+    public long created(int tunnelId, int capacity) {
+        return append(CREATE, tunnelId, capacity);
+    }
+
+    /**
+     * Records that count visitors entered the tunnel.
+     *
+     * @return sequence number of the record, -1 if the writer has stopped
+     * and the record was dropped.
+     */
+    public long admitted(int tunnelId, int count) {
+        return append(ADMIT, tunnelId, count);
+    }
+
+    /**
+     * Records that count visitors left the tunnel.
+     *
+     * @return sequence number of the record, -1 if the writer has stopped
+     * and the record was dropped.
+     */
+    public long released(int tunnelId, int count) {
+        return append(RELEASE, tunnelId, count);
+    }
+
+    /**
+     * @return sequence number of the latest record appended so far; once it
+     * is durable, so is everything appended before this call.
+     */
+    public long getAppendedSequence() {
+        return tail.get();
+    }
+
+    /**
+     * @return true if the record with that sequence number is on disk.
+     */
+    public boolean isDurable(long sequence) {
+        return durable >= sequence;
+    }
+
+    /**
+     * @return true once the writer thread ended, after close() or an I/O
+     * error; records that are not durable by then never will be.
+     */
+    public boolean hasStopped() {
+        return stopped;
+    }
+
+    /**
+     * Blocks until the record with that sequence number is on disk.
+     *
+     * @throws IOException if the writer stopped before it was.
+     */
+    public void awaitDurable(long sequence) throws InterruptedException, IOException {
+        if (isDurable(sequence)) {
+            return;
+        }
+        durableLock.lock();
+        try {
+            while (!isDurable(sequence) && !stopped) {
+                waiting = true;
+                LockSupport.unpark(writerThread);
+                durableChanged.await();
+            }
+        } finally {
+            durableLock.unlock();
+        }
+        if (!isDurable(sequence)) {
+            throw new IOException("Admission journal stopped before record " + sequence + " was written");
+        }
+    }
+
+    /**
+     * Runs the callback on the writer thread once the record with that
+     * sequence number is on disk, or right away if it is already. If the
+     * writer stops first, the callback runs as well; it tells the cases
+     * apart with {@link #isDurable(long)}.
+     *
+     * @param callback must not block.
+     */
+    public void whenDurable(long sequence, Runnable callback) {
+        if (!isDurable(sequence)) {
+            durableLock.lock();
+            try {
+                if (!isDurable(sequence) && !stopped) {
+                    callbacks.add(new PendingCallback(sequence, callback));
+                    waiting = true;
+                    LockSupport.unpark(writerThread);
+                    return;
+                }
+            } finally {
+                durableLock.unlock();
+            }
+        }
+        callback.run();
+    }
+
+    private long append(byte kind, int tunnelId, int value) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    kinds[slot] = kind;
+                    tunnelIds[slot] = tunnelId;
+                    values[slot] = value;
+                    // Publishes the fields to the writer thread
+                    sequences.set(slot, position + 1);
+                    return position + 1;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                if (stopped) {
+                    // Nobody will ever free a slot
+                    return -1L;
+                }
+                // Ring full: wait for the writer instead of losing the record
+                LockSupport.unpark(writerThread);
+                Thread.onSpinWait();
+                position = tail.get();
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Stops the writer after it wrote what is in the ring.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                if (writeBatch() == 0) {
+                    if (waiting) {
+                        // A record someone waits for is being appended right now
+                        Thread.onSpinWait();
+                    } else {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MS));
+                    }
+                } else if (recordsSinceCompaction >= compactRecords) {
+                    compact();
+                }
+            }
+            while (writeBatch() > 0) {
+                // Writes what was appended before close()
+            }
+        } catch (IOException e) {
+            ServerMain.behandleException(e);
+        } finally {
+            running = false;
+            stopped = true;
+            closeChannel();
+            signalDurable();
+        }
+    }
+
+    /**
+     * Writes every record in the ring, then forces the file once.
+     *
+     * @return number of records written.
+     */
+    private int writeBatch() throws IOException {
+        int written = 0;
+        while (true) {
+            batch.clear();
+            int records = 0;
+            while (records < BATCH_RECORDS) {
+                int slot = (int) head & mask;
+                if (sequences.get(slot) != head + 1) {
+                    break;
+                }
+                byte kind = kinds[slot];
+                int tunnelId = tunnelIds[slot];
+                int value = values[slot];
+                // Frees the slot for the next round of appenders
+                sequences.set(slot, head + mask + 1);
+                head++;
+                records++;
+                putRecord(kind, tunnelId, value);
+                apply(state, kind, tunnelId, value);
+            }
+            if (records == 0) {
+                break;
+            }
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            written += records;
+            if (records < BATCH_RECORDS) {
+                break;
+            }
+        }
+        if (written > 0) {
+            channel.force(false);
+            recordsSinceCompaction += written;
+            durable = head;
+            signalDurable();
+        }
+        return written;
+    }
+
+    private void putRecord(byte kind, int tunnelId, int value) {
+        int start = batch.position();
+        batch.put(kind);
+        batch.putInt(tunnelId);
+        batch.putInt(value);
+        ByteBuffer checked = batch.duplicate();
+        checked.position(start).limit(start + CHECKED_BYTES);
+        crc.reset();
+        crc.update(checked);
+        batch.putInt((int) crc.getValue());
+    }
+
+    private void signalDurable() {
+        List<Runnable> ready = new ArrayList<>();
+        durableLock.lock();
+        try {
+            waiting = false;
+            for (int i = callbacks.size() - 1; i >= 0; i--) {
+                PendingCallback pending = callbacks.get(i);
+                if (isDurable(pending.sequence) || stopped) {
+                    ready.add(pending.callback);
+                    callbacks.remove(i);
+                } else {
+                    waiting = true;
+                }
+            }
+            durableChanged.signalAll();
+        } finally {
+            durableLock.unlock();
+        }
+        for (Runnable callback : ready) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Writes the current state into a new file, forces it and moves it over
+     * the journal, so a crash leaves either the old or the new file.
+     */
+    private void compact() throws IOException {
+        Path snapshot = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(snapshot, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            batch.clear();
+            for (Map.Entry<Integer, TunnelState> tunnel : state.entrySet()) {
+                if (batch.remaining() < 2 * RECORD_BYTES) {
+                    flushTo(out);
+                }
+                putRecord(CREATE, tunnel.getKey(), tunnel.getValue().capacity);
+                if (tunnel.getValue().occupied != 0) {
+                    putRecord(ADMIT, tunnel.getKey(), tunnel.getValue().occupied);
+                }
+            }
+            flushTo(out);
+            out.force(false);
+        }
+        closeChannel();
+        Files.move(snapshot, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        recordsSinceCompaction = 0;
+    }
+
+    /**
+     * Forces the directory entry of a renamed file to disk, so a crash right
+     * after compaction does not bring back the old file. Platforms that
+     * cannot open a directory (Windows) only get the atomic move.
+     */
+    private static void forceDirectory(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel entries = FileChannel.open(directory, StandardOpenOption.READ)) {
+            entries.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void flushTo(FileChannel out) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            out.write(batch);
+        }
+        batch.clear();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package tunnel.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Console log of admissions and releases that keeps the console out of the
+ * monitor lock. The monitors only store the two numbers of an event in a
+ * preallocated ring buffer; a background thread formats and prints them.
+ * Logging an event is a few atomic operations and allocates nothing.
+ * <p>
+ * Overflow policy: the ring holds {@link #DEFAULT_CAPACITY} events. If the
+ * console cannot keep up and the ring is full, new events are dropped rather
+ * than blocking the admission path. The number of dropped events is printed
+ * once the ring has room again, so gaps in the log are visible. Events of
+ * different threads appear in the order they got their slot.
+ * <p>
+ * The ring is the bounded multi-producer queue by Dmitry Vyukov: every slot
+ * carries a sequence number that tells producers whether it is free and the
+ * printing thread whether it is filled.
+ */
+public class AdmissionLog implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    /**
+     * How long the printing thread sleeps when the ring is empty
+     */
+    protected static final long IDLE_PARK_MS = 1L;
+
+    private static final byte RECEIVED = 1;
+    private static final byte RELEASED = 2;
+    private static AdmissionLog console;
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final byte[] kinds;
+    private final int[] counts;
+    private final int[] available;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Next slot to print; only used inside drain()
+     */
+    private long head = 0;
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported = 0;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity Number of events the ring holds, rounded up to a power of two.
+     */
+    public AdmissionLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        kinds = new byte[size];
+        counts = new int[size];
+        available = new int[size];
+    }
+
+    /**
+     * @return the log shared by all monitors, printing to System.out; started
+     * on first use.
+     */
+    public static synchronized AdmissionLog console() {
+        if (console == null) {
+            console = new AdmissionLog(DEFAULT_CAPACITY);
+            Thread thread = new Thread(console, "admission-log");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return console;
+    }
+
+    /**
+     * Logs "count visitors received. available visitors available".
+     */
+    public void received(int count, int availableVisitors) {
+        offer(RECEIVED, count, availableVisitors);
+    }
+
+    /**
+     * Logs "count visitors released. available visitors available".
+     */
+    public void released(int count, int availableVisitors) {
+        offer(RELEASED, count, availableVisitors);
+    }
+
+    /**
+     * @return events dropped because the ring was full.
+     */
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+
+    private void offer(byte kind, int count, int availableVisitors) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    kinds[slot] = kind;
+                    counts[slot] = count;
+                    available[slot] = availableVisitors;
+                    // Publishes the fields to the printing thread
+                    sequences.set(slot, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // Slot of the previous round not printed yet: the ring is full
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Stops the printing thread after it printed what is in the ring.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Prints everything logged so far on the calling thread, e.g. from a
+     * shutdown hook before the final statistics.
+     */
+    public void flush() {
+        drain();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MS));
+            }
+        }
+        drain();
+    }
+
+    /**
+     * @return number of printed events.
+     */
+    private synchronized int drain() {
+        int printed = 0;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            byte kind = kinds[slot];
+            int count = counts[slot];
+            int availableVisitors = available[slot];
+            // Frees the slot for the next round of producers
+            sequences.set(slot, head + mask + 1);
+            head++;
+            printed++;
+            System.out.println(count + (kind == RECEIVED ? " visitors received. " : " visitors released. ")
+                    + availableVisitors + " visitors available");
+        }
+        long droppedNow = dropped.sum();
+        if (droppedNow != droppedReported) {
+            System.out.println((droppedNow - droppedReported) + " log events dropped, console too slow");
+            droppedReported = droppedNow;
+        }
+        return printed;
+    }
+}
@@ -0,0 +1,69 @@
+package tunnel.server;
+
+/**
+ * Decides which waiting group a VisitorsMonitor admits next when visitors
+ * become available. Implementations are not thread-safe; the monitor only
+ * calls them while holding its lock. Selected at startup with
+ * {@code --policy=fifo|smallest-first|aging}.
+ */
+public interface AdmissionPolicy {
+
+    String FIFO = "fifo";
+    String SMALLEST_FIRST = "smallest-first";
+    String AGING = "aging";
+
+    /**
+     * @return name of the policy as used on the command line.
+     */
+    String getName();
+
+    /**
+     * Adds a group that has to wait.
+     */
+    void add(Waiter waiter);
+
+    /**
+     * Removes a group that gave up waiting.
+     *
+     * @return false if the group was not queued.
+     */
+    boolean remove(Waiter waiter);
+
+    /**
+     * Picks the group to admit next. The group stays queued until the monitor
+     * removes it.
+     *
+     * @param availableVisitors Visitors that are free right now.
+     * @param nowNanos          Current {@link System#nanoTime()}.
+     * @return the group to admit, or null if none should be admitted now.
+     */
+    Waiter next(int availableVisitors, long nowNanos);
+
+    /**
+     * @return number of waiting groups.
+     */
+    int size();
+
+    /**
+     * Creates a policy by its command line name.
+     *
+     * @param name        {@link #FIFO}, {@link #SMALLEST_FIRST} or {@link #AGING}.
+     * @param maxVisitors Capacity of the monitor the policy is used for.
+     * @param agingMillis Waiting time that raises the priority of a group by one visitor (aging only).
+     * @return the policy.
+     * @throws IllegalArgumentException for an unknown name.
+     */
+    static AdmissionPolicy forName(String name, int maxVisitors, long agingMillis) {
+        switch (name) {
+            case FIFO:
+                return new FifoAdmissionPolicy();
+            case SMALLEST_FIRST:
+                return new SmallestFirstAdmissionPolicy(maxVisitors);
+            case AGING:
+                return new AgingAdmissionPolicy(agingMillis);
+            default:
+                throw new IllegalArgumentException("Unknown policy '" + name + "', expected "
+                        + FIFO + ", " + SMALLEST_FIRST + " or " + AGING);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package tunnel.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import tunnel.common.LatencyHistogram;
+
+/**
+ * Statistics of the admission policy of one VisitorsMonitor: how well the
+ * tunnel capacity was used and how long groups waited. All counters are
+ * adders, so recording takes no lock and works for the lock-free monitor.
+ * <p>
+ * Occupancy utilisation is the time integral of the occupied visitors divided
+ * by capacity times elapsed time. The integral is kept as the sum of
+ * {@code count * t} over releases minus the same sum over admissions; the
+ * visitors still inside are added when the value is read. Both sums may wrap
+ * around, their difference does not.
+ * <p>
+ * Histograms record the admission wait of every group (0 if admitted right
+ * away), the visit duration and how long the monitor lock was held. Releases
+ * do not say which group leaves, so a release of {@code count} visitors ends
+ * the longest running visit of a group of that size; a release that matches
+ * no admitted group size is not timed. Admission times are kept per group size
+ * in preallocated rings, so none of the recording allocates.
+ */
+public class AdmissionStats {
+
+    private final String policyName;
+    private final int maxVisitors;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder occupancyIntegral = new LongAdder();
+    private final LongAdder admittedGroups = new LongAdder();
+    private final LongAdder waitedGroups = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0L);
+    private final LongAdder timedOutGroups = new LongAdder();
+    private final LongAdder cancelledGroups = new LongAdder();
+    private final LatencyHistogram admissionWait = new LatencyHistogram();
+    private final LatencyHistogram visitDuration = new LatencyHistogram(TimeUnit.MILLISECONDS);
+    private final LatencyHistogram lockHold = new LatencyHistogram(TimeUnit.NANOSECONDS);
+    /**
+     * Admission times of the groups inside, one ring per group size; at most
+     * maxVisitors / size groups of a size fit into the tunnel.
+     */
+    private final VisitRing[] visitsBySize;
+
+    public AdmissionStats(String policyName, int maxVisitors) {
+        this.policyName = policyName;
+        this.maxVisitors = maxVisitors;
+        this.visitsBySize = new VisitRing[maxVisitors + 1];
+        for (int size = 1; size <= maxVisitors; size++) {
+            visitsBySize[size] = new VisitRing(maxVisitors / size);
+        }
+    }
+
+    /**
+     * Records an admitted group.
+     *
+     * @param count     Visitors of the group.
+     * @param waitNanos How long the group waited, 0 if admitted immediately.
+     * @param nowNanos  Current {@link System#nanoTime()}.
+     */
+    public void admitted(int count, long waitNanos, long nowNanos) {
+        occupancyIntegral.add(-count * (nowNanos - startNanos));
+        admittedGroups.increment();
+        admissionWait.recordNanos(waitNanos);
+        visitRing(count).admitted(nowNanos);
+        if (waitNanos > 0) {
+            waitedGroups.increment();
+            totalWaitNanos.add(waitNanos);
+            maxWaitNanos.accumulate(waitNanos);
+        }
+    }
+
+    /**
+     * Records visitors leaving the tunnel.
+     */
+    public void released(int count, long nowNanos) {
+        occupancyIntegral.add(count * (nowNanos - startNanos));
+        VisitRing ring = visitRing(count);
+        if (ring != null) {
+            long admittedNanos = ring.released();
+            if (admittedNanos != Long.MIN_VALUE) {
+                visitDuration.recordNanos(nowNanos - admittedNanos);
+            }
+        }
+    }
+
+    /**
+     * Records how long the monitor lock was held by one operation.
+     */
+    public void lockHeld(long nanos) {
+        lockHold.recordNanos(nanos);
+    }
+
+    /**
+     * Records a waiting group that left the queue without being admitted.
+     *
+     * @param timedOut true if its deadline passed, false if it was cancelled
+     *                 (interrupted or the client disconnected).
+     */
+    public void withdrawn(boolean timedOut) {
+        if (timedOut) {
+            timedOutGroups.increment();
+        } else {
+            cancelledGroups.increment();
+        }
+    }
+
+    public String getPolicyName() {
+        return policyName;
+    }
+
+    /**
+     * @param occupiedVisitors Visitors currently in the tunnel.
+     * @return share of the capacity used since the monitor was created, 0..1.
+     */
+    public double getUtilisation(int occupiedVisitors) {
+        long elapsed = System.nanoTime() - startNanos;
+        if (elapsed <= 0) {
+            return 0.0;
+        }
+        double integral = occupancyIntegral.sum() + (double) occupiedVisitors * elapsed;
+        return integral / ((double) maxVisitors * elapsed);
+    }
+
+    public long getAdmittedGroups() {
+        return admittedGroups.sum();
+    }
+
+    public long getWaitedGroups() {
+        return waitedGroups.sum();
+    }
+
+    public long getTimedOutGroups() {
+        return timedOutGroups.sum();
+    }
+
+    public long getCancelledGroups() {
+        return cancelledGroups.sum();
+    }
+
+    /**
+     * @return wait of every admitted group, 0 for those admitted right away.
+     */
+    public LatencyHistogram getAdmissionWait() {
+        return admissionWait;
+    }
+
+    /**
+     * @return time between admission and release of a group.
+     */
+    public LatencyHistogram getVisitDuration() {
+        return visitDuration;
+    }
+
+    /**
+     * @return time the monitor lock was held per operation.
+     */
+    public LatencyHistogram getLockHold() {
+        return lockHold;
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    public double getMeanWaitMillis() {
+        long waited = waitedGroups.sum();
+        return waited == 0 ? 0.0 : totalWaitNanos.sum() / (waited * 1_000_000.0);
+    }
+
+    /**
+     * @param occupiedVisitors Visitors currently in the tunnel.
+     * @return one line summary for the server console.
+     */
+    public String report(int occupiedVisitors) {
+        return String.format("Policy %s: utilisation %.1f%%, %d groups admitted, %d waited (mean %.1f ms, max %d ms), "
+                        + "%d timed out, %d cancelled",
+                policyName, getUtilisation(occupiedVisitors) * 100.0, getAdmittedGroups(), getWaitedGroups(),
+                getMeanWaitMillis(), getMaxWaitMillis(), getTimedOutGroups(), getCancelledGroups());
+    }
+
+    private VisitRing visitRing(int count) {
+        return count > 0 && count <= maxVisitors ? visitsBySize[count] : null;
+    }
+
+    /**
+     * Admission times of the groups of one size that are inside, oldest first.
+     */
+    private static final class VisitRing {
+        private final long[] admittedNanos;
+        private int head = 0;
+        private int size = 0;
+
+        VisitRing(int capacity) {
+            this.admittedNanos = new long[capacity];
+        }
+
+        synchronized void admitted(long nowNanos) {
+            if (size == admittedNanos.length) {
+                // Cannot happen while the capacity is respected; forget the oldest
+                head = (head + 1) % admittedNanos.length;
+                size--;
+            }
+            admittedNanos[(head + size) % admittedNanos.length] = nowNanos;
+            size++;
+        }
+
+        /**
+         * @return admission time of the oldest group, Long.MIN_VALUE if none is inside.
+         */
+        synchronized long released() {
+            if (size == 0) {
+                return Long.MIN_VALUE;
+            }
+            long oldest = admittedNanos[head];
+            head = (head + 1) % admittedNanos.length;
+            size--;
+            return oldest;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package tunnel.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Priority by size with aging: a group starts with priority {@code -count},
+ * so small groups go first, and gains one point for every {@code agingMillis}
+ * it waits. The group with the highest priority is admitted when it fits; if
+ * it does not fit, the freed visitors are kept for it. A large group therefore
+ * gets in after a bounded time instead of starving.
+ */
+public class AgingAdmissionPolicy implements AdmissionPolicy {
+
+    public static final long DEFAULT_AGING_MILLIS = 1000L;
+
+    private final long agingNanos;
+    private final ArrayList<Waiter> waiters = new ArrayList<>();
+
+    /**
+     * @param agingMillis Waiting time that is worth one visitor of priority.
+     */
+    public AgingAdmissionPolicy(long agingMillis) {
+        if (agingMillis <= 0) {
+            throw new IllegalArgumentException("Aging interval must be positive");
+        }
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+    }
+
+    @Override
+    public String getName() {
+        return AGING;
+    }
+
+    @Override
+    public void add(Waiter waiter) {
+        waiters.add(waiter);
+    }
+
+    @Override
+    public boolean remove(Waiter waiter) {
+        return waiters.remove(waiter);
+    }
+
+    @Override
+    public Waiter next(int availableVisitors, long nowNanos) {
+        Waiter best = null;
+        double bestPriority = Double.NEGATIVE_INFINITY;
+        // Arrival order: on equal priority the earlier group wins
+        for (Waiter waiter : waiters) {
+            double priority = (double) (nowNanos - waiter.enqueuedNanos) / agingNanos - waiter.count;
+            if (priority > bestPriority) {
+                best = waiter;
+                bestPriority = priority;
+            }
+        }
+        return best != null && best.count <= availableVisitors ? best : null;
+    }
+
+    @Override
+    public int size() {
+        return waiters.size();
+    }
+}
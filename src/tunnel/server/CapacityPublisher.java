@@ -0,0 +1,144 @@
+package tunnel.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the available capacity of a VisitorsMonitor to all subscribed
+ * entrances. The monitor only flags a change; a push task on the publisher
+ * timer picks up the latest value after a short coalescing window, so a burst
+ * of admissions and releases results in one update per subscriber. The timer
+ * has a single thread and may be shared by the publishers of many tunnels
+ * (see TunnelRegistry): a publisher without changes costs no thread and no
+ * task. All pushes happen on that thread, so every subscriber sees the
+ * updates in order.
+ */
+public class CapacityPublisher {
+
+    /**
+     * How long the publisher waits after the first change of a burst before
+     * reading the capacity
+     */
+    protected static final long COALESCE_WINDOW_MS = 10L;
+
+    /**
+     * Receiver of capacity updates, one per subscribed connection.
+     */
+    public interface Subscriber {
+        /**
+         * Delivers the current capacity. Must not block: it runs on the
+         * timer thread shared by all publishers, so a subscriber hands the
+         * write to the writer of its connection.
+         *
+         * @param availableVisitors Current capacity.
+         * @return false if the subscriber is gone and should be removed.
+         */
+        boolean push(int availableVisitors);
+    }
+
+    private final VisitorsMonitor visitorsMonitor;
+    private final ScheduledExecutorService publisherTimer;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Subscriber> newSubscribers = new ConcurrentLinkedQueue<>();
+    /**
+     * Set while a push task is scheduled, so a burst schedules only one
+     */
+    private final AtomicBoolean pushScheduled = new AtomicBoolean();
+    private volatile boolean running = true;
+    /**
+     * Only touched by push tasks
+     */
+    private int lastPublished = Integer.MIN_VALUE;
+
+    /**
+     * @param visitorsMonitor Monitor whose capacity is published.
+     * @param publisherTimer  Single-threaded timer that runs the push tasks.
+     */
+    public CapacityPublisher(VisitorsMonitor visitorsMonitor, ScheduledExecutorService publisherTimer) {
+        if (visitorsMonitor == null || publisherTimer == null) {
+            throw new IllegalArgumentException("Monitor/Timer is null");
+        }
+        this.visitorsMonitor = visitorsMonitor;
+        this.publisherTimer = publisherTimer;
+        visitorsMonitor.addCapacityListener(this::capacityChanged);
+    }
+
+    /**
+     * Stops publishing; the timer is left to its owner.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Registers a subscriber. The publisher sends it the current capacity
+     * right away and every change after that.
+     *
+     * @param subscriber Receiver of the updates.
+     */
+    public void subscribe(Subscriber subscriber) {
+        newSubscribers.add(subscriber);
+        execute(this::welcomeNewSubscribers);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Called by the monitor, possibly while it holds its lock, so it only
+     * schedules a push task unless one is pending already.
+     */
+    private void capacityChanged() {
+        if (running && pushScheduled.compareAndSet(false, true)) {
+            try {
+                publisherTimer.schedule(this::publish, COALESCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException shutdown) {
+                pushScheduled.set(false);
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        if (!running) {
+            return;
+        }
+        try {
+            publisherTimer.execute(task);
+        } catch (RejectedExecutionException shutdown) {
+            // Server is stopping, nothing is published anymore
+        }
+    }
+
+    private void welcomeNewSubscribers() {
+        Subscriber newSubscriber;
+        while ((newSubscriber = newSubscribers.poll()) != null) {
+            if (newSubscriber.push(visitorsMonitor.getAvailableVisitors())) {
+                subscribers.add(newSubscriber);
+            }
+        }
+    }
+
+    private void publish() {
+        // Cleared before reading, so a change after the read schedules the next push
+        pushScheduled.set(false);
+        welcomeNewSubscribers();
+        if (!running) {
+            return;
+        }
+        int availableVisitors = visitorsMonitor.getAvailableVisitors();
+        if (availableVisitors == lastPublished) {
+            return;
+        }
+        lastPublished = availableVisitors;
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.push(availableVisitors)) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package tunnel.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Strict arrival order: only the group that waits longest may enter. Groups
+ * behind it wait even if they would fit, so no group can starve.
+ */
+public class FifoAdmissionPolicy implements AdmissionPolicy {
+
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+
+    @Override
+    public String getName() {
+        return FIFO;
+    }
+
+    @Override
+    public void add(Waiter waiter) {
+        queue.addLast(waiter);
+    }
+
+    @Override
+    public boolean remove(Waiter waiter) {
+        return queue.remove(waiter);
+    }
+
+    @Override
+    public Waiter next(int availableVisitors, long nowNanos) {
+        Waiter head = queue.peekFirst();
+        return head != null && head.count <= availableVisitors ? head : null;
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,215 @@
+package tunnel.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * VisitorsMonitor that admits groups with a compare-and-set on the available
+ * count as long as nobody is waiting, and reads the capacity without any
+ * lock. Only a group that does not fit is put into the waiter queue of the
+ * AdmissionPolicy (FIFO unless another policy is given) behind a lock;
+ * release() hands freed visitors to the chosen waiters directly.
+ * <p>
+ * Selected with {@code --monitor=lockfree}. The capacity limit of
+ * MAX_VISITORS and the IllegalArgumentExceptions are the same as in the
+ * synchronized VisitorsMonitor. This class keeps its own counter and does not
+ * use the inherited availableVisitors field. The lock hold times in the
+ * statistics are those of the queue lock; the CAS fast path holds no lock.
+ */
+public class LockFreeVisitorsMonitor extends VisitorsMonitor {
+
+    private final AtomicInteger available = new AtomicInteger(MAX_VISITORS);
+    /**
+     * Number of queued waiters. Admissions take the fast path only while it
+     * is 0, so the policy decides as soon as anyone waits.
+     */
+    private final AtomicInteger waiterCount = new AtomicInteger();
+    private final ReentrantLock queueLock = new ReentrantLock();
+
+    public LockFreeVisitorsMonitor() {
+        this(DEFAULT_MAX_VISITORS);
+    }
+
+    public LockFreeVisitorsMonitor(AdmissionPolicy admissionPolicy) {
+        this(DEFAULT_MAX_VISITORS, admissionPolicy);
+    }
+
+    /**
+     * @param maxVisitors Capacity of the tunnel.
+     */
+    public LockFreeVisitorsMonitor(int maxVisitors) {
+        this(maxVisitors, new FifoAdmissionPolicy());
+    }
+
+    /**
+     * @param maxVisitors     Capacity of the tunnel.
+     * @param admissionPolicy Chooses which waiting groups get freed visitors.
+     */
+    public LockFreeVisitorsMonitor(int maxVisitors, AdmissionPolicy admissionPolicy) {
+        super(maxVisitors, admissionPolicy);
+    }
+
+    /**
+     * Takes the CAS fast path, otherwise queues the waiter and lets the
+     * policy decide right away, because a release may have happened after
+     * the fast path failed.
+     */
+    @Override
+    protected Waiter enqueue(int count, Thread thread, Runnable onGranted) {
+        if (tryAcquire(count)) {
+            return null;
+        }
+        Waiter waiter = new Waiter(count, thread, onGranted);
+        boolean grantedNow;
+        List<Runnable> completions;
+        queueLock.lock();
+        long lockedAt = System.nanoTime();
+        try {
+            admissionPolicy.add(waiter);
+            waiterCount.incrementAndGet();
+            completions = grantWaitersLocked();
+            grantedNow = waiter.granted;
+        } finally {
+            admissionStats.lockHeld(System.nanoTime() - lockedAt);
+            queueLock.unlock();
+        }
+        if (grantedNow && onGranted != null) {
+            // Admitted right away: the caller learns it from the return value
+            completions.remove(onGranted);
+        }
+        runCompletions(completions);
+        return grantedNow ? null : waiter;
+    }
+
+    @Override
+    public boolean tryRequest(int count) throws IllegalArgumentException {
+        checkRequestedCount(count);
+        return tryAcquire(count);
+    }
+
+    @Override
+    public void release(int count) throws IllegalArgumentException {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Visitor count must be positive!");
+        }
+        int current;
+        int updated;
+        do {
+            current = available.get();
+            updated = current + count;
+            if (updated > MAX_VISITORS) {
+                throw new IllegalArgumentException("Cannot release " + count + " visitors: would exceed maximum capacity of " + MAX_VISITORS + ".");
+            }
+        } while (!available.compareAndSet(current, updated));
+        admissionStats.released(count, System.nanoTime());
+        released(count, updated);
+        fireCapacityChanged();
+
+        if (waiterCount.get() > 0) {
+            runCompletions(grantWaiters());
+        }
+    }
+
+    @Override
+    public void restoreOccupied(int occupiedVisitors) {
+        available.set(MAX_VISITORS - Math.max(0, Math.min(MAX_VISITORS, occupiedVisitors)));
+        fireCapacityChanged();
+    }
+
+    @Override
+    public int getAvailableVisitors() {
+        return available.get();
+    }
+
+    @Override
+    public int getWaitingGroups() {
+        return waiterCount.get();
+    }
+
+    /**
+     * Fast path: takes the visitors with a CAS if nobody is queued and
+     * enough are available.
+     */
+    private boolean tryAcquire(int count) {
+        while (waiterCount.get() == 0) {
+            int current = available.get();
+            if (current < count) {
+                return false;
+            }
+            if (available.compareAndSet(current, current - count)) {
+                admissionStats.admitted(count, 0L, System.nanoTime());
+                received(count, current - count);
+                fireCapacityChanged();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean withdraw(Waiter waiter, boolean timedOut) {
+        List<Runnable> completions;
+        queueLock.lock();
+        long lockedAt = System.nanoTime();
+        try {
+            if (waiter.granted || !admissionPolicy.remove(waiter)) {
+                return false;
+            }
+            waiterCount.decrementAndGet();
+            admissionStats.withdrawn(timedOut);
+            // The withdrawn waiter may have held up others behind it
+            completions = grantWaitersLocked();
+        } finally {
+            admissionStats.lockHeld(System.nanoTime() - lockedAt);
+            queueLock.unlock();
+        }
+        runCompletions(completions);
+        return true;
+    }
+
+    private List<Runnable> grantWaiters() {
+        queueLock.lock();
+        long lockedAt = System.nanoTime();
+        try {
+            return grantWaitersLocked();
+        } finally {
+            admissionStats.lockHeld(System.nanoTime() - lockedAt);
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Hands available visitors to the waiters the policy picks. Blocked
+     * threads are unparked here; callbacks of non-blocking requests are
+     * returned so they run after the lock is released.
+     */
+    private List<Runnable> grantWaitersLocked() {
+        List<Runnable> completions = new ArrayList<>(0);
+        long now = System.nanoTime();
+        while (true) {
+            int current = available.get();
+            Waiter waiter = admissionPolicy.next(current, now);
+            if (waiter == null) {
+                break;
+            }
+            if (!available.compareAndSet(current, current - waiter.count)) {
+                continue;
+            }
+            admissionPolicy.remove(waiter);
+            waiterCount.decrementAndGet();
+            admissionStats.admitted(waiter.count, now - waiter.enqueuedNanos, now);
+            received(waiter.count, current - waiter.count);
+            fireCapacityChanged();
+            waiter.granted = true;
+            if (waiter.thread != null) {
+                LockSupport.unpark(waiter.thread);
+            } else {
+                completions.add(waiter.onGranted);
+            }
+        }
+        return completions;
+    }
+}
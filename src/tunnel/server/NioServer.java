@@ -0,0 +1,809 @@
+package tunnel.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import tunnel.common.Protocol;
+
+/**
+ * Non-blocking alternative to the thread-per-connection server. Connections
+ * are accepted on the calling thread and handed round-robin to a small fixed
+ * set of I/O threads, each running its own Selector. The wire protocol is the
+ * same framed protocol as in ServerThread (see Protocol).
+ * <p>
+ * Every operation addresses a tunnel of the TunnelRegistry. A visitor request
+ * that cannot be served immediately is parked in the VisitorsMonitor of its
+ * tunnel as a pending completion. The session keeps reading and
+ * answers the request once the completion arrives or its timeout passes,
+ * possibly after later operations. Requests still parked when the client
+ * disconnects are withdrawn from the monitor. A session that subscribed to the
+ * capacity updates of a tunnel gets them pushed by its CapacityPublisher
+ * through the I/O thread. If the server keeps an AdmissionJournal, output
+ * that confirms admissions is held back until the journal has them on disk;
+ * the session keeps reading meanwhile. Leased visits (see VisitRegistry) are
+ * not tied to the session; a client may renew or end them on any connection.
+ */
+public class NioServer {
+
+    /**
+     * Size of the direct buffers each session borrows for input and output.
+     * Input must hold a whole frame.
+     */
+    private static final int SESSION_BUFFER_SIZE = 2048;
+
+    private final int port;
+    private final TunnelRegistry tunnelRegistry;
+    private final ScheduledExecutorService deadlineTimer;
+    private final IoWorker[] workers;
+    private volatile boolean running = true;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * @param port            Port to listen on.
+     * @param visitorsMonitor Monitor of the only tunnel, at which all sessions request and release visitors.
+     * @param capacityPublisher Publisher for subscribed sessions, may be null.
+     * @param ioThreads       Number of selector threads.
+     */
+    public NioServer(int port, VisitorsMonitor visitorsMonitor, CapacityPublisher capacityPublisher, int ioThreads) {
+        this(port, TunnelRegistry.of(visitorsMonitor, capacityPublisher), null, ioThreads);
+    }
+
+    /**
+     * @param port           Port to listen on.
+     * @param tunnelRegistry Tunnels the sessions address.
+     * @param deadlineTimer  Expires parked requests after their timeout; if null they wait without one.
+     * @param ioThreads      Number of selector threads.
+     */
+    public NioServer(int port, TunnelRegistry tunnelRegistry, ScheduledExecutorService deadlineTimer, int ioThreads) {
+        if (tunnelRegistry == null) {
+            throw new IllegalArgumentException("Registry is null");
+        }
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("At least one I/O thread is required");
+        }
+        this.port = port;
+        this.tunnelRegistry = tunnelRegistry;
+        this.deadlineTimer = deadlineTimer;
+        this.workers = new IoWorker[ioThreads];
+    }
+
+    /**
+     * Binds the server socket, starts the I/O threads and accepts connections
+     * until {@link #stop()} is called.
+     *
+     * @throws IOException if the port cannot be bound.
+     */
+    public void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new IoWorker();
+            Thread workerThread = new Thread(workers[i], "nio-io-" + i);
+            workerThread.setDaemon(true);
+            workerThread.start();
+        }
+        System.out.println("====== NIO server started on port " + port + " with " + workers.length + " I/O threads =======");
+
+        int nextWorker = 0;
+        try {
+            while (running) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException closed) {
+                    break;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                workers[nextWorker].register(channel);
+                nextWorker = (nextWorker + 1) % workers.length;
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes all sessions.
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            ServerMain.behandleException(e);
+        }
+        for (IoWorker worker : workers) {
+            if (worker != null) {
+                worker.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * One selector thread. All session state is only touched by this thread;
+     * other threads hand over work through the queues and wake it up.
+     */
+    private final class IoWorker implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<ParkedRequest> completions = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Subscription> pushes = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Session> journalled = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+        /**
+         * Set once the thread has left its loop; completions are then released
+         * by whoever queues them
+         */
+        private volatile boolean stopped = false;
+
+        IoWorker() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void completed(ParkedRequest parked) {
+            completions.add(parked);
+            if (stopped) {
+                releaseCompletions();
+            } else {
+                selector.wakeup();
+            }
+        }
+
+        void pushed(Subscription subscription) {
+            pushes.add(subscription);
+            selector.wakeup();
+        }
+
+        void durable(Session session) {
+            journalled.add(session);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = newChannels.poll()) != null) {
+                        try {
+                            Session session = new Session(this, channel, takeBuffer(), takeBuffer());
+                            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                        } catch (IOException e) {
+                            closeQuietly(channel);
+                        }
+                    }
+
+                    ParkedRequest parked;
+                    while ((parked = completions.poll()) != null) {
+                        parked.session.onCompleted(parked);
+                    }
+                    Subscription subscription;
+                    Session session;
+                    while ((subscription = pushes.poll()) != null) {
+                        subscription.session.process();
+                    }
+                    while ((session = journalled.poll()) != null) {
+                        session.journalCallbackPending = false;
+                        session.flush();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Session keySession = (Session) key.attachment();
+                        if (!key.isValid()) {
+                            keySession.close();
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            keySession.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            keySession.read();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                ServerMain.behandleException(e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Session) key.attachment()).close();
+                }
+                stopped = true;
+                releaseCompletions();
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Hands back the visitors of requests granted after their session
+         * stopped being served; nobody will answer or end them.
+         */
+        private void releaseCompletions() {
+            ParkedRequest parked;
+            while ((parked = completions.poll()) != null) {
+                if (parked.status == Protocol.STATUS_OK) {
+                    parked.visitorsMonitor.release(parked.count);
+                }
+            }
+        }
+
+        private ByteBuffer takeBuffer() {
+            ByteBuffer buffer = bufferPool.pollFirst();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(SESSION_BUFFER_SIZE);
+        }
+
+        private void returnBuffer(ByteBuffer buffer) {
+            buffer.clear();
+            bufferPool.addFirst(buffer);
+        }
+    }
+
+    /**
+     * A request of a session that waits in the VisitorsMonitor. It is handed
+     * to the I/O thread of its session once it was granted or timed out.
+     */
+    private final class ParkedRequest implements Runnable {
+        final Session session;
+        final VisitorsMonitor visitorsMonitor;
+        final int requestId;
+        final int count;
+        /**
+         * Registry of the visit if it was requested leased, otherwise null
+         */
+        final VisitRegistry visitRegistry;
+        Waiter waiter;
+        /**
+         * Only touched by the I/O thread
+         */
+        ScheduledFuture<?> timeout;
+        /**
+         * Response value once granted: the visit id if leased, otherwise the
+         * count. Only touched by the I/O thread.
+         */
+        int result;
+        volatile byte status = Protocol.STATUS_OK;
+
+        ParkedRequest(Session session, VisitorsMonitor visitorsMonitor, int requestId, int count,
+                      VisitRegistry visitRegistry) {
+            this.session = session;
+            this.visitorsMonitor = visitorsMonitor;
+            this.requestId = requestId;
+            this.count = count;
+            this.visitRegistry = visitRegistry;
+        }
+
+        /**
+         * @return the response to the granted request, negative if the
+         * registry had no room for the visit and took the visitors back.
+         */
+        int startVisit() {
+            result = visitRegistry != null ? visitRegistry.start(visitorsMonitor, count, session.entranceId) : count;
+            if (result < 0) {
+                status = Protocol.STATUS_ERROR;
+            }
+            return result;
+        }
+
+        /**
+         * Hands back the visitors of a granted request nobody will use.
+         */
+        void abandon() {
+            if (visitRegistry != null) {
+                visitRegistry.end(result);
+            } else {
+                visitorsMonitor.release(count);
+            }
+        }
+
+        /**
+         * Called by the VisitorsMonitor once the visitors were granted.
+         */
+        @Override
+        public void run() {
+            session.worker.completed(this);
+        }
+
+        /**
+         * Called by the deadline timer.
+         */
+        void expire() {
+            if (visitorsMonitor.expire(waiter)) {
+                status = Protocol.STATUS_TIMEOUT;
+                session.worker.completed(this);
+            }
+        }
+    }
+
+    /**
+     * Capacity updates of one tunnel for one session. Only the latest value
+     * is kept; the I/O thread writes it.
+     */
+    private static final class Subscription implements CapacityPublisher.Subscriber {
+        final Session session;
+        final TunnelRegistry.Tunnel tunnel;
+        final int requestId;
+        volatile int latestCapacity;
+        final AtomicBoolean queued = new AtomicBoolean();
+
+        Subscription(Session session, TunnelRegistry.Tunnel tunnel, int requestId) {
+            this.session = session;
+            this.tunnel = tunnel;
+            this.requestId = requestId;
+        }
+
+        /**
+         * Called by the CapacityPublisher thread.
+         */
+        @Override
+        public boolean push(int availableVisitors) {
+            if (session.closed) {
+                return false;
+            }
+            latestCapacity = availableVisitors;
+            if (queued.compareAndSet(false, true)) {
+                session.worker.pushed(this);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * State of one client connection.
+     */
+    private final class Session {
+        private final IoWorker worker;
+        private final SocketChannel channel;
+        private final ByteBuffer in;
+        private final ByteBuffer out;
+        private SelectionKey key;
+        private volatile boolean closed = false;
+        /**
+         * Tunnel of the previous operation, so most operations skip the registry
+         */
+        private TunnelRegistry.Tunnel lastTunnel;
+        /**
+         * Set by OP_IDENTIFY; the entrance of the visits this session starts
+         */
+        private int entranceId = VisitRegistry.UNKNOWN_ENTRANCE;
+        /**
+         * Requests waiting in the monitor
+         */
+        private final Set<ParkedRequest> parkedRequests = new HashSet<>();
+        /**
+         * Completed requests whose response did not fit into the output buffer yet
+         */
+        private final ArrayDeque<ParkedRequest> pendingResponses = new ArrayDeque<>();
+        /**
+         * Capacity subscriptions, at most one per tunnel
+         */
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        /**
+         * Journal position that must be durable before the output buffer is written
+         */
+        private long admittedSequence = 0;
+        private boolean journalCallbackPending = false;
+
+        Session(IoWorker worker, SocketChannel channel, ByteBuffer in, ByteBuffer out) {
+            this.worker = worker;
+            this.channel = channel;
+            this.in = in;
+            this.out = out;
+        }
+
+        void read() {
+            try {
+                if (channel.read(in) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            process();
+        }
+
+        /**
+         * Writes pending completions and pushes, then handles every complete frame
+         * in the input buffer as long as the output buffer can take its
+         * responses. Repeats while that makes progress, so nothing stays in
+         * the buffers waiting for the client to send more.
+         */
+        void process() {
+            while (!closed) {
+                while (!pendingResponses.isEmpty() && out.remaining() >= Protocol.frameBytes(1)) {
+                    ParkedRequest parked = pendingResponses.pollFirst();
+                    putFrame(parked.status, parked.requestId, parked.status == Protocol.STATUS_TIMEOUT ? 0 : parked.result);
+                }
+                for (Subscription subscription : subscriptions) {
+                    if (subscription.queued.get() && out.remaining() >= Protocol.frameBytes(1)) {
+                        subscription.queued.set(false);
+                        putFrame(Protocol.STATUS_OK, subscription.requestId, subscription.latestCapacity);
+                    }
+                }
+
+                boolean handled = false;
+                in.flip();
+                while (pendingResponses.isEmpty() && in.remaining() >= Protocol.HEADER_BYTES) {
+                    int opCount = in.getInt(in.position());
+                    if (!Protocol.isValidOpCount(opCount)) {
+                        in.compact();
+                        close();
+                        return;
+                    }
+                    int frameBytes = Protocol.frameBytes(opCount);
+                    if (in.remaining() < frameBytes || out.remaining() < frameBytes) {
+                        break;
+                    }
+                    in.getInt();
+                    handleFrame(opCount);
+                    handled = true;
+                }
+                in.compact();
+                int unwritten = out.position();
+                if (!write()) {
+                    break;
+                }
+                // Room made by the write may let a skipped frame or response in
+                if (!handled && out.position() >= unwritten) {
+                    break;
+                }
+            }
+            if (!closed) {
+                updateInterest();
+            }
+        }
+
+        /**
+         * Handles the operations of one frame and answers all that completed
+         * immediately in one response frame.
+         */
+        private void handleFrame(int opCount) {
+            int headerPosition = out.position();
+            out.putInt(0);
+            int responses = 0;
+            for (int i = 0; i < opCount; i++) {
+                byte opcode = in.get();
+                int requestId = in.getInt();
+                int value = in.getInt();
+                int arg = in.getInt();
+                int tunnelId = in.getInt();
+                if (handle(opcode, requestId, value, arg, tunnelId)) {
+                    responses++;
+                }
+            }
+            if (responses == 0) {
+                out.position(headerPosition);
+            } else {
+                out.putInt(headerPosition, responses);
+            }
+        }
+
+        /**
+         * @return true if a response was put into the output buffer.
+         */
+        private boolean handle(byte opcode, int requestId, int value, int arg, int tunnelId) {
+            try {
+                if (opcode == Protocol.OP_CREATE_TUNNEL) {
+                    tunnelRegistry.create(tunnelId, value);
+                    putResponse(Protocol.STATUS_OK, requestId, value);
+                    return true;
+                }
+                if (opcode == Protocol.OP_RENEW) {
+                    if (tunnelRegistry.renewVisit(value, tunnelId)) {
+                        putResponse(Protocol.STATUS_OK, requestId, value);
+                        return true;
+                    }
+                    return error(requestId);
+                }
+                if (opcode == Protocol.OP_END_VISIT) {
+                    int count = tunnelRegistry.endVisit(value, tunnelId, arg);
+                    if (count >= 0) {
+                        putResponse(Protocol.STATUS_OK, requestId, count);
+                        return true;
+                    }
+                    return error(requestId);
+                }
+                if (opcode == Protocol.OP_IDENTIFY) {
+                    entranceId = visits().identify(value);
+                    putResponse(Protocol.STATUS_OK, requestId, entranceId);
+                    return true;
+                }
+                if (opcode == Protocol.OP_STATS && VisitRegistry.isVisitStat(value)) {
+                    putResponse(Protocol.STATUS_OK, requestId, visits().readStat(value, arg));
+                    return true;
+                }
+                TunnelRegistry.Tunnel tunnel = tunnel(tunnelId);
+                VisitorsMonitor visitorsMonitor = tunnel.getVisitorsMonitor();
+                switch (opcode) {
+                    case Protocol.OP_QUERY:
+                        putResponse(Protocol.STATUS_OK, requestId, visitorsMonitor.getAvailableVisitors());
+                        return true;
+                    case Protocol.OP_REQUEST:
+                    case Protocol.OP_REQUEST_LEASED:
+                        if (arg < 0) {
+                            break;
+                        }
+                        ParkedRequest parked = new ParkedRequest(this, visitorsMonitor, requestId, value,
+                                opcode == Protocol.OP_REQUEST_LEASED ? visits() : null);
+                        Waiter waiter = visitorsMonitor.requestOrPark(value, parked);
+                        if (waiter == null) {
+                            admitted();
+                            if (parked.startVisit() < 0) {
+                                return error(requestId);
+                            }
+                            putResponse(Protocol.STATUS_OK, requestId, parked.result);
+                            return true;
+                        }
+                        park(parked, waiter, arg);
+                        return false;
+                    case Protocol.OP_TRY_REQUEST:
+                    case Protocol.OP_TRY_REQUEST_LEASED:
+                        VisitRegistry visitRegistry = opcode == Protocol.OP_TRY_REQUEST_LEASED ? visits() : null;
+                        int result = 0;
+                        if (visitorsMonitor.tryRequest(value)) {
+                            admitted();
+                            result = visitRegistry != null ? visitRegistry.start(visitorsMonitor, value, entranceId) : value;
+                        }
+                        if (result < 0) {
+                            break;
+                        }
+                        putResponse(Protocol.STATUS_OK, requestId, result);
+                        return true;
+                    case Protocol.OP_RELEASE:
+                        visitorsMonitor.release(value);
+                        putResponse(Protocol.STATUS_OK, requestId, value);
+                        return true;
+                    case Protocol.OP_STATS:
+                        putResponse(Protocol.STATUS_OK, requestId, visitorsMonitor.readStat(value, arg));
+                        return true;
+                    case Protocol.OP_SUBSCRIBE:
+                        if (tunnel.getCapacityPublisher() == null || isSubscribed(tunnel)) {
+                            break;
+                        }
+                        Subscription subscription = new Subscription(this, tunnel, requestId);
+                        subscriptions.add(subscription);
+                        tunnel.getCapacityPublisher().subscribe(subscription);
+                        return false;
+                    default:
+                        break;
+                }
+            } catch (IllegalArgumentException argEx) {
+                // answered as error below
+            }
+            return error(requestId);
+        }
+
+        private boolean error(int requestId) {
+            putResponse(Protocol.STATUS_ERROR, requestId, -1);
+            return true;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the server offers no leases.
+         */
+        private VisitRegistry visits() throws IllegalArgumentException {
+            VisitRegistry visitRegistry = tunnelRegistry.getVisits();
+            if (visitRegistry == null) {
+                throw new IllegalArgumentException("This server offers no leases");
+            }
+            return visitRegistry;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the server does not know the tunnel.
+         */
+        private TunnelRegistry.Tunnel tunnel(int tunnelId) throws IllegalArgumentException {
+            TunnelRegistry.Tunnel tunnel = lastTunnel;
+            if (tunnel == null || tunnel.getId() != tunnelId) {
+                tunnel = tunnelRegistry.require(tunnelId);
+                lastTunnel = tunnel;
+            }
+            return tunnel;
+        }
+
+        private boolean isSubscribed(TunnelRegistry.Tunnel tunnel) {
+            for (Subscription subscription : subscriptions) {
+                if (subscription.tunnel == tunnel) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void park(ParkedRequest parked, Waiter waiter, int timeoutMillis) {
+            parked.waiter = waiter;
+            parkedRequests.add(parked);
+            if (timeoutMillis > 0 && deadlineTimer != null) {
+                try {
+                    parked.timeout = deadlineTimer.schedule(parked::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException shutdown) {
+                    // Server is stopping: wait without a timeout
+                }
+            }
+        }
+
+        void onCompleted(ParkedRequest parked) {
+            parkedRequests.remove(parked);
+            boolean granted = parked.status == Protocol.STATUS_OK;
+            if (granted && parked.timeout != null) {
+                parked.timeout.cancel(false);
+            }
+            if (closed) {
+                if (granted) {
+                    // Nobody is left to use the visitors, hand them straight back
+                    parked.visitorsMonitor.release(parked.count);
+                }
+                return;
+            }
+            if (granted) {
+                admitted();
+                parked.startVisit();
+            }
+            pendingResponses.addLast(parked);
+            process();
+        }
+
+        /**
+         * Notes that the output confirms an admission the journal already holds.
+         */
+        private void admitted() {
+            AdmissionJournal journal = tunnelRegistry.getJournal();
+            if (journal != null) {
+                admittedSequence = journal.getAppendedSequence();
+            }
+        }
+
+        /**
+         * @return true while the output confirms admissions that are not on
+         * disk yet; the journal hands the session back to the I/O thread once
+         * they are. If the journal stopped writing, they never will be and
+         * the session is closed instead of confirming them.
+         */
+        private boolean waitingForJournal() {
+            AdmissionJournal journal = tunnelRegistry.getJournal();
+            if (journal == null || journal.isDurable(admittedSequence)) {
+                return false;
+            }
+            if (journal.hasStopped()) {
+                close();
+                return true;
+            }
+            if (!journalCallbackPending) {
+                journalCallbackPending = true;
+                journal.whenDurable(admittedSequence, () -> worker.durable(this));
+            }
+            return true;
+        }
+
+        /**
+         * Called when the socket accepts output again.
+         */
+        void flush() {
+            if (write()) {
+                process();
+            }
+        }
+
+        private void putFrame(byte status, int requestId, int value) {
+            out.putInt(1);
+            putResponse(status, requestId, value);
+        }
+
+        private void putResponse(byte status, int requestId, int value) {
+            out.put(status);
+            out.putInt(requestId);
+            out.putInt(value);
+            out.putInt(0);
+            out.putInt(0);
+        }
+
+        /**
+         * Writes as much pending output as the socket takes.
+         *
+         * @return false if the session had to be closed.
+         */
+        private boolean write() {
+            if (closed) {
+                return false;
+            }
+            if (waitingForJournal()) {
+                return !closed;
+            }
+            out.flip();
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                out.compact();
+                close();
+                return false;
+            }
+            out.compact();
+            return true;
+        }
+
+        private void updateInterest() {
+            int ops = 0;
+            if (in.hasRemaining()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (out.position() > 0 && !journalCallbackPending) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (key.isValid()) {
+                key.interestOps(ops);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Subscription subscription : subscriptions) {
+                subscription.tunnel.getCapacityPublisher().unsubscribe(subscription);
+            }
+            subscriptions.clear();
+            ParkedRequest parked;
+            while ((parked = pendingResponses.pollFirst()) != null) {
+                if (parked.status == Protocol.STATUS_OK) {
+                    parked.abandon();
+                }
+            }
+            for (ParkedRequest waiting : parkedRequests) {
+                if (waiting.visitorsMonitor.cancel(waiting.waiter) && waiting.timeout != null) {
+                    waiting.timeout.cancel(false);
+                }
+            }
+            parkedRequests.clear();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            worker.returnBuffer(in);
+            worker.returnBuffer(out);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -4,31 +4,193 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.IntFunction;
+
+import tunnel.common.Options;
+import tunnel.common.Protocol;
+import tunnel.common.TaskExecutors;
 
 /**
- * Server main application. Creates a VisitorsMonitor, listens for client
- * connections, and handles them in separate ServerThreads.
+ * Server main application. Creates the tunnels of a TunnelRegistry, each with
+ * its own VisitorsMonitor, listens for client
+ * connections, and handles them in ServerThreads run by the executor chosen
+ * with {@code --executor=platform|virtual|bounded}, or - with
+ * {@code --engine=nio} - on the selector threads of a NioServer.
+ * Benchmarks run it in-process and end it with {@link #stop()}.
  * (Admin console removed).
  */
 public class ServerMain {
 
     protected static final int PORT = 65535;
-    protected static VisitorsMonitor visitorsMonitor = null;
+    protected static final String ENGINE_BLOCKING = "blocking";
+    protected static final String ENGINE_NIO = "nio";
+    protected static final String MONITOR_SYNCHRONIZED = "synchronized";
+    protected static final String MONITOR_LOCKFREE = "lockfree";
+    protected static final int DEFAULT_IO_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    /**
+     * Tunnels whose statistics are printed one by one at shutdown; beyond
+     * that only the default tunnel and a count
+     */
+    protected static final int MAX_REPORTED_TUNNELS = 10;
+    protected static TunnelRegistry tunnelRegistry = null;
+    protected static ExecutorService sessionExecutor = null;
+    /**
+     * Writes the responses of parked requests. Separate from the sessions, so
+     * a bounded session pool whose threads are all taken by long-lived
+     * sessions cannot hold back a grant the monitor already counted.
+     */
+    protected static ExecutorService responseExecutor = null;
+    protected static ScheduledExecutorService publisherTimer = null;
+    protected static ScheduledExecutorService deadlineTimer = null;
+    protected static ScheduledExecutorService leaseTimer = null;
+    protected static AdmissionJournal admissionJournal = null;
+    protected static StateSnapshot stateSnapshot = null;
+    protected static ScheduledExecutorService snapshotTimer = null;
     private static volatile boolean serverIsRunning = true;
+    /**
+     * Tunnels of the latest server started in this JVM, reported at exit
+     */
+    private static volatile TunnelRegistry reportedRegistry = null;
+    private static boolean statsHookRegistered = false;
     private static ServerSocket serverSocket = null;
+    private static NioServer nioServer = null;
+    private static int port = PORT;
 
     /**
      * Initializes monitor, starts the server socket, handles client connections.
      *
-     * @param args Command line arguments (not used).
+     * @param args Command line arguments: {@code --monitor=synchronized|lockfree},
+     *             {@code --policy=fifo|smallest-first|aging} and {@code --aging-ms=N},
+     *             {@code --tunnels=N} tunnels (ids 0 to N-1, default 1) of
+     *             {@code --capacity=N} visitors each (default 50),
+     *             {@code --journal=FILE} to journal admissions and restore
+     *             them after a restart, compacted every
+     *             {@code --journal-compact-records=N} records,
+     *             {@code --snapshot=FILE} to keep the state in a
+     *             memory-mapped file, written every
+     *             {@code --snapshot-interval-ms=N} ms, and restore it after
+     *             a restart without a journal,
+     *             {@code --lease-ms=N} until an unrenewed leased visit
+     *             is released (default 10000),
+     *             {@code --engine=blocking|nio}, {@code --port=N} (default 65535),
+     *             {@code --io-threads=N} for the NIO engine,
+     *             {@code --executor=platform|virtual|bounded} and
+     *             {@code --max-threads=N} for the blocking engine.
      */
     public static void main(String[] args) {
-        visitorsMonitor = new VisitorsMonitor();
+        Options options;
+        try {
+            options = new Options(args);
+            port = options.getInt("port", PORT);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        serverIsRunning = true;
+        admissionJournal = null;
+        stateSnapshot = null;
+        snapshotTimer = null;
+        IntFunction<VisitorsMonitor> monitorFactory;
+        int tunnels;
+        int capacity;
+        long leaseMillis;
+        try {
+            monitorFactory = monitorFactory(options);
+            tunnels = options.getInt("tunnels", 1);
+            capacity = options.getInt("capacity", VisitorsMonitor.DEFAULT_MAX_VISITORS);
+            if (tunnels <= 0 || capacity <= 0) {
+                throw new IllegalArgumentException("--tunnels and --capacity must be positive");
+            }
+            leaseMillis = options.getLong("lease-ms", VisitRegistry.DEFAULT_LEASE_MILLIS);
+            if (leaseMillis < 2 * Protocol.LEASE_RENEW_MILLIS) {
+                throw new IllegalArgumentException("--lease-ms must be at least " + 2 * Protocol.LEASE_RENEW_MILLIS);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        publisherTimer = TaskExecutors.newTimer("capacity-publisher");
+        tunnelRegistry = new TunnelRegistry(monitorFactory, publisherTimer);
+        leaseTimer = TaskExecutors.newTimer("visit-leases");
+        tunnelRegistry.setVisits(new VisitRegistry(leaseMillis, leaseTimer));
+        Map<Integer, AdmissionJournal.TunnelState> recovered = null;
+        if (options.has("journal")) {
+            try {
+                Path journalPath = Paths.get(options.get("journal", ""));
+                recovered = AdmissionJournal.recover(journalPath);
+                admissionJournal = new AdmissionJournal(journalPath, recovered, AdmissionJournal.DEFAULT_CAPACITY,
+                        options.getLong("journal-compact-records", AdmissionJournal.DEFAULT_COMPACT_RECORDS));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Could not open journal: " + e.getMessage());
+                return;
+            }
+            admissionJournal.start();
+            tunnelRegistry.setJournal(admissionJournal);
+        }
+        Map<Integer, StateSnapshot.TunnelState> snapshot = null;
+        if (options.has("snapshot") && recovered == null) {
+            try {
+                snapshot = StateSnapshot.recover(Paths.get(options.get("snapshot", "")));
+            } catch (IOException e) {
+                System.err.println("Could not read state snapshot, starting empty: " + e.getMessage());
+            }
+        }
+        for (int id = Protocol.DEFAULT_TUNNEL; id < Protocol.DEFAULT_TUNNEL + tunnels; id++) {
+            tunnelRegistry.create(id, capacity);
+        }
+        if (recovered != null) {
+            restoreTunnels(recovered);
+        } else if (snapshot != null) {
+            restoreSnapshot(snapshot);
+        }
+        if (options.has("snapshot")) {
+            try {
+                // Own thread, so forcing the file never delays capacity pushes
+                snapshotTimer = TaskExecutors.newTimer("state-snapshot");
+                stateSnapshot = new StateSnapshot(Paths.get(options.get("snapshot", "")), tunnelRegistry,
+                        snapshotTimer, options.getLong("snapshot-interval-ms", StateSnapshot.DEFAULT_INTERVAL_MS));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Could not open state snapshot: " + e.getMessage());
+                snapshotTimer.shutdownNow();
+                closeStateFiles();
+                return;
+            }
+            stateSnapshot.start();
+        }
+        System.out.println("Admission policy: " + tunnelRegistry.get(Protocol.DEFAULT_TUNNEL).getVisitorsMonitor().getPolicyName()
+                + ", " + tunnels + " tunnel(s) of " + capacity + " visitors");
+        reportedRegistry = tunnelRegistry;
+        registerStatsHook();
+        deadlineTimer = TaskExecutors.newTimer("request-deadlines");
 
+        String engine = options.get("engine", ENGINE_BLOCKING);
+        if (ENGINE_NIO.equals(engine)) {
+            runNioServer(options);
+            return;
+        } else if (!ENGINE_BLOCKING.equals(engine)) {
+            System.err.println("Unknown engine '" + engine + "', expected " + ENGINE_BLOCKING + " or " + ENGINE_NIO);
+            return;
+        }
+        try {
+            sessionExecutor = TaskExecutors.sessionsFromOptions(options, "server-session");
+            responseExecutor = TaskExecutors.create(TaskExecutors.MODE_PLATFORM,
+                    TaskExecutors.DEFAULT_MAX_THREADS, "parked-response");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
 
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("====== Server started on port " + PORT + " =======");
+            synchronized (ServerMain.class) {
+                serverSocket = new ServerSocket(port);
+            }
+            System.out.println("====== Server started on port " + port + " =======");
             System.out.println("Waiting for client connections... (Stop with Ctrl+C)");
 
             while (serverIsRunning) {
@@ -36,7 +198,17 @@ public class ServerMain {
                     Socket clientSocket = serverSocket.accept();
 
                     if (serverIsRunning) {
-                        new ServerThread(clientSocket, visitorsMonitor).start();
+                        try {
+                            sessionExecutor.execute(new ServerThread(clientSocket, tunnelRegistry, responseExecutor, deadlineTimer));
+                        } catch (RejectedExecutionException full) {
+                            // Every session thread is taken by a connection that stays open
+                            System.err.println("Refusing connection from " + clientSocket.getInetAddress()
+                                    + ": all --max-threads session threads are busy");
+                            try {
+                                clientSocket.close();
+                            } catch (IOException ioex) {
+                            }
+                        }
                     } else {
                         try {
                             clientSocket.close();
@@ -65,16 +237,183 @@ public class ServerMain {
             }
 
         } catch (IOException e) {
-            System.err.println("FATAL: Could not listen on port " + PORT);
+            System.err.println("FATAL: Could not listen on port " + port);
             behandleException(e);
             serverIsRunning = false;
         } finally {
             System.out.println("Server main loop finished.");
             closeServerSocket();
+            sessionExecutor.shutdownNow();
+            responseExecutor.shutdown();
+            tunnelRegistry.stop();
+            publisherTimer.shutdownNow();
+            deadlineTimer.shutdownNow();
+            leaseTimer.shutdownNow();
+            closeStateFiles();
             System.out.println("Server resources potentially closed.");
         }
     }
 
+    private static void runNioServer(Options options) {
+        try {
+            NioServer server = new NioServer(port, tunnelRegistry, deadlineTimer,
+                    options.getInt("io-threads", DEFAULT_IO_THREADS));
+            synchronized (ServerMain.class) {
+                nioServer = server;
+            }
+            if (serverIsRunning) {
+                server.run();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        } catch (IOException e) {
+            System.err.println("FATAL: Could not listen on port " + port);
+            behandleException(e);
+        } finally {
+            synchronized (ServerMain.class) {
+                nioServer = null;
+            }
+            tunnelRegistry.stop();
+            publisherTimer.shutdownNow();
+            deadlineTimer.shutdownNow();
+            leaseTimer.shutdownNow();
+            closeStateFiles();
+            System.out.println("Server main loop finished.");
+        }
+    }
+
+    /**
+     * Prints the admission statistics of the latest server when the JVM
+     * exits. Registered once, however often main() runs in the same JVM.
+     */
+    private static synchronized void registerStatsHook() {
+        if (statsHookRegistered) {
+            return;
+        }
+        statsHookRegistered = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            TunnelRegistry registry = reportedRegistry;
+            AdmissionLog.console().flush();
+            reportAdmissionStats(registry);
+            VisitRegistry visits = registry.getVisits();
+            System.out.println("Visits: " + visits.getActiveVisits() + " active, " + visits.getExpiredVisits()
+                    + " expired");
+        }, "admission-stats"));
+    }
+
+    /**
+     * Reads {@code --monitor}, {@code --policy} and {@code --aging-ms}.
+     *
+     * @return creates the monitor of a tunnel from its capacity, each with its own policy instance.
+     * @throws IllegalArgumentException for an unknown monitor or policy.
+     */
+    private static IntFunction<VisitorsMonitor> monitorFactory(Options options) {
+        String monitor = options.get("monitor", MONITOR_SYNCHRONIZED);
+        if (!MONITOR_LOCKFREE.equals(monitor) && !MONITOR_SYNCHRONIZED.equals(monitor)) {
+            throw new IllegalArgumentException("Unknown monitor '" + monitor + "', expected " + MONITOR_SYNCHRONIZED
+                    + " or " + MONITOR_LOCKFREE);
+        }
+        boolean lockFree = MONITOR_LOCKFREE.equals(monitor);
+        String policy = options.has("policy") ? options.get("policy", "") : null;
+        long agingMillis = options.getLong("aging-ms", AgingAdmissionPolicy.DEFAULT_AGING_MILLIS);
+        if (policy != null) {
+            // Fails here rather than at the first tunnel
+            AdmissionPolicy.forName(policy, VisitorsMonitor.DEFAULT_MAX_VISITORS, agingMillis);
+        }
+        return capacity -> {
+            if (policy == null) {
+                return lockFree ? new LockFreeVisitorsMonitor(capacity) : new VisitorsMonitor(capacity);
+            }
+            AdmissionPolicy admissionPolicy = AdmissionPolicy.forName(policy, capacity, agingMillis);
+            return lockFree ? new LockFreeVisitorsMonitor(capacity, admissionPolicy)
+                    : new VisitorsMonitor(capacity, admissionPolicy);
+        };
+    }
+
+    /**
+     * Creates the tunnels that were created at runtime before the restart
+     * and puts the visitors the journal counts as inside back into all tunnels.
+     */
+    private static void restoreTunnels(Map<Integer, AdmissionJournal.TunnelState> recovered) {
+        int visitors = 0;
+        for (Map.Entry<Integer, AdmissionJournal.TunnelState> entry : recovered.entrySet()) {
+            visitors += restoreTunnel(entry.getKey(), entry.getValue().getCapacity(), entry.getValue().getOccupied());
+        }
+        System.out.println("Journal: restored " + recovered.size() + " tunnel(s) with " + visitors + " visitors inside");
+    }
+
+    /**
+     * Like restoreTunnels, from a state snapshot. Groups that were waiting
+     * have lost their connection and are only counted.
+     */
+    private static void restoreSnapshot(Map<Integer, StateSnapshot.TunnelState> snapshot) {
+        int visitors = 0;
+        int waitingGroups = 0;
+        for (Map.Entry<Integer, StateSnapshot.TunnelState> entry : snapshot.entrySet()) {
+            visitors += restoreTunnel(entry.getKey(), entry.getValue().getCapacity(), entry.getValue().getOccupied());
+            waitingGroups += entry.getValue().getWaitingGroups();
+        }
+        System.out.println("Snapshot: restored " + snapshot.size() + " tunnel(s) with " + visitors
+                + " visitors inside, " + waitingGroups + " waiting group(s) dropped");
+    }
+
+    /**
+     * Puts the visitors back into the tunnel. They stay inside until the
+     * entrances end their visits of the previous run, or are released by
+     * hand (OP_RELEASE); they never expire on their own.
+     *
+     * @return the visitors put back into the tunnel.
+     */
+    private static int restoreTunnel(int id, int capacity, int occupied) {
+        TunnelRegistry.Tunnel tunnel = tunnelRegistry.get(id);
+        if (tunnel == null) {
+            tunnel = tunnelRegistry.create(id, capacity);
+        }
+        return occupied > 0 ? tunnel.restore(occupied) : 0;
+    }
+
+    private static void closeStateFiles() {
+        if (stateSnapshot != null) {
+            stateSnapshot.close();
+            snapshotTimer.shutdownNow();
+        }
+        if (admissionJournal != null) {
+            admissionJournal.close();
+        }
+    }
+
+    private static void reportAdmissionStats(TunnelRegistry registry) {
+        if (registry.size() == 1) {
+            System.out.println(registry.get(Protocol.DEFAULT_TUNNEL).getVisitorsMonitor().reportAdmissionStats());
+            return;
+        }
+        int reported = 0;
+        for (TunnelRegistry.Tunnel tunnel : registry.getTunnels()) {
+            if (reported == MAX_REPORTED_TUNNELS) {
+                System.out.println("... and " + (registry.size() - reported) + " more tunnels");
+                break;
+            }
+            System.out.println("Tunnel " + tunnel.getId() + ": " + tunnel.getVisitorsMonitor().reportAdmissionStats());
+            reported++;
+        }
+    }
+
+    /**
+     * Stops a server started with main() in the same JVM: the accept loop
+     * ends and main() returns. Sessions of the blocking engine end when their
+     * clients disconnect, those of the NIO engine are closed.
+     */
+    public static void stop() {
+        serverIsRunning = false;
+        NioServer server;
+        synchronized (ServerMain.class) {
+            server = nioServer;
+        }
+        if (server != null) {
+            server.stop();
+        }
+        closeServerSocket();
+    }
 
     private static synchronized void closeServerSocket() {
         if (serverSocket != null && !serverSocket.isClosed()) {
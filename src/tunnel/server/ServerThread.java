@@ -3,24 +3,84 @@ package tunnel.server;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import tunnel.common.Protocol;
 
 /**
- * Der Thread liest vom Socket die Anzahl, und dabei werden die drei Fälle
- * (größer 0, kleiner 0 oder gleich 0) unterschieden und entsprechend am
- * VisitorsMonitor die Anfragen gestellt. Das Ergebnis wird an den Client
- * zurückgeschickt. Der ServerThread erhält den Socket des Clients und eine
- * Referenz auf VisitorsMonitor.
+ * Der Thread liest vom Socket die Frames des Clients (siehe Protocol) und
+ * stellt für jede Operation die entsprechende Anfrage am VisitorsMonitor des
+ * adressierten Tunnels. Die Ergebnisse werden an den Client zurückgeschickt,
+ * sobald sie feststehen. Der ServerThread erhält den Socket des Clients und
+ * eine Referenz auf die TunnelRegistry. Ausgeführt wird er vom Executor des
+ * ServerMain (Plattform- oder virtuelle Threads, siehe TaskExecutors).
  */
-public class ServerThread extends Thread {
+public class ServerThread implements Runnable {
     /**
      * Der Clientsocket, von welchem die Besucheranzahl gelesen werden kann
      */
     protected Socket client;
     /**
-     * VisitorsMonitor, an dem die Anfrage nach Besuchern bzw. die Rückgabe
-     * der Besucher nach Beendigung einer Besichtigung gestellt werden kann
+     * Die Tunnel des Servers; an deren VisitorsMonitor kann die Anfrage nach
+     * Besuchern bzw. die Rückgabe der Besucher nach Beendigung einer
+     * Besichtigung gestellt werden
+     */
+    protected TunnelRegistry tunnelRegistry;
+    /**
+     * Schreibt die Antworten von Anforderungen, die warten mussten. Ist er
+     * null, schreibt sie der Thread, der die Besucher zurückgegeben hat.
+     */
+    protected Executor responseExecutor;
+    /**
+     * Lässt wartende Anforderungen nach ihrer Frist ablaufen. Ist er null,
+     * warten Anforderungen ohne Frist.
+     */
+    protected ScheduledExecutorService deadlineTimer;
+
+    private volatile DataOutputStream out;
+    /**
+     * Wird unter der Sperre von out gesetzt, danach wird nichts mehr geschrieben
+     */
+    private boolean closed = false;
+    /**
+     * Der zuletzt adressierte Tunnel, damit nicht jede Operation in der
+     * TunnelRegistry nachschlagen muss
+     */
+    private TunnelRegistry.Tunnel lastTunnel;
+    /**
+     * Der Eingang der Session, gesetzt durch OP_IDENTIFY
+     */
+    private int entranceId = VisitRegistry.UNKNOWN_ENTRANCE;
+    /**
+     * Abonnements der Session nach Tunnel
+     */
+    private final Map<TunnelRegistry.Tunnel, CapacityPublisher.Subscriber> subscribers = new HashMap<>();
+    /**
+     * Anforderungen der Session, die im VisitorsMonitor warten. Schließt der
+     * Client die Verbindung, werden sie zurückgezogen.
+     */
+    private final Set<ParkedRequest> parkedRequests = ConcurrentHashMap.newKeySet();
+    /**
+     * Die sofort feststehenden Antworten des gerade bearbeiteten Frames
+     */
+    private final byte[] responseStatus = new byte[Protocol.MAX_OPS_PER_FRAME];
+    private final int[] responseIds = new int[Protocol.MAX_OPS_PER_FRAME];
+    private final int[] responseValues = new int[Protocol.MAX_OPS_PER_FRAME];
+    private int responseCount = 0;
+    /**
+     * Journalposition, die dauerhaft sein muss, bevor der Antwort-Frame
+     * Vergaben bestätigt; 0 falls er keine enthält
      */
-    protected VisitorsMonitor visitorsMonitor;
+    private long admittedSequence = 0;
 
     /**
      * Konstruktor erhält den Clientsocket und den VisitorsMonitor als
@@ -29,77 +89,563 @@ public class ServerThread extends Thread {
      * getInetAddress() erfragt werden.
      *
      * @param client
-     * @param visitorsMonitor
+     * @param visitorsMonitor Monitor des einzigen Tunnels (Protocol.DEFAULT_TUNNEL)
      */
     public ServerThread(Socket client, VisitorsMonitor visitorsMonitor) {
-        if (client == null || visitorsMonitor == null) {
-            throw new IllegalArgumentException("Socket/Monitor is null");
+        this(client, TunnelRegistry.of(visitorsMonitor, null), null, null);
+    }
+
+    /**
+     * Konstruktor für einen Server mit mehreren Tunneln.
+     *
+     * @param client
+     * @param tunnelRegistry   die Tunnel, die der Client adressieren kann
+     * @param responseExecutor schreibt die Antworten wartender Anforderungen;
+     *                         ist er null, schreibt sie der Thread, der die
+     *                         Besucher zurückgegeben hat
+     * @param deadlineTimer    überwacht die Fristen wartender Anforderungen;
+     *                         ist er null, warten sie ohne Frist
+     */
+    public ServerThread(Socket client, TunnelRegistry tunnelRegistry, Executor responseExecutor,
+                        ScheduledExecutorService deadlineTimer) {
+        if (client == null || tunnelRegistry == null) {
+            throw new IllegalArgumentException("Socket/Registry is null");
         }
         this.client = client;
-        this.visitorsMonitor = visitorsMonitor;
+        this.tunnelRegistry = tunnelRegistry;
+        this.responseExecutor = responseExecutor;
+        this.deadlineTimer = deadlineTimer;
     }
 
     /**
-     * Diese Methode liest zuerst vom Clientsocket die Anzahl. Je nachdem,
-     * welche Werte in anzahl stehen, werden folgende Aufgaben erledigt:
+     * Diese Methode liest vom Clientsocket so lange Frames (siehe Protocol),
+     * bis der Client die Verbindung schließt. Die Verbindung bleibt also über
+     * viele Anfragen hinweg bestehen (eine Session pro Eingang), und ein Frame
+     * kann viele Operationen enthalten. Je nach Opcode werden folgende Aufgaben
+     * erledigt:
      *
-     * <b>anzahl == 0</b>
+     * <b>OP_QUERY</b>
      * Es wird die Anzahl der am VisitorsMonitor momentan verfügbaren Benutzer
      * abgefragt und an den Client zurückgeschickt.
      *
-     * <b>anzahl > 0</b>
-     * Es werden am VisitorsMonitor die Benutzer angefordert.
+     * <b>OP_REQUEST / OP_TRY_REQUEST</b>
+     * Es werden am VisitorsMonitor die Benutzer angefordert. Muss eine
+     * Anforderung warten, liest die Session trotzdem weiter; die Antwort wird
+     * geschickt, sobald der VisitorsMonitor die Besucher vergibt oder die Frist
+     * der Anforderung abläuft (STATUS_TIMEOUT). Schließt der Client die
+     * Verbindung, werden seine wartenden Anforderungen zurückgezogen. Bei
+     * OP_TRY_REQUEST wird nicht gewartet: die Antwort ist 0, falls die
+     * Besucher gerade nicht verfügbar sind.
+     *
+     * <b>OP_REQUEST_LEASED / OP_TRY_REQUEST_LEASED</b>
+     * Wie oben, die Besichtigung bekommt aber eine ID und einen Lease in der
+     * VisitRegistry des Servers. Die Antwort ist die ID der Besichtigung.
+     *
+     * <b>OP_IDENTIFY</b>
+     * Die Session bekommt die ID ihres Eingangs, die bisherige nach einem
+     * Verbindungsabbruch oder eine neue. Die Besichtigungen der Session
+     * zählen für diesen Eingang.
      *
-     * <b>anzahl < 0</b>
+     * <b>OP_RELEASE</b>
      * Es werden dem VisitorsMonitor die Anzahl an Benutzer zurückgegeben.
+     *
+     * <b>OP_RENEW / OP_END_VISIT</b>
+     * Verlängert den Lease einer Besichtigung bzw. beendet sie und gibt ihre
+     * Besucher zurück. Die Besichtigung wird über ihre ID angesprochen.
+     * Besichtigungen von vor einem Neustart geben ihre Besucher aus der
+     * wiederhergestellten Belegung des Tunnels zurück (siehe TunnelRegistry).
+     *
+     * <b>OP_SUBSCRIBE</b>
+     * Der Server schickt ab jetzt bei jeder Änderung die verfügbaren Besucher
+     * unter der Request-ID des Abonnements, bis der Client die Verbindung
+     * schließt.
+     *
+     * <b>OP_CREATE_TUNNEL</b>
+     * Legt einen neuen Tunnel mit der übergebenen Kapazität an.
+     *
+     * Jede Operation bezieht sich auf den Tunnel, dessen ID sie mitbringt.
+     *
+     * Alle Antworten, die beim Bearbeiten eines Frames sofort feststehen,
+     * werden gemeinsam in einem Frame zurückgeschickt.
      */
     @Override
     public void run() {
-        int responseCode = -1;
-
-        try (DataInputStream inputDataStream = new DataInputStream(client.getInputStream());
-             DataOutputStream outputDataStream = new DataOutputStream(client.getOutputStream())) {
-
-            int clientRequestCode = inputDataStream.readInt();
-
-            try {
-                if (clientRequestCode > 0) {
-                    visitorsMonitor.request(clientRequestCode);
-                    responseCode = clientRequestCode;
+        try {
+            client.setTcpNoDelay(true);
+        } catch (SocketException ignored) {
+        }
 
-                } else if (clientRequestCode < 0) {
-                    int numLeaving = -clientRequestCode;
-                    visitorsMonitor.release(numLeaving);
-                    responseCode = numLeaving;
+        try (DataInputStream inputDataStream = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+             DataOutputStream outputDataStream = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            this.out = outputDataStream;
 
-                } else {
-                    int availableSlots = visitorsMonitor.getAvailableVisitors();
-                    responseCode = availableSlots;
+            while (!Thread.currentThread().isInterrupted()) {
+                int opCount = inputDataStream.readInt();
+                Protocol.checkOpCount(opCount);
+                responseCount = 0;
+                admittedSequence = 0;
+                for (int i = 0; i < opCount; i++) {
+                    byte opcode = inputDataStream.readByte();
+                    int requestId = inputDataStream.readInt();
+                    int value = inputDataStream.readInt();
+                    int arg = inputDataStream.readInt();
+                    int tunnelId = inputDataStream.readInt();
+                    handleOp(opcode, requestId, value, arg, tunnelId);
+                }
+                if (responseCount > 0) {
+                    awaitJournal(admittedSequence);
+                    synchronized (outputDataStream) {
+                        writeFrame(responseCount);
+                    }
                 }
-            } catch (InterruptedException interruptEx) {
-                Thread.currentThread().interrupt();
-                responseCode = -1;
-            } catch (IllegalArgumentException argEx) {
-                responseCode = -1;
             }
 
-            outputDataStream.writeInt(responseCode);
-            outputDataStream.flush();
-
         } catch (EOFException | SocketException networkCloseEx) {
+            // Client hat die Session beendet
 
         } catch (IOException ioEx) {
 
         } catch (Exception generalEx) {
 
         } finally {
-            try {
-                if (client != null && !client.isClosed()) {
-                    client.close();
+            closeSession();
+        }
+    }
+
+    /**
+     * Bearbeitet eine einzelne Operation eines Frames. Steht die Antwort sofort
+     * fest, wird sie für den Antwort-Frame vorgemerkt.
+     *
+     * @param opcode    einer der OP_-Codes aus Protocol
+     * @param requestId vom Client gewählte ID, wird in der Antwort zurückgeschickt
+     * @param value     Anzahl der Besucher, bei OP_RENEW und OP_END_VISIT die
+     *                  ID der Besichtigung, bei OP_IDENTIFY die bisherige ID
+     *                  des Eingangs
+     * @param arg       Frist einer Anforderung in Millisekunden, 0 für keine;
+     *                  bei OP_STATS das Perzentil in Promille, bei
+     *                  OP_END_VISIT die Anzahl der Besucher der Besichtigung
+     * @param tunnelId  ID des adressierten Tunnels
+     */
+    protected void handleOp(byte opcode, int requestId, int value, int arg, int tunnelId) {
+        try {
+            if (opcode == Protocol.OP_CREATE_TUNNEL) {
+                tunnelRegistry.create(tunnelId, value);
+                addResponse(Protocol.STATUS_OK, requestId, value);
+                return;
+            }
+            if (opcode == Protocol.OP_RENEW || opcode == Protocol.OP_END_VISIT) {
+                handleVisitOp(opcode, requestId, value, arg, tunnelId);
+                return;
+            }
+            if (opcode == Protocol.OP_IDENTIFY) {
+                entranceId = visits().identify(value);
+                addResponse(Protocol.STATUS_OK, requestId, entranceId);
+                return;
+            }
+            if (opcode == Protocol.OP_STATS && VisitRegistry.isVisitStat(value)) {
+                addResponse(Protocol.STATUS_OK, requestId, visits().readStat(value, arg));
+                return;
+            }
+            TunnelRegistry.Tunnel tunnel = tunnel(tunnelId);
+            VisitorsMonitor visitorsMonitor = tunnel.getVisitorsMonitor();
+            switch (opcode) {
+                case Protocol.OP_QUERY:
+                    addResponse(Protocol.STATUS_OK, requestId, visitorsMonitor.getAvailableVisitors());
+                    break;
+                case Protocol.OP_REQUEST:
+                case Protocol.OP_REQUEST_LEASED:
+                    if (arg < 0) {
+                        throw new IllegalArgumentException("Timeout must not be negative!");
+                    }
+                    ParkedRequest parked = new ParkedRequest(visitorsMonitor, requestId, value,
+                            opcode == Protocol.OP_REQUEST_LEASED ? visits() : null);
+                    Waiter waiter = visitorsMonitor.requestOrPark(value, parked);
+                    if (waiter == null) {
+                        admitted();
+                        int visit = parked.startVisit();
+                        addResponse(visit < 0 ? Protocol.STATUS_ERROR : Protocol.STATUS_OK, requestId, visit);
+                    } else {
+                        parked.park(waiter, arg);
+                    }
+                    break;
+                case Protocol.OP_TRY_REQUEST:
+                case Protocol.OP_TRY_REQUEST_LEASED:
+                    VisitRegistry visitRegistry = opcode == Protocol.OP_TRY_REQUEST_LEASED ? visits() : null;
+                    int result = 0;
+                    if (visitorsMonitor.tryRequest(value)) {
+                        admitted();
+                        result = visitRegistry != null ? visitRegistry.start(visitorsMonitor, value, entranceId) : value;
+                    }
+                    addResponse(result < 0 ? Protocol.STATUS_ERROR : Protocol.STATUS_OK, requestId, result);
+                    break;
+                case Protocol.OP_RELEASE:
+                    visitorsMonitor.release(value);
+                    addResponse(Protocol.STATUS_OK, requestId, value);
+                    break;
+                case Protocol.OP_STATS:
+                    addResponse(Protocol.STATUS_OK, requestId, visitorsMonitor.readStat(value, arg));
+                    break;
+                case Protocol.OP_SUBSCRIBE:
+                    if (!subscribe(tunnel, requestId)) {
+                        addResponse(Protocol.STATUS_ERROR, requestId, -1);
+                    }
+                    break;
+                default:
+                    addResponse(Protocol.STATUS_ERROR, requestId, -1);
+            }
+        } catch (IllegalArgumentException argEx) {
+            addResponse(Protocol.STATUS_ERROR, requestId, -1);
+        }
+    }
+
+    /**
+     * Verlängert bzw. beendet die Besichtigung mit der ID visitId. Stammt sie
+     * von vor einem Neustart, gibt das Beenden count der wiederhergestellten
+     * Besucher des Tunnels zurück.
+     */
+    private void handleVisitOp(byte opcode, int requestId, int visitId, int count, int tunnelId) {
+        if (opcode == Protocol.OP_RENEW) {
+            if (tunnelRegistry.renewVisit(visitId, tunnelId)) {
+                addResponse(Protocol.STATUS_OK, requestId, visitId);
+            } else {
+                addResponse(Protocol.STATUS_ERROR, requestId, -1);
+            }
+        } else {
+            int ended = tunnelRegistry.endVisit(visitId, tunnelId, count);
+            addResponse(ended < 0 ? Protocol.STATUS_ERROR : Protocol.STATUS_OK, requestId, ended);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException falls der Server keine Leases anbietet
+     */
+    private VisitRegistry visits() throws IllegalArgumentException {
+        VisitRegistry visitRegistry = tunnelRegistry.getVisits();
+        if (visitRegistry == null) {
+            throw new IllegalArgumentException("This server offers no leases");
+        }
+        return visitRegistry;
+    }
+
+    /**
+     * @throws IllegalArgumentException falls der Server den Tunnel nicht kennt
+     */
+    private TunnelRegistry.Tunnel tunnel(int tunnelId) throws IllegalArgumentException {
+        TunnelRegistry.Tunnel tunnel = lastTunnel;
+        if (tunnel == null || tunnel.getId() != tunnelId) {
+            tunnel = tunnelRegistry.require(tunnelId);
+            lastTunnel = tunnel;
+        }
+        return tunnel;
+    }
+
+    /**
+     * Merkt vor, dass der Antwort-Frame eine Vergabe bestätigt, die schon im
+     * Journal eingetragen ist.
+     */
+    private void admitted() {
+        AdmissionJournal journal = tunnelRegistry.getJournal();
+        if (journal != null) {
+            admittedSequence = journal.getAppendedSequence();
+        }
+    }
+
+    /**
+     * Wartet, bis das Journal bis sequence dauerhaft geschrieben ist, damit
+     * der Client keine Vergabe bestätigt bekommt, die ein Absturz vergessen
+     * könnte.
+     *
+     * @throws IOException falls das Journal nicht mehr schreibt oder der
+     *                     Thread beim Warten unterbrochen wurde; die Vergabe
+     *                     darf dann nicht bestätigt werden
+     */
+    private void awaitJournal(long sequence) throws IOException {
+        AdmissionJournal journal = tunnelRegistry.getJournal();
+        if (journal == null || sequence == 0) {
+            return;
+        }
+        try {
+            journal.awaitDurable(sequence);
+        } catch (InterruptedException e) {
+            // Session wird beendet, ohne dass die Vergabe dauerhaft sein muss
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the admission journal");
+        }
+    }
+
+    private void addResponse(byte status, int requestId, int value) {
+        responseStatus[responseCount] = status;
+        responseIds[responseCount] = requestId;
+        responseValues[responseCount] = value;
+        responseCount++;
+    }
+
+    /**
+     * Eine Anforderung der Session, die im VisitorsMonitor wartet. run() wird
+     * vom VisitorsMonitor aufgerufen, sobald die Besucher vergeben sind.
+     */
+    private final class ParkedRequest implements Runnable {
+        private final VisitorsMonitor visitorsMonitor;
+        private final int requestId;
+        private final int count;
+        /**
+         * Falls nicht null, bekommt die Besichtigung einen Lease
+         */
+        private final VisitRegistry visitRegistry;
+        /**
+         * Eingang der Session beim Anfordern
+         */
+        private final int entrance;
+        private Waiter waiter;
+        private volatile ScheduledFuture<?> timeout;
+
+        ParkedRequest(VisitorsMonitor visitorsMonitor, int requestId, int count, VisitRegistry visitRegistry) {
+            this.visitorsMonitor = visitorsMonitor;
+            this.requestId = requestId;
+            this.count = count;
+            this.visitRegistry = visitRegistry;
+            this.entrance = entranceId;
+        }
+
+        /**
+         * @return die Antwort auf die vergebene Anforderung: die ID der
+         * Besichtigung mit Lease, sonst die Anzahl der Besucher; -1 falls die
+         * VisitRegistry voll ist und die Besucher zurückgenommen hat
+         */
+        int startVisit() {
+            return visitRegistry != null ? visitRegistry.start(visitorsMonitor, count, entrance) : count;
+        }
+
+        /**
+         * Gibt die Besucher zurück, deren Vergabe niemand mehr entgegennimmt.
+         */
+        void abandon(int result) {
+            if (visitRegistry != null) {
+                visitRegistry.end(result);
+            } else {
+                visitorsMonitor.release(count);
+            }
+        }
+
+        void park(Waiter waiter, int timeoutMillis) {
+            this.waiter = waiter;
+            parkedRequests.add(this);
+            if (waiter.granted) {
+                // Schon vergeben, bevor sie vorgemerkt war
+                parkedRequests.remove(this);
+                return;
+            }
+            if (timeoutMillis > 0 && deadlineTimer != null) {
+                try {
+                    timeout = deadlineTimer.schedule(this::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException shutdown) {
+                    // Server wird beendet: ohne Frist warten
+                }
+            }
+        }
+
+        /**
+         * Die Antwort schreibt der responseExecutor, damit der Thread, der die
+         * Besucher zurückgegeben hat, nicht am Socket dieser Session hängen
+         * bleibt.
+         */
+        @Override
+        public void run() {
+            parkedRequests.remove(this);
+            ScheduledFuture<?> pendingTimeout = timeout;
+            if (pendingTimeout != null) {
+                pendingTimeout.cancel(false);
+            }
+            AdmissionJournal journal = tunnelRegistry.getJournal();
+            long sequence = journal != null ? journal.getAppendedSequence() : 0;
+            int result = startVisit();
+            Runnable response = () -> {
+                try {
+                    awaitJournal(sequence);
+                } catch (IOException journalStopped) {
+                    // Nicht dauerhaft: statt zu bestätigen die Session beenden
+                    abandon(result);
+                    closeClient();
+                    return;
+                }
+                if (!writeSingle(result < 0 ? Protocol.STATUS_ERROR : Protocol.STATUS_OK, requestId, result)) {
+                    // Niemand nimmt die Besucher mehr entgegen
+                    abandon(result);
+                }
+            };
+            if (responseExecutor != null) {
+                try {
+                    responseExecutor.execute(response);
+                    return;
+                } catch (RejectedExecutionException shutdown) {
+                    // Executor wird beendet: direkt antworten
+                }
+            }
+            response.run();
+        }
+
+        private void expire() {
+            if (visitorsMonitor.expire(waiter)) {
+                parkedRequests.remove(this);
+                writeSingle(Protocol.STATUS_TIMEOUT, requestId, 0);
+            }
+        }
+
+        void cancel() {
+            if (visitorsMonitor.cancel(waiter) && timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Meldet die Session beim CapacityPublisher des Tunnels an. Die Updates
+     * schreibt der responseExecutor, nicht der Publisher-Thread, den sich alle
+     * Sessions teilen (siehe Subscription).
+     *
+     * @return false, falls der Tunnel keine Abonnements anbietet oder die
+     * Session schon eines für ihn hat
+     */
+    private boolean subscribe(TunnelRegistry.Tunnel tunnel, int requestId) {
+        CapacityPublisher capacityPublisher = tunnel.getCapacityPublisher();
+        if (capacityPublisher == null || subscribers.containsKey(tunnel)) {
+            return false;
+        }
+        CapacityPublisher.Subscriber subscriber = new Subscription(requestId);
+        subscribers.put(tunnel, subscriber);
+        capacityPublisher.subscribe(subscriber);
+        return true;
+    }
+
+    /**
+     * Abonnement der Session. Der Publisher-Thread legt nur die neueste
+     * Kapazität ab; geschrieben wird sie vom responseExecutor, höchstens von
+     * einem Task je Abonnement. Ein langsamer Client hält so nur diesen Task
+     * auf und nicht die Updates aller anderen, und Updates, die während des
+     * Schreibens kommen, werden zu einem zusammengefasst.
+     */
+    private final class Subscription implements CapacityPublisher.Subscriber {
+        private final int requestId;
+        private volatile int latestCapacity;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        /**
+         * Gesetzt, sobald ein Update nicht mehr geschrieben werden konnte
+         */
+        private volatile boolean gone = false;
+
+        Subscription(int requestId) {
+            this.requestId = requestId;
+        }
+
+        /**
+         * Wird vom Publisher-Thread aufgerufen und blockiert nicht.
+         */
+        @Override
+        public boolean push(int availableVisitors) {
+            if (gone) {
+                return false;
+            }
+            latestCapacity = availableVisitors;
+            if (queued.compareAndSet(false, true)) {
+                if (responseExecutor == null) {
+                    write();
+                } else {
+                    try {
+                        responseExecutor.execute(this::write);
+                    } catch (RejectedExecutionException shutdown) {
+                        queued.set(false);
+                    }
+                }
+            }
+            return !gone;
+        }
+
+        private void write() {
+            int written;
+            do {
+                written = latestCapacity;
+                if (!writeSingle(Protocol.STATUS_OK, requestId, written)) {
+                    gone = true;
+                    return;
                 }
-            } catch (IOException closeEx) {
+                // Erst nach dem Schreiben zurückgesetzt, damit nie zwei Tasks
+                // gleichzeitig schreiben; ein Update dazwischen schreibt dieser
+                queued.set(false);
+            } while (latestCapacity != written && queued.compareAndSet(false, true));
+        }
+    }
 
+    /**
+     * Schickt eine einzelne Antwort in einem eigenen Frame.
+     *
+     * @return false, falls die Session schon geschlossen ist
+     */
+    private boolean writeSingle(byte status, int requestId, int value) {
+        DataOutputStream outputDataStream = out;
+        if (outputDataStream == null) {
+            return false;
+        }
+        synchronized (outputDataStream) {
+            if (closed) {
+                return false;
+            }
+            try {
+                outputDataStream.writeInt(1);
+                outputDataStream.writeByte(status);
+                outputDataStream.writeInt(requestId);
+                outputDataStream.writeInt(value);
+                outputDataStream.writeInt(0);
+                outputDataStream.writeInt(0);
+                outputDataStream.flush();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private void writeFrame(int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeByte(responseStatus[i]);
+            out.writeInt(responseIds[i]);
+            out.writeInt(responseValues[i]);
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+        out.flush();
+    }
+
+    private void closeSession() {
+        DataOutputStream outputDataStream = out;
+        if (outputDataStream != null) {
+            synchronized (outputDataStream) {
+                closed = true;
             }
+        } else {
+            closed = true;
+        }
+        for (Map.Entry<TunnelRegistry.Tunnel, CapacityPublisher.Subscriber> subscription : subscribers.entrySet()) {
+            subscription.getKey().getCapacityPublisher().unsubscribe(subscription.getValue());
+        }
+        subscribers.clear();
+        for (ParkedRequest parked : parkedRequests) {
+            parked.cancel();
+        }
+        parkedRequests.clear();
+        closeClient();
+    }
+
+    /**
+     * Schließt den Socket; der Thread der Session beendet sie dann.
+     */
+    private void closeClient() {
+        try {
+            if (client != null && !client.isClosed()) {
+                client.close();
+            }
+        } catch (IOException closeEx) {
+
         }
     }
 }
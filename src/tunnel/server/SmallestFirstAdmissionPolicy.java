@@ -0,0 +1,67 @@
+package tunnel.server;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+
+/**
+ * Admits the smallest waiting group that fits, groups of the same size in
+ * arrival order. This packs the tunnel well, but a large group can wait as
+ * long as smaller ones keep arriving.
+ */
+public class SmallestFirstAdmissionPolicy implements AdmissionPolicy {
+
+    /**
+     * Waiting groups per size (index = visitors), each in arrival order
+     */
+    private final ArrayDeque<Waiter>[] waitersBySize;
+    /**
+     * Sizes for which a group is waiting
+     */
+    private final BitSet waitingSizes;
+    private int size = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SmallestFirstAdmissionPolicy(int maxVisitors) {
+        waitersBySize = new ArrayDeque[maxVisitors + 1];
+        for (int visitors = 1; visitors <= maxVisitors; visitors++) {
+            waitersBySize[visitors] = new ArrayDeque<>();
+        }
+        waitingSizes = new BitSet(maxVisitors + 1);
+    }
+
+    @Override
+    public String getName() {
+        return SMALLEST_FIRST;
+    }
+
+    @Override
+    public void add(Waiter waiter) {
+        waitersBySize[waiter.count].addLast(waiter);
+        waitingSizes.set(waiter.count);
+        size++;
+    }
+
+    @Override
+    public boolean remove(Waiter waiter) {
+        ArrayDeque<Waiter> queue = waitersBySize[waiter.count];
+        if (!queue.remove(waiter)) {
+            return false;
+        }
+        if (queue.isEmpty()) {
+            waitingSizes.clear(waiter.count);
+        }
+        size--;
+        return true;
+    }
+
+    @Override
+    public Waiter next(int availableVisitors, long nowNanos) {
+        int smallest = waitingSizes.nextSetBit(1);
+        return smallest >= 0 && smallest <= availableVisitors ? waitersBySize[smallest].peekFirst() : null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
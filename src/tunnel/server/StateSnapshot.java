@@ -0,0 +1,355 @@
+package tunnel.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The state of all tunnels of a TunnelRegistry in a memory-mapped file that
+ * is overwritten in place: capacity, occupied visitors and waiting groups per
+ * tunnel. A restarted server maps the file and is back where it was after
+ * reading a few kilobytes, without replaying a journal.
+ * <p>
+ * The file has two slots, A and B. Every {@link #DEFAULT_INTERVAL_MS} ms a
+ * timer task copies the current state into the slot that does not hold the
+ * latest snapshot and forces it to disk; nothing is written while the state
+ * does not change. Each slot starts with a header of magic number, format
+ * version, generation and tunnel count, and ends the header with a CRC32 of
+ * header and entries. Recovery takes the valid slot with the higher
+ * generation, so a write torn by a crash loses at most one interval and
+ * never yields a mix of two snapshots. If neither slot is valid the server
+ * starts empty.
+ * <p>
+ * Waiters cannot be resumed, their connections are gone with the old
+ * process; their number is kept so the restart can report it. The snapshot
+ * lags behind by up to one interval; with an AdmissionJournal, which is
+ * exact, the server restores from the journal instead.
+ */
+public class StateSnapshot implements Closeable {
+
+    public static final long DEFAULT_INTERVAL_MS = 50L;
+    /**
+     * Tunnels a new file has room for; it grows when more are created
+     */
+    protected static final int INITIAL_TUNNELS = 64;
+
+    private static final int MAGIC = 0x544E5353;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+    private static final int CRC_OFFSET = HEADER_BYTES - Integer.BYTES;
+    private static final int ENTRY_BYTES = 4 * Integer.BYTES;
+
+    /**
+     * One tunnel as recorded in the snapshot.
+     */
+    public static final class TunnelState {
+        private final int capacity;
+        private final int occupied;
+        private final int waitingGroups;
+
+        TunnelState(int capacity, int occupied, int waitingGroups) {
+            this.capacity = capacity;
+            this.occupied = occupied;
+            this.waitingGroups = waitingGroups;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public int getOccupied() {
+            return occupied;
+        }
+
+        /**
+         * @return groups that were waiting when the snapshot was taken.
+         */
+        public int getWaitingGroups() {
+            return waitingGroups;
+        }
+    }
+
+    private final Path path;
+    private final TunnelRegistry tunnelRegistry;
+    private final ScheduledExecutorService snapshotTimer;
+    private final long intervalMillis;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int slotTunnels;
+    /**
+     * Generation of the last snapshot written; the next goes to slot generation+1 & 1
+     */
+    private long generation;
+    private long lastChecksum = -1L;
+    private ByteBuffer scratch;
+    private ScheduledFuture<?> task;
+    private boolean closed;
+
+    /**
+     * Opens or creates the file; existing snapshots stay readable until the
+     * first write. Start writing with {@link #start()}.
+     *
+     * @param path           Snapshot file.
+     * @param tunnelRegistry Tunnels to write.
+     * @param snapshotTimer  Runs the snapshot task.
+     * @param intervalMillis Time between two snapshots.
+     * @throws IOException if the file cannot be mapped.
+     */
+    public StateSnapshot(Path path, TunnelRegistry tunnelRegistry, ScheduledExecutorService snapshotTimer,
+                         long intervalMillis) throws IOException {
+        if (tunnelRegistry == null || snapshotTimer == null) {
+            throw new IllegalArgumentException("Registry/Timer is null");
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+        this.path = path;
+        this.tunnelRegistry = tunnelRegistry;
+        this.snapshotTimer = snapshotTimer;
+        this.intervalMillis = intervalMillis;
+        generation = latestGeneration(path);
+        map(Math.max(Math.max(INITIAL_TUNNELS, tunnelRegistry.size()), existingSlotTunnels(path)));
+    }
+
+    /**
+     * Reads the newer valid slot. A missing file or two invalid slots yield
+     * an empty state.
+     *
+     * @param path Snapshot file.
+     * @return capacity, occupancy and waiting groups per tunnel id.
+     * @throws IOException if the file cannot be read.
+     */
+    public static Map<Integer, TunnelState> recover(Path path) throws IOException {
+        ByteBuffer slot = newestSlot(path);
+        Map<Integer, TunnelState> recovered = new LinkedHashMap<>();
+        if (slot == null) {
+            return recovered;
+        }
+        int tunnels = slot.getInt(HEADER_BYTES - 2 * Integer.BYTES);
+        for (int i = 0; i < tunnels; i++) {
+            int offset = HEADER_BYTES + i * ENTRY_BYTES;
+            recovered.put(slot.getInt(offset), new TunnelState(slot.getInt(offset + Integer.BYTES),
+                    slot.getInt(offset + 2 * Integer.BYTES), slot.getInt(offset + 3 * Integer.BYTES)));
+        }
+        return Collections.unmodifiableMap(recovered);
+    }
+
+    /**
+     * @return tunnels per slot of an existing file, 0 if there is none or its size does not fit.
+     */
+    private static int existingSlotTunnels(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long slotBytes = Files.size(path) / 2;
+        if (Files.size(path) % 2 != 0 || slotBytes < HEADER_BYTES || (slotBytes - HEADER_BYTES) % ENTRY_BYTES != 0
+                || slotBytes > Integer.MAX_VALUE) {
+            return 0;
+        }
+        return (int) ((slotBytes - HEADER_BYTES) / ENTRY_BYTES);
+    }
+
+    private static long latestGeneration(Path path) throws IOException {
+        ByteBuffer slot = newestSlot(path);
+        return slot != null ? slot.getLong(2 * Integer.BYTES) : 0L;
+    }
+
+    /**
+     * @return the valid slot with the higher generation, positioned at 0, or null.
+     */
+    private static ByteBuffer newestSlot(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        int slotBytes = file.capacity() / 2;
+        ByteBuffer newest = null;
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer slot = file.duplicate();
+            slot.position(i * slotBytes).limit((i + 1) * slotBytes);
+            slot = slot.slice();
+            if (isValidSlot(slot) && (newest == null || slot.getLong(2 * Integer.BYTES) > newest.getLong(2 * Integer.BYTES))) {
+                newest = slot;
+            }
+        }
+        return newest;
+    }
+
+    private static boolean isValidSlot(ByteBuffer slot) {
+        if (slot.capacity() < HEADER_BYTES || slot.getInt(0) != MAGIC || slot.getInt(Integer.BYTES) != FORMAT_VERSION) {
+            return false;
+        }
+        int tunnels = slot.getInt(HEADER_BYTES - 2 * Integer.BYTES);
+        if (tunnels < 0 || tunnels > (slot.capacity() - HEADER_BYTES) / ENTRY_BYTES) {
+            return false;
+        }
+        return slot.getInt(CRC_OFFSET) == checksum(slot, tunnels);
+    }
+
+    private static int checksum(ByteBuffer slot, int tunnels) {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = slot.duplicate();
+        header.position(0).limit(CRC_OFFSET);
+        crc.update(header);
+        ByteBuffer entries = slot.duplicate();
+        entries.position(HEADER_BYTES).limit(HEADER_BYTES + tunnels * ENTRY_BYTES);
+        crc.update(entries);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes a first snapshot and schedules the following ones.
+     */
+    public synchronized void start() {
+        write();
+        task = snapshotTimer.scheduleWithFixedDelay(this::write, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return generation of the last snapshot written.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Writes a last snapshot and stops; the timer is left to its owner.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        if (task != null) {
+            task.cancel(false);
+        }
+        write();
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Could not close state snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies the state into the older slot unless nothing changed since the
+     * last snapshot.
+     */
+    private synchronized void write() {
+        if (closed) {
+            return;
+        }
+        try {
+            int tunnels = tunnelRegistry.size();
+            if (tunnels > slotTunnels) {
+                grow(tunnels);
+            }
+            ByteBuffer snapshot = scratch;
+            snapshot.clear();
+            snapshot.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(generation + 1);
+            int countOffset = snapshot.position();
+            snapshot.putInt(0).putInt(0);
+            int written = 0;
+            for (TunnelRegistry.Tunnel tunnel : tunnelRegistry.getTunnels()) {
+                if (written == slotTunnels) {
+                    // Created while writing, it is in the next snapshot
+                    break;
+                }
+                VisitorsMonitor visitorsMonitor = tunnel.getVisitorsMonitor();
+                snapshot.putInt(tunnel.getId()).putInt(visitorsMonitor.getMaxVisitors())
+                        .putInt(visitorsMonitor.getOccupiedVisitors()).putInt(visitorsMonitor.getWaitingGroups());
+                written++;
+            }
+            snapshot.putInt(countOffset, written);
+            // Compares the content without the generation, which always changes
+            CRC32 content = new CRC32();
+            ByteBuffer entries = snapshot.duplicate();
+            entries.flip().position(countOffset);
+            content.update(entries);
+            if (content.getValue() == lastChecksum) {
+                return;
+            }
+            snapshot.putInt(CRC_OFFSET, checksum(snapshot, written));
+
+            int slotOffset = (int) ((generation + 1) & 1) * slotBytes();
+            int length = HEADER_BYTES + written * ENTRY_BYTES;
+            snapshot.flip().limit(length);
+            // Relative put on a view and a plain force(), which Java 11 has too
+            ByteBuffer slot = mapped.duplicate();
+            slot.position(slotOffset);
+            slot.put(snapshot);
+            mapped.force();
+            generation++;
+            lastChecksum = content.getValue();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not write state snapshot: " + e.getMessage());
+        }
+    }
+
+    private int slotBytes() {
+        return HEADER_BYTES + slotTunnels * ENTRY_BYTES;
+    }
+
+    /**
+     * Maps the file for the given number of tunnels per slot. A file of
+     * another size is replaced by an empty one.
+     */
+    private void map(int tunnels) throws IOException {
+        slotTunnels = tunnels;
+        long size = 2L * slotBytes();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() != size) {
+            channel.truncate(0);
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        scratch = ByteBuffer.allocate(slotBytes());
+    }
+
+    /**
+     * Doubles the room per slot. The larger file is built next to the old
+     * one and renamed over it, so the old snapshot stays valid until the new
+     * one is on disk.
+     */
+    private void grow(int tunnels) throws IOException {
+        int newSlotTunnels = slotTunnels;
+        while (newSlotTunnels < tunnels) {
+            newSlotTunnels *= 2;
+        }
+        Path grown = path.resolveSibling(path.getFileName() + ".grow");
+        int oldSlotBytes = slotBytes();
+        int newSlotBytes = HEADER_BYTES + newSlotTunnels * ENTRY_BYTES;
+        ByteBuffer file = ByteBuffer.allocate(2 * newSlotBytes);
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer slot = mapped.duplicate();
+            slot.position(i * oldSlotBytes).limit((i + 1) * oldSlotBytes);
+            file.position(i * newSlotBytes);
+            file.put(slot);
+        }
+        file.clear();
+        try (FileChannel out = FileChannel.open(grown, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (file.hasRemaining()) {
+                out.write(file);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(grown, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(newSlotTunnels);
+    }
+}
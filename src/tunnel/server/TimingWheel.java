@@ -0,0 +1,191 @@
+package tunnel.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timing wheel for many timeouts with a coarse resolution. Time
+ * advances in ticks of a fixed length. The wheel has {@link #LEVELS} levels of
+ * {@link #SLOTS} slots each; a slot of level 0 spans one tick, a slot of
+ * level n spans SLOTS^n ticks. A timeout goes into the lowest level whose
+ * range covers its delay and moves one level down whenever the level above
+ * wraps around, so scheduling and firing cost O(1) per timeout however many
+ * are pending, and one thread drives all of them.
+ * <p>
+ * Timeouts are scheduled from any thread through a queue; everything else
+ * happens on the thread that calls {@link #advance()}, usually a timer task
+ * every tick. There is no cancel: a timeout that fires decides itself whether
+ * it is still due, and may return a later deadline to be scheduled again.
+ * That keeps postponing, which happens far more often than firing, down to a
+ * write of the owner's own deadline field.
+ */
+public class TimingWheel {
+
+    public static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    public static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /**
+     * Something that happens at a deadline. A timeout is in the wheel at most
+     * once; schedule it again only after it fired and returned no deadline.
+     */
+    public abstract static class Timeout {
+        /**
+         * Next timeout of the same slot, only touched by the wheel thread
+         */
+        private Timeout next;
+        private long deadlineTick;
+
+        /**
+         * Called on the wheel thread once the deadline passed.
+         *
+         * @param nowMillis Current time of the wheel's clock.
+         * @return a new deadline on the wheel's clock to fire again, or a
+         * negative value if the timeout is done.
+         */
+        protected abstract long expired(long nowMillis);
+    }
+
+    private final long tickNanos;
+    private final long originNanos = System.nanoTime();
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    /**
+     * Timeouts found due while inserting; fired at the end of the current advance()
+     */
+    private Timeout due;
+    private long currentTick = 0;
+    private int pending = 0;
+
+    /**
+     * @param tickMillis Length of a tick, the resolution of all deadlines.
+     */
+    public TimingWheel(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    }
+
+    /**
+     * @return milliseconds since the wheel was created; the clock of all deadlines.
+     */
+    public long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - originNanos);
+    }
+
+    /**
+     * Schedules the timeout; it fires at the first tick at or after the
+     * deadline. May be called from any thread.
+     *
+     * @param timeout        Timeout that is not in the wheel.
+     * @param deadlineMillis Deadline on the clock of {@link #nowMillis()}.
+     */
+    public void schedule(Timeout timeout, long deadlineMillis) {
+        timeout.deadlineTick = toTick(deadlineMillis);
+        scheduled.add(timeout);
+    }
+
+    /**
+     * @return timeouts in the wheel, not counting those scheduled since the
+     * last advance(). Only meaningful on the wheel thread.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Moves the wheel forward to the current time and fires every timeout
+     * that became due. Must always be called by the same thread, or by one
+     * thread at a time.
+     */
+    public void advance() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            insert(timeout);
+        }
+        long targetTick = (System.nanoTime() - originNanos) / tickNanos;
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade();
+            Timeout slot = slots[0][(int) (currentTick & SLOT_MASK)];
+            slots[0][(int) (currentTick & SLOT_MASK)] = null;
+            fireOrInsert(slot);
+            Timeout dueNow = due;
+            due = null;
+            fireOrInsert(dueNow);
+        }
+        Timeout dueNow = due;
+        due = null;
+        fireOrInsert(dueNow);
+    }
+
+    /**
+     * Moves the slots of the higher levels that start at the current tick one
+     * level down.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = level * SLOT_BITS;
+            if ((currentTick & ((1L << shift) - 1)) != 0) {
+                return;
+            }
+            int index = (int) ((currentTick >>> shift) & SLOT_MASK);
+            Timeout slot = slots[level][index];
+            slots[level][index] = null;
+            while (slot != null) {
+                Timeout next = slot.next;
+                pending--;
+                insert(slot);
+                slot = next;
+            }
+        }
+    }
+
+    private void fireOrInsert(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            pending--;
+            if (timeout.deadlineTick > currentTick) {
+                insert(timeout);
+            } else {
+                long nowMillis = nowMillis();
+                long deadlineMillis = timeout.expired(nowMillis);
+                if (deadlineMillis >= 0) {
+                    timeout.deadlineTick = toTick(deadlineMillis);
+                    insert(timeout);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        pending++;
+        long delay = timeout.deadlineTick - currentTick;
+        if (delay <= 0) {
+            timeout.next = due;
+            due = timeout;
+            return;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+        long placedTick = timeout.deadlineTick;
+        if (delay >= 1L << (LEVELS * SLOT_BITS)) {
+            // Beyond the top level: parked in its last slot and placed again from there
+            placedTick = currentTick + (1L << (LEVELS * SLOT_BITS)) - 1;
+        }
+        int index = (int) ((placedTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+        timeout.next = slots[level][index];
+        slots[level][index] = timeout;
+    }
+
+    private long toTick(long deadlineMillis) {
+        long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        return (deadlineNanos + tickNanos - 1) / tickNanos;
+    }
+}
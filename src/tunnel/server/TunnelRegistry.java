@@ -0,0 +1,321 @@
+package tunnel.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import tunnel.common.Protocol;
+
+/**
+ * The tunnels one server manages, addressed by the tunnel id of every
+ * operation (see Protocol). Each tunnel has its own VisitorsMonitor and
+ * therefore its own lock and waiter queue, so traffic on one tunnel never
+ * contends with another. The map is only written when a tunnel is created,
+ * under the registry lock; lookups are lock-free reads of a
+ * ConcurrentHashMap, and sessions keep the tunnel they used last, because an
+ * entrance almost always talks to one.
+ * <p>
+ * The capacity publishers of all tunnels share one timer thread, so a
+ * server with tens of thousands of tunnels still has a single publisher thread.
+ * With an AdmissionJournal, creations, admissions and releases of all tunnels
+ * go into that journal. Visit ids are unique across tunnels, so the
+ * VisitRegistry of the server is kept here as well.
+ * <p>
+ * Visitors restored after a restart belong to visits the new run does not
+ * know. They never expire; an entrance that still holds one of those visits
+ * gives its visitors back by ending it ({@link #endVisit(int, int, int)}).
+ */
+public class TunnelRegistry {
+
+    /**
+     * One capacity-limited tunnel.
+     */
+    public static final class Tunnel {
+        private final int id;
+        private final VisitorsMonitor visitorsMonitor;
+        private final CapacityPublisher capacityPublisher;
+        /**
+         * Visitors restored after a restart that no visit of this run holds
+         */
+        private final AtomicInteger restoredVisitors = new AtomicInteger();
+
+        Tunnel(int id, VisitorsMonitor visitorsMonitor, CapacityPublisher capacityPublisher) {
+            this.id = id;
+            this.visitorsMonitor = visitorsMonitor;
+            this.capacityPublisher = capacityPublisher;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public VisitorsMonitor getVisitorsMonitor() {
+            return visitorsMonitor;
+        }
+
+        /**
+         * @return the publisher of capacity updates, null if the server offers no subscriptions.
+         */
+        public CapacityPublisher getCapacityPublisher() {
+            return capacityPublisher;
+        }
+
+        /**
+         * Puts visitors that were inside before a restart back into the
+         * tunnel, before the first request arrives.
+         *
+         * @return the visitors restored, at most the capacity.
+         */
+        public int restore(int occupiedVisitors) {
+            int restored = Math.max(0, Math.min(occupiedVisitors, visitorsMonitor.getMaxVisitors()));
+            visitorsMonitor.restoreOccupied(restored);
+            restoredVisitors.set(restored);
+            return restored;
+        }
+
+        /**
+         * @return visitors restored after a restart that were not given back yet.
+         */
+        public int getRestoredVisitors() {
+            return restoredVisitors.get();
+        }
+
+        /**
+         * Gives back up to count restored visitors, for a visit of the
+         * previous run.
+         *
+         * @return the visitors given back, 0 if none were left.
+         */
+        int releaseRestored(int count) {
+            int restored;
+            int released;
+            do {
+                restored = restoredVisitors.get();
+                released = Math.min(count, restored);
+                if (released <= 0) {
+                    return 0;
+                }
+            } while (!restoredVisitors.compareAndSet(restored, restored - released));
+            try {
+                visitorsMonitor.release(released);
+            } catch (IllegalArgumentException alreadyFree) {
+                // Given back without a visit (OP_RELEASE) in the meantime
+                return 0;
+            }
+            return released;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Tunnel> tunnels = new ConcurrentHashMap<>();
+    private final IntFunction<VisitorsMonitor> monitorFactory;
+    private final ScheduledExecutorService publisherTimer;
+    private volatile AdmissionJournal admissionJournal;
+    private volatile VisitRegistry visitRegistry;
+
+    /**
+     * @param monitorFactory Creates the monitor of a new tunnel from its
+     *                       capacity; if null, tunnels can only be added.
+     * @param publisherTimer Runs the capacity publishers of created tunnels;
+     *                       if null, they offer no subscriptions.
+     */
+    public TunnelRegistry(IntFunction<VisitorsMonitor> monitorFactory, ScheduledExecutorService publisherTimer) {
+        this.monitorFactory = monitorFactory;
+        this.publisherTimer = publisherTimer;
+    }
+
+    /**
+     * @param visitorsMonitor   Monitor of the only tunnel, registered as the default tunnel.
+     * @param capacityPublisher Its publisher, may be null.
+     * @return a registry that cannot create further tunnels.
+     */
+    public static TunnelRegistry of(VisitorsMonitor visitorsMonitor, CapacityPublisher capacityPublisher) {
+        TunnelRegistry registry = new TunnelRegistry(null, null);
+        registry.add(Protocol.DEFAULT_TUNNEL, visitorsMonitor, capacityPublisher);
+        return registry;
+    }
+
+    /**
+     * Journals every tunnel registered from now on. Set it before the first
+     * tunnel is created.
+     *
+     * @param admissionJournal Journal, may be null.
+     */
+    public void setJournal(AdmissionJournal admissionJournal) {
+        this.admissionJournal = admissionJournal;
+    }
+
+    /**
+     * @return the journal, null if the server keeps none.
+     */
+    public AdmissionJournal getJournal() {
+        return admissionJournal;
+    }
+
+    /**
+     * @param visitRegistry Visits in all tunnels, may be null.
+     */
+    public void setVisits(VisitRegistry visitRegistry) {
+        this.visitRegistry = visitRegistry;
+    }
+
+    /**
+     * @return the visits, null if the server offers no leased visits.
+     */
+    public VisitRegistry getVisits() {
+        return visitRegistry;
+    }
+
+    /**
+     * Renews the lease of a visit. A visit of the previous run counts as
+     * renewed as long as its tunnel still holds restored visitors.
+     *
+     * @return false if the visit ended or its lease expired.
+     * @throws IllegalArgumentException if the server offers no leased visits.
+     */
+    public boolean renewVisit(int visitId, int tunnelId) throws IllegalArgumentException {
+        VisitRegistry visits = requireVisits();
+        if (visits.renew(visitId)) {
+            return true;
+        }
+        Tunnel tunnel = tunnels.get(tunnelId);
+        return visits.isFromEarlierRun(visitId) && tunnel != null && tunnel.getRestoredVisitors() > 0;
+    }
+
+    /**
+     * Ends a visit and gives its visitors back. For a visit of the previous
+     * run, count of the visitors restored into its tunnel are given back.
+     *
+     * @param count Visitors of the visit as the entrance knows them, 0 if unknown.
+     * @return the visitors given back, -1 if the visit ended already, its
+     * lease expired or nothing restored is left for it.
+     * @throws IllegalArgumentException if the server offers no leased visits.
+     */
+    public int endVisit(int visitId, int tunnelId, int count) throws IllegalArgumentException {
+        VisitRegistry visits = requireVisits();
+        int ended = visits.end(visitId);
+        if (ended >= 0 || count <= 0 || !visits.isFromEarlierRun(visitId)) {
+            return ended;
+        }
+        Tunnel tunnel = tunnels.get(tunnelId);
+        int released = tunnel != null ? tunnel.releaseRestored(count) : 0;
+        return released > 0 ? released : -1;
+    }
+
+    private VisitRegistry requireVisits() throws IllegalArgumentException {
+        VisitRegistry visits = visitRegistry;
+        if (visits == null) {
+            throw new IllegalArgumentException("This server offers no leases");
+        }
+        return visits;
+    }
+
+    /**
+     * Creates a tunnel with a monitor from the factory.
+     *
+     * @param id       Tunnel id, not negative.
+     * @param capacity Maximum number of visitors in the tunnel.
+     * @return the new tunnel.
+     * @throws IllegalArgumentException if the id is taken or invalid, the
+     *                                  capacity is not positive or the
+     *                                  registry cannot create tunnels.
+     */
+    public Tunnel create(int id, int capacity) throws IllegalArgumentException {
+        if (monitorFactory == null) {
+            throw new IllegalArgumentException("This server cannot create tunnels");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (tunnels.containsKey(id)) {
+            throw new IllegalArgumentException("Tunnel " + id + " exists already");
+        }
+        VisitorsMonitor visitorsMonitor = monitorFactory.apply(capacity);
+        return add(id, visitorsMonitor,
+                publisherTimer != null ? new CapacityPublisher(visitorsMonitor, publisherTimer) : null);
+    }
+
+    /**
+     * Registers a tunnel with an existing monitor.
+     *
+     * @param id                Tunnel id, not negative.
+     * @param visitorsMonitor   Monitor of the tunnel.
+     * @param capacityPublisher Its publisher, may be null.
+     * @return the new tunnel.
+     * @throws IllegalArgumentException if the id is taken or invalid.
+     */
+    public Tunnel add(int id, VisitorsMonitor visitorsMonitor, CapacityPublisher capacityPublisher)
+            throws IllegalArgumentException {
+        if (id < 0) {
+            throw new IllegalArgumentException("Tunnel id must not be negative");
+        }
+        if (visitorsMonitor == null) {
+            throw new IllegalArgumentException("Monitor is null");
+        }
+        Tunnel tunnel = new Tunnel(id, visitorsMonitor, capacityPublisher);
+        // Only creations take the lock; the journal is attached before the
+        // tunnel is visible, so no admission on it escapes the journal
+        synchronized (this) {
+            if (tunnels.containsKey(id)) {
+                if (capacityPublisher != null) {
+                    capacityPublisher.stop();
+                }
+                throw new IllegalArgumentException("Tunnel " + id + " exists already");
+            }
+            AdmissionJournal journal = admissionJournal;
+            if (journal != null) {
+                journal.created(id, visitorsMonitor.getMaxVisitors());
+                visitorsMonitor.setJournal(journal, id);
+            }
+            tunnels.put(id, tunnel);
+        }
+        return tunnel;
+    }
+
+    /**
+     * @return the tunnel, null if there is none with that id.
+     */
+    public Tunnel get(int id) {
+        return tunnels.get(id);
+    }
+
+    /**
+     * @return the tunnel.
+     * @throws IllegalArgumentException if there is none with that id.
+     */
+    public Tunnel require(int id) throws IllegalArgumentException {
+        Tunnel tunnel = tunnels.get(id);
+        if (tunnel == null) {
+            throw new IllegalArgumentException("Unknown tunnel " + id);
+        }
+        return tunnel;
+    }
+
+    /**
+     * @return all tunnels in no particular order.
+     */
+    public Collection<Tunnel> getTunnels() {
+        return Collections.unmodifiableCollection(tunnels.values());
+    }
+
+    public int size() {
+        return tunnels.size();
+    }
+
+    /**
+     * Stops the capacity publishers of all tunnels and the expiry of leases.
+     */
+    public void stop() {
+        VisitRegistry visits = visitRegistry;
+        if (visits != null) {
+            visits.stop();
+        }
+        for (Tunnel tunnel : tunnels.values()) {
+            if (tunnel.capacityPublisher != null) {
+                tunnel.capacityPublisher.stop();
+            }
+        }
+    }
+}
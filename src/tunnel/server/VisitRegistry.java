@@ -0,0 +1,489 @@
+package tunnel.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import tunnel.common.Protocol;
+
+/**
+ * The active visits of all tunnels of a server: id, entrance, size, start
+ * time and lease of every visit admitted with {@link Protocol#OP_REQUEST_LEASED}.
+ * Visits are ended by their id, and the visitors of a visit whose lease is
+ * not renewed go back to the VisitorsMonitor of its tunnel, so a crashed or
+ * closed entrance does not keep capacity until a restart.
+ * <p>
+ * Visits live in slots of preallocated pages of primitive arrays; the id of a
+ * visit is its slot plus a generation that changes whenever the slot is
+ * reused, so a stale id never reaches the next visit of the slot. Every
+ * registry also picks a random epoch that is part of all its ids, and starts
+ * the generations of its slots at random: a restarted server hands out
+ * different ids and rejects those of the previous run, so a client renewing
+ * or ending an old visit does not hit somebody else's new one (unless both
+ * runs drew the same epoch and generation, one chance in 2^15). A visit
+ * costs no object: the lease of a slot is one long holding the visit id and
+ * its deadline, and every slot has one timeout in the TimingWheel that is
+ * reused by all visits of the slot. Renewing, ending and expiring a visit are
+ * compare-and-set operations on that long, so each visit ends exactly once;
+ * only the allocation of slots and the per-entrance counters are guarded by
+ * the registry lock, for a few array writes per start and end.
+ * <p>
+ * Entrances get an id with {@link Protocol#OP_IDENTIFY}; the visitors and
+ * visits of an entrance are counters indexed by the number of the entrance
+ * in this run. Entrance ids carry the same epoch as visit ids and are
+ * counted from a random base, so an entrance that reconnects after a restart
+ * with its old id gets a new one instead of sharing it with another.
+ */
+public class VisitRegistry {
+
+    public static final long DEFAULT_LEASE_MILLIS = 10_000L;
+    /**
+     * Resolution of lease expiry
+     */
+    protected static final long TICK_MILLIS = 100L;
+    /**
+     * Entrance of visits started by sessions that did not identify themselves
+     */
+    public static final int UNKNOWN_ENTRANCE = 0;
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int SLOT_BITS = 16;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    /**
+     * Upper bound of visits at the same time
+     */
+    public static final int MAX_VISITS = 1 << SLOT_BITS;
+    private static final int GENERATION_BITS = 6;
+    private static final int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+    /**
+     * Bits of the epoch at the top of every id; together with the slot and
+     * the generation they fill the 31 bits of a positive int
+     */
+    private static final int EPOCH_BITS = Integer.SIZE - 1 - SLOT_BITS - GENERATION_BITS;
+    private static final int EPOCH_SHIFT = SLOT_BITS + GENERATION_BITS;
+    /**
+     * Bits below the epoch in an entrance id
+     */
+    private static final int ENTRANCE_BITS = Integer.SIZE - 1 - EPOCH_BITS;
+    private static final int ENTRANCE_MASK = (1 << ENTRANCE_BITS) - 1;
+    private static final long DEADLINE_MASK = 0xFFFFFFFFL;
+    private static final long FREE = 0L;
+
+    /**
+     * PAGE_SIZE slots. Only the leases are read without the registry lock.
+     */
+    private final class Page {
+        final int number;
+        /**
+         * Visit id in the upper, deadline in ticks in the lower half; FREE if the slot is unused
+         */
+        final AtomicLongArray leases = new AtomicLongArray(PAGE_SIZE);
+        final int[] generations = new int[PAGE_SIZE];
+        final int[] counts = new int[PAGE_SIZE];
+        final int[] entrances = new int[PAGE_SIZE];
+        final long[] startMillis = new long[PAGE_SIZE];
+        final VisitorsMonitor[] monitors = new VisitorsMonitor[PAGE_SIZE];
+        final SlotTimeout[] timeouts = new SlotTimeout[PAGE_SIZE];
+
+        Page(int number) {
+            this.number = number;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                generations[i] = random.nextInt(1 << GENERATION_BITS);
+                timeouts[i] = new SlotTimeout(this, i);
+            }
+        }
+    }
+
+    /**
+     * The timeout of one slot, in the wheel while the slot holds a visit. A
+     * visit that starts while the timeout of its slot is still in the wheel
+     * takes it over, since its deadline is later.
+     */
+    private final class SlotTimeout extends TimingWheel.Timeout {
+        final Page page;
+        final int index;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        SlotTimeout(Page page, int index) {
+            this.page = page;
+            this.index = index;
+        }
+
+        @Override
+        protected long expired(long nowMillis) {
+            while (true) {
+                long lease = page.leases.get(index);
+                if (lease == FREE) {
+                    scheduled.set(false);
+                    // A visit that started meanwhile may have seen the flag still set
+                    if (page.leases.get(index) == FREE || !scheduled.compareAndSet(false, true)) {
+                        return -1L;
+                    }
+                    continue;
+                }
+                long deadlineMillis = (lease & DEADLINE_MASK) * TICK_MILLIS;
+                if (deadlineMillis > nowMillis) {
+                    return deadlineMillis;
+                }
+                if (page.leases.compareAndSet(index, lease, FREE)) {
+                    finish(page, index);
+                    expiredVisits.increment();
+                }
+            }
+        }
+    }
+
+    private final long leaseMillis;
+    /**
+     * Drawn at startup, the top bits of every visit id of this run
+     */
+    private final int epoch = ThreadLocalRandom.current().nextInt(1 << EPOCH_BITS);
+    /**
+     * The n-th entrance of this run has the id epoch | entranceBase + n
+     */
+    private final int entranceBase = ThreadLocalRandom.current().nextInt(1 << (ENTRANCE_BITS - 1));
+    private final TimingWheel wheel = new TimingWheel(TICK_MILLIS);
+    private final AtomicReferenceArray<Page> pages = new AtomicReferenceArray<>(MAX_VISITS / PAGE_SIZE);
+    private final LongAdder expiredVisits = new LongAdder();
+    private final ScheduledFuture<?> ticker;
+    /**
+     * Free slots in the order they were freed, so a slot is reused as late
+     * as possible; guarded by the registry lock like everything below
+     */
+    private int[] freeSlots = new int[0];
+    private int freeHead = 0;
+    private int freeCount = 0;
+    private int pageCount = 0;
+    private int activeVisits = 0;
+    /**
+     * Entrances identified in this run; index 0 of the counters is UNKNOWN_ENTRANCE
+     */
+    private int entrances = 0;
+    private int[] entranceVisitors = new int[16];
+    private int[] entranceVisits = new int[16];
+
+    /**
+     * @param leaseMillis How long a lease lasts without renewal; at least
+     *                    twice {@link Protocol#LEASE_RENEW_MILLIS}, so a
+     *                    renewal that is a little late does not lose the visit.
+     * @param leaseTimer  Advances the timing wheel; its owner shuts it down.
+     */
+    public VisitRegistry(long leaseMillis, ScheduledExecutorService leaseTimer) {
+        if (leaseMillis < 2 * Protocol.LEASE_RENEW_MILLIS) {
+            throw new IllegalArgumentException("Lease must last at least " + 2 * Protocol.LEASE_RENEW_MILLIS + " ms");
+        }
+        if (leaseTimer == null) {
+            throw new IllegalArgumentException("Timer is null");
+        }
+        this.leaseMillis = leaseMillis;
+        this.ticker = leaseTimer.scheduleAtFixedRate(wheel::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Identifies the entrance of a session.
+     *
+     * @param entranceId Id the entrance got earlier, e.g. before a reconnect,
+     *                   or {@link #UNKNOWN_ENTRANCE} for a new one.
+     * @return the id of the entrance: the given one if this registry issued
+     * it, otherwise a new one; {@link #UNKNOWN_ENTRANCE} if this run has
+     * issued all ids it can.
+     */
+    public synchronized int identify(int entranceId) {
+        if (entranceIndex(entranceId) > 0) {
+            return entranceId;
+        }
+        if (entranceBase + entrances == ENTRANCE_MASK) {
+            return UNKNOWN_ENTRANCE;
+        }
+        entrances++;
+        if (entrances == entranceVisitors.length) {
+            entranceVisitors = Arrays.copyOf(entranceVisitors, entrances * 2);
+            entranceVisits = Arrays.copyOf(entranceVisits, entrances * 2);
+        }
+        return epoch << ENTRANCE_BITS | (entranceBase + entrances);
+    }
+
+    /**
+     * Registers admitted visitors as a visit under a new lease.
+     *
+     * @param visitorsMonitor Monitor that admitted them and gets them back when the visit ends.
+     * @param count           Number of visitors.
+     * @param entranceId      Entrance of the session, {@link #UNKNOWN_ENTRANCE} if it did not identify itself.
+     * @return the id of the visit, always positive; -1 if {@link #MAX_VISITS}
+     * visits are active, the visitors then went back to the monitor.
+     */
+    public int start(VisitorsMonitor visitorsMonitor, int count, int entranceId) {
+        long deadlineTick = deadlineTick();
+        int visitId = allocate(visitorsMonitor, count, entranceId);
+        if (visitId < 0) {
+            visitorsMonitor.release(count);
+            return -1;
+        }
+        Page page = page(visitId);
+        int index = visitId & (PAGE_SIZE - 1);
+        page.leases.set(index, (long) visitId << Integer.SIZE | deadlineTick);
+        SlotTimeout timeout = page.timeouts[index];
+        if (timeout.scheduled.compareAndSet(false, true)) {
+            wheel.schedule(timeout, deadlineTick * TICK_MILLIS);
+        }
+        return visitId;
+    }
+
+    /**
+     * Extends the lease of a visit by the lease duration from now.
+     *
+     * @return false if the visit ended or its lease expired.
+     */
+    public boolean renew(int visitId) {
+        Page page = page(visitId);
+        if (page == null) {
+            return false;
+        }
+        int index = visitId & (PAGE_SIZE - 1);
+        long renewed = (long) visitId << Integer.SIZE | deadlineTick();
+        while (true) {
+            long lease = page.leases.get(index);
+            if (lease >>> Integer.SIZE != visitId) {
+                return false;
+            }
+            if (lease >= renewed || page.leases.compareAndSet(index, lease, renewed)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends a visit and gives its visitors back to its monitor.
+     *
+     * @return the number of visitors of the visit, -1 if it ended already or
+     * its lease expired.
+     */
+    public int end(int visitId) {
+        Page page = page(visitId);
+        if (page == null) {
+            return -1;
+        }
+        int index = visitId & (PAGE_SIZE - 1);
+        while (true) {
+            long lease = page.leases.get(index);
+            if (lease >>> Integer.SIZE != visitId) {
+                return -1;
+            }
+            if (page.leases.compareAndSet(index, lease, FREE)) {
+                return finish(page, index);
+            }
+        }
+    }
+
+    /**
+     * @return true if the id is not one of this run, e.g. a visit the
+     * entrance started before the server restarted.
+     */
+    public boolean isFromEarlierRun(int visitId) {
+        return visitId > 0 && visitId >>> EPOCH_SHIFT != epoch;
+    }
+
+    /**
+     * @return milliseconds since the visit started, -1 if it is not active.
+     */
+    public long getVisitAgeMillis(int visitId) {
+        Page page = page(visitId);
+        if (page == null) {
+            return -1L;
+        }
+        int index = visitId & (PAGE_SIZE - 1);
+        synchronized (this) {
+            if (page.leases.get(index) >>> Integer.SIZE != visitId) {
+                return -1L;
+            }
+            return System.currentTimeMillis() - page.startMillis[index];
+        }
+    }
+
+    /**
+     * @return visitors of the active visits the entrance started, 0 for an unknown entrance.
+     */
+    public synchronized int getEntranceVisitors(int entranceId) {
+        int entrance = entranceIndex(entranceId);
+        return entrance >= 0 ? entranceVisitors[entrance] : 0;
+    }
+
+    /**
+     * @return active visits the entrance started, 0 for an unknown entrance.
+     */
+    public synchronized int getEntranceVisits(int entranceId) {
+        int entrance = entranceIndex(entranceId);
+        return entrance >= 0 ? entranceVisits[entrance] : 0;
+    }
+
+    public synchronized int getActiveVisits() {
+        return activeVisits;
+    }
+
+    /**
+     * @return visits whose lease expired because it was not renewed.
+     */
+    public long getExpiredVisits() {
+        return expiredVisits.sum();
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Answers the statistics of {@link Protocol#OP_STATS} that belong to
+     * visits rather than to a tunnel.
+     *
+     * @return true for {@link Protocol#STAT_ENTRANCE_VISITORS},
+     * {@link Protocol#STAT_ENTRANCE_VISITS} and {@link Protocol#STAT_VISIT_AGE_MILLIS}.
+     */
+    public static boolean isVisitStat(int stat) {
+        return stat == Protocol.STAT_ENTRANCE_VISITORS || stat == Protocol.STAT_ENTRANCE_VISITS
+                || stat == Protocol.STAT_VISIT_AGE_MILLIS;
+    }
+
+    /**
+     * @param stat One of the statistics of {@link #isVisitStat(int)}.
+     * @param arg  The entrance id or visit id.
+     * @return the statistic, capped at Integer.MAX_VALUE.
+     * @throws IllegalArgumentException for other statistics.
+     */
+    public int readStat(int stat, int arg) throws IllegalArgumentException {
+        switch (stat) {
+            case Protocol.STAT_ENTRANCE_VISITORS:
+                return getEntranceVisitors(arg);
+            case Protocol.STAT_ENTRANCE_VISITS:
+                return getEntranceVisits(arg);
+            case Protocol.STAT_VISIT_AGE_MILLIS:
+                return (int) Math.min(Integer.MAX_VALUE, getVisitAgeMillis(arg));
+            default:
+                throw new IllegalArgumentException("Unknown statistic " + stat);
+        }
+    }
+
+    /**
+     * Stops expiring leases; the visitors of active visits stay in their tunnels.
+     */
+    public void stop() {
+        ticker.cancel(false);
+    }
+
+    private long deadlineTick() {
+        long deadlineMillis = wheel.nowMillis() + leaseMillis;
+        return ((deadlineMillis + TICK_MILLIS - 1) / TICK_MILLIS) & DEADLINE_MASK;
+    }
+
+    /**
+     * @return index of the entrance in the counters: 0 for
+     * {@link #UNKNOWN_ENTRANCE}, -1 for an id this run did not issue.
+     * Only called with the lock held.
+     */
+    private int entranceIndex(int entranceId) {
+        if (entranceId == UNKNOWN_ENTRANCE) {
+            return 0;
+        }
+        if (entranceId < 0 || entranceId >>> ENTRANCE_BITS != epoch) {
+            return -1;
+        }
+        int entrance = (entranceId & ENTRANCE_MASK) - entranceBase;
+        return entrance > 0 && entrance <= entrances ? entrance : -1;
+    }
+
+    /**
+     * @return the page of the visit id, null if the id cannot belong to a
+     * visit, e.g. because an earlier run of the server issued it.
+     */
+    private Page page(int visitId) {
+        if (visitId <= 0 || visitId >>> EPOCH_SHIFT != epoch) {
+            return null;
+        }
+        return pages.get((visitId & SLOT_MASK) >>> PAGE_BITS);
+    }
+
+    /**
+     * Frees the slot of a visit whose lease was just cleared and gives its
+     * visitors back.
+     *
+     * @return the number of visitors.
+     */
+    private int finish(Page page, int index) {
+        int count;
+        VisitorsMonitor visitorsMonitor;
+        synchronized (this) {
+            count = page.counts[index];
+            visitorsMonitor = page.monitors[index];
+            page.monitors[index] = null;
+            int entrance = page.entrances[index];
+            entranceVisitors[entrance] -= count;
+            entranceVisits[entrance]--;
+            activeVisits--;
+            int slot = page.number << PAGE_BITS | index;
+            freeSlots[(freeHead + freeCount) % freeSlots.length] = slot;
+            freeCount++;
+        }
+        visitorsMonitor.release(count);
+        return count;
+    }
+
+    /**
+     * Takes the free slot that was freed first and fills it; the lease is set
+     * by the caller, which makes the visit visible to renew and end.
+     *
+     * @return the id of the new visit, -1 if no slot is left.
+     */
+    private synchronized int allocate(VisitorsMonitor visitorsMonitor, int count, int entranceId) {
+        if (freeCount == 0 && !addPage()) {
+            return -1;
+        }
+        int slot = freeSlots[freeHead];
+        freeHead = (freeHead + 1) % freeSlots.length;
+        freeCount--;
+        Page page = pages.get(slot >>> PAGE_BITS);
+        int index = slot & (PAGE_SIZE - 1);
+        int generation = (page.generations[index] + 1) & GENERATION_MASK;
+        if (generation == 0) {
+            generation = 1;
+        }
+        page.generations[index] = generation;
+        int entrance = Math.max(0, entranceIndex(entranceId));
+        page.counts[index] = count;
+        page.entrances[index] = entrance;
+        page.startMillis[index] = System.currentTimeMillis();
+        page.monitors[index] = visitorsMonitor;
+        entranceVisitors[entrance] += count;
+        entranceVisits[entrance]++;
+        activeVisits++;
+        return epoch << EPOCH_SHIFT | generation << SLOT_BITS | slot;
+    }
+
+    /**
+     * Adds a page and queues its slots; only called with the lock held and
+     * no free slot left.
+     *
+     * @return false if the registry has {@link #MAX_VISITS} slots already.
+     */
+    private boolean addPage() {
+        if (pageCount == pages.length()) {
+            return false;
+        }
+        int[] grown = new int[freeSlots.length + PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            grown[i] = pageCount << PAGE_BITS | i;
+        }
+        freeSlots = grown;
+        freeHead = 0;
+        freeCount = PAGE_SIZE;
+        pages.set(pageCount, new Page(pageCount));
+        pageCount++;
+        return true;
+    }
+}
@@ -1,43 +1,301 @@
 package tunnel.server;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import tunnel.common.LatencyHistogram;
+import tunnel.common.Protocol;
 
 /**
  * Diese Klasse verwaltet die verf�gbaren Besucher, welche eingelassen werden
- * k�nnen
+ * k�nnen<br>
+ * Gruppen, die warten müssen, stehen in der Warteschlange der AdmissionPolicy.
+ * release() vergibt die frei gewordenen Besucher direkt an die Gruppen, die
+ * die Policy als nächste auswählt (standardmäßig die kleinste, die Platz
+ * findet), und weckt nur deren Threads auf, statt mit notifyAll() alle
+ * Wartenden zu wecken.
  */
 public class VisitorsMonitor {
+    /**
+     * Kapazität eines Tunnels, wenn nichts anderes angegeben ist
+     */
+    public static final int DEFAULT_MAX_VISITORS = 50;
     /**
      * Maximalanzahl der im Tunnel vorhanden Besucher
      */
-    protected final int MAX_VISITORS = 50;
+    protected final int MAX_VISITORS;
     /**
      * Anzahl der Besucher die in den Tunnel noch eingelassen werden k�nnen
      */
-    protected int availableVisitors = MAX_VISITORS;
+    protected int availableVisitors;
+    /**
+     * Wartende Gruppen. Darin stehen blockierte Threads ebenso wie geparkte
+     * Anforderungen von Aufrufern, die nicht blockieren dürfen (z. B. die
+     * I/O-Threads des NioServer)
+     */
+    protected final AdmissionPolicy admissionPolicy;
+    /**
+     * Auslastung und Wartezeiten unter der gewählten Policy
+     */
+    protected final AdmissionStats admissionStats;
+    /**
+     * Statusmeldungen an der Serverkonsole; sie werden nur vorgemerkt und von
+     * einem eigenen Thread ausgegeben, damit die Sperre nicht auf die Konsole
+     * wartet
+     */
+    protected final AdmissionLog admissionLog = AdmissionLog.console();
+    /**
+     * Journal, in das jede Vergabe und Rückgabe geschrieben wird, damit ein
+     * neu gestarteter Server die Besucher im Tunnel kennt; null ohne Journal
+     */
+    private volatile AdmissionJournal admissionJournal;
+    private int journalTunnelId;
+    /**
+     * Werden nach jeder Änderung von availableVisitors aufgerufen, während
+     * der Monitor noch gesperrt ist. Sie dürfen daher nicht blockieren
+     */
+    private final List<Runnable> capacityListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Monitor, der wartende Gruppen nach Größe einlässt (kleinste zuerst)
+     */
+    public VisitorsMonitor() {
+        this(DEFAULT_MAX_VISITORS);
+    }
+
+    /**
+     * Monitor eines Tunnels mit maxVisitors Plätzen, der wartende Gruppen
+     * nach Größe einlässt (kleinste zuerst)
+     *
+     * @param maxVisitors
+     */
+    public VisitorsMonitor(int maxVisitors) {
+        this(maxVisitors, new SmallestFirstAdmissionPolicy(maxVisitors));
+    }
+
+    /**
+     * Monitor, dessen wartende Gruppen von der übergebenen Policy eingelassen
+     * werden
+     *
+     * @param admissionPolicy
+     */
+    public VisitorsMonitor(AdmissionPolicy admissionPolicy) {
+        this(DEFAULT_MAX_VISITORS, admissionPolicy);
+    }
+
+    /**
+     * Monitor eines Tunnels mit maxVisitors Plätzen, dessen wartende Gruppen
+     * von der übergebenen Policy eingelassen werden
+     *
+     * @param maxVisitors
+     * @param admissionPolicy
+     */
+    public VisitorsMonitor(int maxVisitors, AdmissionPolicy admissionPolicy) {
+        if (maxVisitors <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (admissionPolicy == null) {
+            throw new IllegalArgumentException("Policy is null");
+        }
+        this.MAX_VISITORS = maxVisitors;
+        this.availableVisitors = maxVisitors;
+        this.admissionPolicy = admissionPolicy;
+        this.admissionStats = new AdmissionStats(admissionPolicy.getName(), MAX_VISITORS);
+    }
 
     /**
      * Fordert count Besucher an und gibt Statusmeldungen an der Serverkonsole
-     * aus
+     * aus. Reichen die verfügbaren Besucher nicht, wartet der Thread, bis
+     * release() ihm die Besucher zuteilt.
      *
      * @param count
      */
-    public synchronized void request(int count) throws InterruptedException, IllegalArgumentException {
-        if (count <= 0) {
-            throw new IllegalArgumentException("Visitor count must be positive!");
+    public void request(int count) throws InterruptedException, IllegalArgumentException {
+        request(count, 0L);
+    }
+
+    /**
+     * Wie request(count), wartet aber höchstens timeoutMillis. Läuft die Frist
+     * ab, wird die Gruppe aus der Warteschlange genommen und als abgelaufen
+     * gezählt.
+     *
+     * @param count         Anzahl der angeforderten Besucher
+     * @param timeoutMillis längste Wartezeit, 0 wartet ohne Frist
+     * @return true, falls die Besucher vergeben wurden, false nach Ablauf der Frist
+     */
+    public boolean request(int count, long timeoutMillis) throws InterruptedException, IllegalArgumentException {
+        checkRequestedCount(count);
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative!");
+        }
+        Waiter waiter = enqueue(count, Thread.currentThread(), null);
+        if (waiter == null) {
+            return true;
         }
 
-        while (availableVisitors < count) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!waiter.granted) {
+            if (timeoutMillis > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    if (withdraw(waiter, true)) {
+                        return false;
+                    }
+                    // Gleichzeitig zugeteilt
+                    continue;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+            if (Thread.interrupted()) {
+                if (withdraw(waiter, false)) {
+                    throw new InterruptedException();
+                }
+                // Gleichzeitig zugeteilt: Besucher behalten, Interrupt-Flag erhalten
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Fordert count Besucher an, ohne den aufrufenden Thread zu blockieren.
+     * Sind genügend Besucher frei, werden sie sofort vergeben und true
+     * geliefert. Andernfalls wird die Anforderung geparkt und onGranted
+     * später von dem Thread aufgerufen, der die Besucher zurückgibt; dann
+     * wird false geliefert.
+     *
+     * @param count     Anzahl der angeforderten Besucher
+     * @param onGranted wird aufgerufen, sobald eine geparkte Anforderung erfüllt ist
+     * @return true, falls die Besucher sofort vergeben wurden
+     */
+    public boolean request(int count, Runnable onGranted) throws IllegalArgumentException {
+        return requestOrPark(count, onGranted) == null;
+    }
+
+    /**
+     * Wie request(count, onGranted), liefert aber die geparkte Anforderung, damit
+     * der Aufrufer sie mit cancel() oder expire() zurückziehen kann.
+     *
+     * @param count     Anzahl der angeforderten Besucher
+     * @param onGranted wird aufgerufen, sobald die geparkte Anforderung erfüllt ist
+     * @return null, falls die Besucher sofort vergeben wurden, sonst die wartende Gruppe
+     */
+    public Waiter requestOrPark(int count, Runnable onGranted) throws IllegalArgumentException {
+        checkRequestedCount(count);
+        if (onGranted == null) {
+            throw new IllegalArgumentException("Completion callback is null");
+        }
+        return enqueue(count, null, onGranted);
+    }
+
+    /**
+     * Zieht eine geparkte Anforderung zurück, z. B. weil der Client die
+     * Verbindung geschlossen hat.
+     *
+     * @return false, falls die Besucher schon vergeben waren; onGranted wird
+     * dann noch aufgerufen bzw. wurde schon aufgerufen
+     */
+    public boolean cancel(Waiter waiter) {
+        return withdraw(waiter, false);
+    }
+
+    /**
+     * Zieht eine geparkte Anforderung zurück, deren Frist abgelaufen ist.
+     *
+     * @return false, falls die Besucher schon vergeben waren
+     */
+    public boolean expire(Waiter waiter) {
+        return withdraw(waiter, true);
+    }
+
+    /**
+     * Vergibt die Besucher sofort, falls niemand wartet und genug frei sind,
+     * und stellt die Gruppe sonst in die Warteschlange der Policy.
+     *
+     * @param thread    blockierter Thread, der geweckt wird, oder null
+     * @param onGranted Callback einer nicht blockierenden Anforderung oder null
+     * @return null, falls die Besucher sofort vergeben wurden, sonst die wartende Gruppe
+     */
+    protected Waiter enqueue(int count, Thread thread, Runnable onGranted) {
+        Waiter waiter;
+        boolean grantedNow;
+        List<Runnable> completions;
+        synchronized (this) {
+            long lockedAt = System.nanoTime();
             try {
-                wait();
-            } catch (InterruptedException e) {
-                throw new InterruptedException();
+                if (admissionPolicy.size() == 0 && availableVisitors >= count) {
+                    take(count);
+                    return null;
+                }
+                waiter = new Waiter(count, thread, onGranted);
+                admissionPolicy.add(waiter);
+                // Die Policy entscheidet, ob die neue Gruppe gleich eingelassen wird
+                completions = grantWaiters(false);
+                grantedNow = waiter.granted;
+            } finally {
+                admissionStats.lockHeld(System.nanoTime() - lockedAt);
             }
         }
+        if (grantedNow && onGranted != null) {
+            // Sofort eingelassen: der Aufrufer erfährt es über den Rückgabewert
+            completions.remove(onGranted);
+        }
+        runCompletions(completions);
+        return grantedNow ? null : waiter;
+    }
 
-        availableVisitors -= count;
-        System.out.println(count + " visitors received. " + availableVisitors + " visitors available");
+    /**
+     * Nimmt eine wartende Gruppe aus der Warteschlange und zählt sie als
+     * abgebrochen bzw. abgelaufen.
+     *
+     * @return false, falls sie schon eingelassen (oder schon entfernt) war
+     */
+    protected boolean withdraw(Waiter waiter, boolean timedOut) {
+        List<Runnable> completions;
+        synchronized (this) {
+            long lockedAt = System.nanoTime();
+            try {
+                if (waiter.granted || !admissionPolicy.remove(waiter)) {
+                    return false;
+                }
+                admissionStats.withdrawn(timedOut);
+                // Die Gruppe hat evtl. andere hinter sich aufgehalten
+                completions = grantWaiters(false);
+            } finally {
+                admissionStats.lockHeld(System.nanoTime() - lockedAt);
+            }
+        }
+        runCompletions(completions);
+        return true;
     }
 
+    /**
+     * Fordert count Besucher an, ohne zu warten. Sie werden nur vergeben, wenn
+     * genügend frei sind und keine andere Gruppe wartet, damit die
+     * AdmissionPolicy nicht umgangen wird.
+     *
+     * @param count Anzahl der angeforderten Besucher
+     * @return true, falls die Besucher vergeben wurden
+     */
+    public synchronized boolean tryRequest(int count) throws IllegalArgumentException {
+        checkRequestedCount(count);
+        long lockedAt = System.nanoTime();
+        try {
+            if (admissionPolicy.size() == 0 && availableVisitors >= count) {
+                take(count);
+                return true;
+            }
+            return false;
+        } finally {
+            admissionStats.lockHeld(System.nanoTime() - lockedAt);
+        }
+    }
 
     /**
      * Gibt count Besucher an den VisitorsMonitor zur�ck und gibt Statusmeldungen
@@ -45,7 +303,11 @@ public class VisitorsMonitor {
      *
      * @param count
      */
-    public synchronized void release(int count) throws IllegalArgumentException {
+    public void release(int count) throws IllegalArgumentException {
+        runCompletions(releaseAndGrant(count));
+    }
+
+    private synchronized List<Runnable> releaseAndGrant(int count) {
         if (count <= 0) {
             throw new IllegalArgumentException("Visitor count must be positive!");
         }
@@ -53,9 +315,53 @@ public class VisitorsMonitor {
             throw new IllegalArgumentException("Cannot release " + count + " visitors: would exceed maximum capacity of " + MAX_VISITORS + ".");
         }
 
+        long lockedAt = System.nanoTime();
         availableVisitors += count;
-        System.out.println(count + " visitors released. " + availableVisitors + " visitors available");
-        notifyAll();
+        admissionStats.released(count, lockedAt);
+        released(count, availableVisitors);
+
+        List<Runnable> completions = grantWaiters(true);
+        admissionStats.lockHeld(System.nanoTime() - lockedAt);
+        return completions;
+    }
+
+    /**
+     * Lässt die Gruppen ein, die die Policy auswählt, solange Besucher frei
+     * sind. Blockierte Threads werden direkt geweckt; die Callbacks nicht
+     * blockierender Anforderungen werden zurückgeliefert, damit sie nach dem
+     * Verlassen des Monitors laufen. Die Listener werden einmal benachrichtigt,
+     * nachdem alle eingelassen sind.
+     *
+     * @param changed true, falls der Aufrufer die verfügbaren Besucher schon
+     *                geändert hat; sonst nur, falls eine Gruppe eingelassen wird
+     */
+    private List<Runnable> grantWaiters(boolean changed) {
+        List<Runnable> completions = new ArrayList<>(0);
+        if (admissionPolicy.size() == 0) {
+            if (changed) {
+                fireCapacityChanged();
+            }
+            return completions;
+        }
+        long now = System.nanoTime();
+        Waiter waiter;
+        while ((waiter = admissionPolicy.next(availableVisitors, now)) != null) {
+            changed = true;
+            admissionPolicy.remove(waiter);
+            availableVisitors -= waiter.count;
+            admissionStats.admitted(waiter.count, now - waiter.enqueuedNanos, now);
+            received(waiter.count, availableVisitors);
+            waiter.granted = true;
+            if (waiter.thread != null) {
+                LockSupport.unpark(waiter.thread);
+            } else {
+                completions.add(waiter.onGranted);
+            }
+        }
+        if (changed) {
+            fireCapacityChanged();
+        }
+        return completions;
     }
 
 
@@ -68,4 +374,177 @@ public class VisitorsMonitor {
     public synchronized int getAvailableVisitors() {
         return availableVisitors;
     }
+
+    /**
+     * @return Name der AdmissionPolicy, nach der wartende Gruppen eingelassen werden
+     */
+    public String getPolicyName() {
+        return admissionPolicy.getName();
+    }
+
+    /**
+     * @return Kapazität des Tunnels
+     */
+    public int getMaxVisitors() {
+        return MAX_VISITORS;
+    }
+
+    /**
+     * @return Anzahl der Gruppen, die momentan warten
+     */
+    public synchronized int getWaitingGroups() {
+        return admissionPolicy.size();
+    }
+
+    /**
+     * @return Anzahl der Besucher, die momentan im Tunnel sind
+     */
+    public int getOccupiedVisitors() {
+        return MAX_VISITORS - getAvailableVisitors();
+    }
+
+    /**
+     * @return Auslastung, Wartezeiten, Besuchsdauern und Sperrzeiten
+     */
+    public AdmissionStats getAdmissionStats() {
+        return admissionStats;
+    }
+
+    /**
+     * Liefert einen Messwert für Protocol.OP_STATS
+     *
+     * @param stat     einer der STAT_-Codes aus Protocol
+     * @param permille Perzentil in Promille (500 = Median, 1000 = Maximum),
+     *                 nur für die Histogramme
+     * @return der Messwert, höchstens Integer.MAX_VALUE
+     * @throws IllegalArgumentException bei unbekanntem Messwert oder Perzentil
+     */
+    public int readStat(int stat, int permille) throws IllegalArgumentException {
+        switch (stat) {
+            case Protocol.STAT_WAITING_GROUPS:
+                return getWaitingGroups();
+            case Protocol.STAT_OCCUPIED_VISITORS:
+                return getOccupiedVisitors();
+            case Protocol.STAT_ADMISSION_WAIT_MICROS:
+                return percentile(admissionStats.getAdmissionWait(), permille, TimeUnit.MICROSECONDS);
+            case Protocol.STAT_VISIT_DURATION_MILLIS:
+                return percentile(admissionStats.getVisitDuration(), permille, TimeUnit.MILLISECONDS);
+            case Protocol.STAT_LOCK_HOLD_NANOS:
+                return percentile(admissionStats.getLockHold(), permille, TimeUnit.NANOSECONDS);
+            default:
+                throw new IllegalArgumentException("Unknown statistic " + stat);
+        }
+    }
+
+    private static int percentile(LatencyHistogram histogram, int permille, TimeUnit unit) {
+        if (permille <= 0 || permille > 1000) {
+            throw new IllegalArgumentException("Percentile must be between 1 and 1000 per mille!");
+        }
+        long value = permille == 1000 ? histogram.getMax(unit) : histogram.getPercentile(permille / 10.0, unit);
+        return (int) Math.min(Integer.MAX_VALUE, value);
+    }
+
+    /**
+     * Liefert die Auslastung und die Wartezeiten unter der gewählten Policy
+     *
+     * @return einzeilige Zusammenfassung für die Serverkonsole
+     */
+    public String reportAdmissionStats() {
+        return admissionStats.report(MAX_VISITORS - getAvailableVisitors());
+    }
+
+    /**
+     * Schreibt ab jetzt jede Vergabe und Rückgabe in das Journal. Muss vor
+     * der ersten Anforderung gesetzt werden.
+     *
+     * @param admissionJournal
+     * @param tunnelId         ID des Tunnels, unter der die Einträge stehen
+     */
+    public void setJournal(AdmissionJournal admissionJournal, int tunnelId) {
+        this.journalTunnelId = tunnelId;
+        this.admissionJournal = admissionJournal;
+    }
+
+    /**
+     * Stellt die Belegung nach einem Neustart wieder her, bevor die erste
+     * Anforderung kommt. Wird nicht ins Journal geschrieben, da sie von dort
+     * stammt.
+     *
+     * @param occupiedVisitors Besucher, die laut Journal noch im Tunnel sind;
+     *                         höchstens die Kapazität wird übernommen
+     */
+    public synchronized void restoreOccupied(int occupiedVisitors) {
+        availableVisitors = MAX_VISITORS - Math.max(0, Math.min(MAX_VISITORS, occupiedVisitors));
+        fireCapacityChanged();
+    }
+
+    /**
+     * Meldet eine Vergabe an Konsole und Journal
+     */
+    protected void received(int count, int available) {
+        admissionLog.received(count, available);
+        AdmissionJournal journal = admissionJournal;
+        if (journal != null) {
+            journal.admitted(journalTunnelId, count);
+        }
+    }
+
+    /**
+     * Meldet eine Rückgabe an Konsole und Journal
+     */
+    protected void released(int count, int available) {
+        admissionLog.released(count, available);
+        AdmissionJournal journal = admissionJournal;
+        if (journal != null) {
+            journal.released(journalTunnelId, count);
+        }
+    }
+
+    /**
+     * Registriert einen Listener, der bei jeder Änderung der verfügbaren
+     * Besucher benachrichtigt wird (z. B. der CapacityPublisher).
+     *
+     * @param listener darf nicht blockieren, da er unter der Sperre des Monitors läuft
+     */
+    public void addCapacityListener(Runnable listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener is null");
+        }
+        capacityListeners.add(listener);
+    }
+
+    protected void fireCapacityChanged() {
+        for (Runnable listener : capacityListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Prüft eine angeforderte Anzahl. Eine Gruppe, die mehr Besucher anfordert
+     * als der Tunnel überhaupt fasst, könnte nie eingelassen werden und wird
+     * deshalb abgewiesen, statt für immer zu warten.
+     */
+    protected void checkRequestedCount(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Visitor count must be positive!");
+        }
+        if (count > MAX_VISITORS) {
+            throw new IllegalArgumentException("Cannot request " + count + " visitors: exceeds maximum capacity of " + MAX_VISITORS + ".");
+        }
+    }
+
+    private void take(int count) {
+        availableVisitors -= count;
+        admissionStats.admitted(count, 0L, System.nanoTime());
+        received(count, availableVisitors);
+        fireCapacityChanged();
+    }
+
+    protected static void runCompletions(List<Runnable> completions) {
+        if (completions != null) {
+            for (Runnable completion : completions) {
+                completion.run();
+            }
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package tunnel.server;
+
+/**
+ * A group waiting in a VisitorsMonitor: either a blocked thread or the
+ * callback of a non-blocking request. Which waiter is admitted next is decided
+ * by the monitor's AdmissionPolicy.
+ */
+public final class Waiter {
+    final int count;
+    final long enqueuedNanos;
+    final Thread thread;
+    final Runnable onGranted;
+    volatile boolean granted = false;
+
+    Waiter(int count, Thread thread, Runnable onGranted) {
+        this.count = count;
+        this.enqueuedNanos = System.nanoTime();
+        this.thread = thread;
+        this.onGranted = onGranted;
+    }
+
+    /**
+     * @return number of visitors the group asked for.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the group started waiting.
+     */
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+}
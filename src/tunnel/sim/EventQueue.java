@@ -0,0 +1,165 @@
+package tunnel.sim;
+
+import java.util.Arrays;
+
+/**
+ * The pending events of a simulation, ordered by time and, at the same time,
+ * in the order they were scheduled. An event is a time, a kind and two ints
+ * the model chooses, e.g. the slot of a group and a stamp that tells whether
+ * the event is still current. The queue is a binary heap over parallel
+ * primitive arrays that double when full, so scheduling and polling allocate
+ * nothing once the queue has grown to the model's size.
+ * <p>
+ * {@link #poll()} moves the earliest event into the "current" fields, read
+ * with {@link #time()}, {@link #kind()}, {@link #target()} and {@link #stamp()}.
+ * Not thread-safe; a simulation runs on one thread.
+ */
+public final class EventQueue {
+
+    private long[] times;
+    private long[] sequences;
+    private int[] kinds;
+    private int[] targets;
+    private int[] stamps;
+    private int size = 0;
+    private long nextSequence = 0;
+
+    private long time;
+    private int kind;
+    private int target;
+    private int stamp;
+
+    /**
+     * @param initialCapacity Events that fit before the arrays grow.
+     */
+    public EventQueue(int initialCapacity) {
+        int capacity = Math.max(16, initialCapacity);
+        times = new long[capacity];
+        sequences = new long[capacity];
+        kinds = new int[capacity];
+        targets = new int[capacity];
+        stamps = new int[capacity];
+    }
+
+    /**
+     * @param time   When the event happens, on the simulation's clock.
+     * @param kind   Kind of the event, defined by the model.
+     * @param target What the event happens to, defined by the model.
+     * @param stamp  Defined by the model, e.g. to recognise stale events.
+     */
+    public void schedule(long time, int kind, int target, int stamp) {
+        if (size == times.length) {
+            grow();
+        }
+        long sequence = nextSequence++;
+        int hole = size++;
+        while (hole > 0) {
+            int parent = (hole - 1) >>> 1;
+            if (!before(time, sequence, times[parent], sequences[parent])) {
+                break;
+            }
+            move(parent, hole);
+            hole = parent;
+        }
+        set(hole, time, sequence, kind, target, stamp);
+    }
+
+    /**
+     * Removes the earliest event and makes it the current one.
+     *
+     * @return false if no event is pending.
+     */
+    public boolean poll() {
+        if (size == 0) {
+            return false;
+        }
+        time = times[0];
+        kind = kinds[0];
+        target = targets[0];
+        stamp = stamps[0];
+        size--;
+        if (size > 0) {
+            siftDown(size);
+        }
+        return true;
+    }
+
+    /**
+     * @return number of pending events.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return time of the current event.
+     */
+    public long time() {
+        return time;
+    }
+
+    public int kind() {
+        return kind;
+    }
+
+    public int target() {
+        return target;
+    }
+
+    public int stamp() {
+        return stamp;
+    }
+
+    /**
+     * Puts the last event of the heap into the hole at the root and lets it
+     * sink to its place.
+     */
+    private void siftDown(int last) {
+        long lastTime = times[last];
+        long lastSequence = sequences[last];
+        int hole = 0;
+        int half = size >>> 1;
+        while (hole < half) {
+            int child = 2 * hole + 1;
+            int right = child + 1;
+            if (right < size && before(times[right], sequences[right], times[child], sequences[child])) {
+                child = right;
+            }
+            if (!before(times[child], sequences[child], lastTime, lastSequence)) {
+                break;
+            }
+            move(child, hole);
+            hole = child;
+        }
+        set(hole, lastTime, lastSequence, kinds[last], targets[last], stamps[last]);
+    }
+
+    private static boolean before(long time, long sequence, long otherTime, long otherSequence) {
+        return time < otherTime || (time == otherTime && sequence < otherSequence);
+    }
+
+    private void move(int from, int to) {
+        times[to] = times[from];
+        sequences[to] = sequences[from];
+        kinds[to] = kinds[from];
+        targets[to] = targets[from];
+        stamps[to] = stamps[from];
+    }
+
+    private void set(int index, long eventTime, long sequence, int eventKind, int eventTarget, int eventStamp) {
+        times[index] = eventTime;
+        sequences[index] = sequence;
+        kinds[index] = eventKind;
+        targets[index] = eventTarget;
+        stamps[index] = eventStamp;
+    }
+
+    private void grow() {
+        int capacity = times.length * 2;
+        times = Arrays.copyOf(times, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        targets = Arrays.copyOf(targets, capacity);
+        stamps = Arrays.copyOf(stamps, capacity);
+    }
+}
@@ -0,0 +1,169 @@
+package tunnel.sim;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tunnel.common.Options;
+
+/**
+ * Sizes staffing and capacity by running a {@link TunnelSimulation} for every
+ * point of a grid, spread over all cores with fork/join. Each run is
+ * independent and single-threaded; the grid is split in halves until single
+ * runs are left, so idle workers steal the remaining halves. Every run
+ * appends its CSV line as soon as it finishes, so a long sweep can be
+ * watched and a cancelled one keeps its results.
+ * <p>
+ * The grid is given as comma-separated lists:
+ * <ul>
+ *     <li>{@code --guides=2,4,6} guides per entrance</li>
+ *     <li>{@code --capacity=30,50,80} visitors in the tunnel</li>
+ *     <li>{@code --max-group-size=10,50} largest group an entrance accepts</li>
+ *     <li>{@code --arrival-gap-ms=exp:300000,exp:600000} arrival profiles per entrance</li>
+ * </ul>
+ * All other simulation options ({@code --entrances}, {@code --acquisition},
+ * {@code --visit-ms}, {@code --duration-days}, {@code --seed}, ...) apply to
+ * every run; with the same seed all points see comparable random arrivals.
+ * {@code --parallelism=N} limits the worker threads (default: all cores),
+ * {@code --out=sweep-results.csv} is the file the lines are appended to.
+ * <p>
+ * {@code java tunnel.sim.ParameterSweep --guides=2,3,4,5,6 --capacity=40,50,60 --duration-days=365}
+ */
+public class ParameterSweep {
+
+    private static final String CSV_HEADER = "timestamp," + TunnelSimulation.CSV_PARAMETERS
+            + ",arrivals,admitted,rejected,gave_up,tunnel_utilisation,guide_utilisation,mean_wait_ms,p99_wait_ms,"
+            + "max_wait_ms,events,wall_ms";
+
+    private final List<Options> scenarios;
+    private final PrintWriter writer;
+    private final String timestamp = Instant.now().toString();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    ParameterSweep(List<Options> scenarios, PrintWriter writer) {
+        this.scenarios = scenarios;
+        this.writer = writer;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Options> scenarios;
+        int parallelism;
+        Path out;
+        try {
+            Options options = new Options(args);
+            scenarios = grid(options);
+            parallelism = options.getInt("parallelism", Runtime.getRuntime().availableProcessors());
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("--parallelism must be positive");
+            }
+            out = Paths.get(options.get("out", "sweep-results.csv"));
+            // Fails on invalid values before any thread starts
+            for (Options scenario : scenarios) {
+                new TunnelSimulation(scenario);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        System.out.printf("Sweep: %d runs on %d threads, results appended to %s%n", scenarios.size(), parallelism, out);
+        boolean header = !Files.exists(out);
+        long start = System.nanoTime();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(out.toFile(), true))) {
+            if (header) {
+                writer.println(CSV_HEADER);
+                writer.flush();
+            }
+            ParameterSweep sweep = new ParameterSweep(scenarios, writer);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(sweep.new Runs(0, scenarios.size()));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        System.out.printf("Sweep finished in %.1f s%n", (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * @return one set of options per point of the grid.
+     * @throws IllegalArgumentException if a list is empty.
+     */
+    static List<Options> grid(Options options) {
+        List<Options> scenarios = new ArrayList<>();
+        scenarios.add(options);
+        scenarios = expand(scenarios, "guides", options.get("guides", "2,4,6"));
+        scenarios = expand(scenarios, "capacity", options.get("capacity", "30,50,80"));
+        scenarios = expand(scenarios, "max-group-size", options.get("max-group-size", "10,50"));
+        return expand(scenarios, "arrival-gap-ms", options.get("arrival-gap-ms", "exp:300000,exp:600000"));
+    }
+
+    private static List<Options> expand(List<Options> scenarios, String name, String list) {
+        List<Options> expanded = new ArrayList<>();
+        for (Options scenario : scenarios) {
+            for (String value : list.split(",")) {
+                if (value.trim().isEmpty()) {
+                    throw new IllegalArgumentException("Empty value in --" + name + "=" + list);
+                }
+                expanded.add(scenario.with(name, value.trim()));
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Runs the scenarios from index {@code from} to {@code to}, exclusive.
+     */
+    private final class Runs extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        Runs(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Runs(from, middle), new Runs(middle, to));
+                return;
+            }
+            if (to > from) {
+                run(scenarios.get(from));
+            }
+        }
+    }
+
+    private void run(Options scenario) {
+        TunnelSimulation simulation = new TunnelSimulation(scenario);
+        long start = System.nanoTime();
+        simulation.run();
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        String line = String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%d,%.4f,%.4f,%.1f,%.0f,%.0f,%d,%d",
+                timestamp, simulation.csvParameters(), simulation.getArrivals(), simulation.getAdmittedGroups(),
+                simulation.getRejected(), simulation.getGaveUp(), simulation.getTunnelUtilisation(),
+                simulation.getGuideUtilisation(), simulation.getMeanWaitMillis(),
+                simulation.getWaits().getPercentileMillis(99), simulation.getWaits().getMaxMillis(),
+                simulation.getProcessedEvents(), wallMillis);
+        synchronized (writer) {
+            writer.println(line);
+            writer.flush();
+        }
+        System.out.printf("%d/%d runs%n", finished.incrementAndGet(), scenarios.size());
+    }
+}
@@ -0,0 +1,530 @@
+package tunnel.sim;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import tunnel.bench.Distribution;
+import tunnel.client.ClientForm;
+import tunnel.client.EntranceConfig;
+import tunnel.common.LatencyHistogram;
+import tunnel.common.Options;
+import tunnel.server.AdmissionPolicy;
+import tunnel.server.VisitorsMonitor;
+
+/**
+ * Runs the tunnel scenario in virtual time on one thread instead of real
+ * windows, sockets and threads: entrances with a pool of guides each (like
+ * GuidesMonitor), one tunnel with a capacity (like VisitorsMonitor under the
+ * fifo or smallest-first policy), groups that arrive, wait, visit and leave.
+ * Nothing sleeps; the clock jumps from one event to the next, so a season
+ * of operation takes seconds.
+ * <p>
+ * Groups follow the acquisition of the ClientThread:
+ * <ul>
+ *     <li>sequential - a group waits for a guide of its entrance in arrival
+ *     order, then for capacity with the guide; {@code --request-timeout-ms}
+ *     limits the wait for capacity and hands the guide back</li>
+ *     <li>atomic - a group waits without a guide until a guide of its
+ *     entrance and capacity are free at the same time; groups of one
+ *     entrance go in arrival order, the timeout limits the whole wait</li>
+ * </ul>
+ * Groups live in slots of parallel primitive arrays and wait in int ring
+ * buffers; together with the {@link EventQueue} the run allocates nothing
+ * per event once the arrays have grown to the busiest moment. Groups that
+ * give up stay in their queue, marked, until they reach its head.
+ * <p>
+ * Options (distributions in the format of {@link Distribution}):
+ * <ul>
+ *     <li>{@code --entrances=2}, {@code --guides=4} per entrance,
+ *     {@code --capacity=50}, {@code --policy=smallest-first|fifo}</li>
+ *     <li>{@code --acquisition=sequential|atomic}, {@code --request-timeout-ms=0}</li>
+ *     <li>{@code --arrival-gap-ms=exp:600000} per entrance,
+ *     {@code --group-size=uniform:1-10}, {@code --visit-ms=exp:1200000};
+ *     groups larger than {@code --max-group-size} (default
+ *     {@link ClientForm#MAX_GROUP_SIZE}) or the tunnel are turned away</li>
+ *     <li>{@code --duration-days=90}, {@code --seed=N}</li>
+ * </ul>
+ * {@code java tunnel.sim.TunnelSimulation --entrances=20 --duration-days=365}
+ */
+public class TunnelSimulation {
+
+    private static final int ARRIVAL = 0;
+    private static final int VISIT_END = 1;
+    private static final int TIMEOUT = 2;
+
+    private static final byte FREE = 0;
+    private static final byte WAITING_GUIDE = 1;
+    private static final byte WAITING_CAPACITY = 2;
+    private static final byte INSIDE = 3;
+    private static final byte GAVE_UP = 4;
+
+    private static final int DEFAULT_GUIDES = 4;
+    /**
+     * Header of the fields of {@link #csvParameters()}
+     */
+    static final String CSV_PARAMETERS = "entrances,acquisition,policy,days,guides,capacity,max_group_size,arrival_gap_ms";
+
+    private final int entrances;
+    private final int guidesPerEntrance;
+    private final int capacity;
+    private final int maxGroupSize;
+    private final boolean smallestFirst;
+    private final boolean atomic;
+    private final long timeoutMillis;
+    private final Distribution arrivalGapMillis;
+    private final Distribution groupSize;
+    private final Distribution visitMillis;
+    private final long endMillis;
+    private final Random random;
+
+    private final EventQueue events = new EventQueue(1024);
+    private long now = 0;
+    private int availableVisitors;
+    private final int[] freeGuides;
+    private int busyGuides = 0;
+    /**
+     * Per entrance: sequential groups waiting for a guide, atomic groups
+     * waiting for guide and capacity
+     */
+    private final IntRing[] entranceQueues;
+    /**
+     * Groups with a guide waiting for capacity: one queue for fifo, one per
+     * size for smallest-first
+     */
+    private final IntRing[] capacityQueues;
+    private int atomicCursor = 0;
+
+    private byte[] states = new byte[256];
+    private int[] groupEntrances = new int[256];
+    private int[] sizes = new int[256];
+    private int[] stamps = new int[256];
+    private long[] arrivalTimes = new long[256];
+    private int[] freeSlots = new int[256];
+    private int freeCount = 0;
+    private int slotCount = 0;
+
+    private long processedEvents = 0;
+    private long arrivals = 0;
+    private long admittedGroups = 0;
+    private long admittedVisitors = 0;
+    private long gaveUp = 0;
+    private long rejected = 0;
+    private int waiting = 0;
+    private int inside = 0;
+    private final LatencyHistogram waits = new LatencyHistogram(TimeUnit.MILLISECONDS);
+    private long waitMillisSum = 0;
+    /**
+     * Occupied visitors and busy guides integrated over virtual time
+     */
+    private double occupiedArea = 0;
+    private double guideArea = 0;
+
+    TunnelSimulation(Options options) {
+        this.entrances = options.getInt("entrances", 2);
+        this.guidesPerEntrance = options.getInt("guides", DEFAULT_GUIDES);
+        this.capacity = options.getInt("capacity", VisitorsMonitor.DEFAULT_MAX_VISITORS);
+        this.maxGroupSize = options.getInt("max-group-size", ClientForm.MAX_GROUP_SIZE);
+        if (entrances <= 0 || guidesPerEntrance <= 0 || capacity <= 0 || maxGroupSize <= 0) {
+            throw new IllegalArgumentException("--entrances, --guides, --capacity and --max-group-size must be positive");
+        }
+        String policy = options.get("policy", AdmissionPolicy.SMALLEST_FIRST);
+        if (!AdmissionPolicy.SMALLEST_FIRST.equals(policy) && !AdmissionPolicy.FIFO.equals(policy)) {
+            throw new IllegalArgumentException("Unknown policy '" + policy + "', expected "
+                    + AdmissionPolicy.SMALLEST_FIRST + " or " + AdmissionPolicy.FIFO);
+        }
+        this.smallestFirst = AdmissionPolicy.SMALLEST_FIRST.equals(policy);
+        EntranceConfig config = EntranceConfig.fromOptions(options);
+        this.atomic = config.isAtomicAcquisition();
+        this.timeoutMillis = config.getRequestTimeoutMillis();
+        this.arrivalGapMillis = Distribution.parse(options.get("arrival-gap-ms", "exp:600000"));
+        this.groupSize = Distribution.parse(options.get("group-size", "uniform:1-10"));
+        this.visitMillis = Distribution.parse(options.get("visit-ms", "exp:1200000"));
+        int days = options.getInt("duration-days", 90);
+        if (days <= 0) {
+            throw new IllegalArgumentException("--duration-days must be positive");
+        }
+        this.endMillis = TimeUnit.DAYS.toMillis(days);
+        this.random = new Random(options.getLong("seed", 1L));
+
+        this.availableVisitors = capacity;
+        this.freeGuides = new int[entrances];
+        Arrays.fill(freeGuides, guidesPerEntrance);
+        this.entranceQueues = new IntRing[entrances];
+        for (int i = 0; i < entrances; i++) {
+            entranceQueues[i] = new IntRing();
+        }
+        this.capacityQueues = new IntRing[smallestFirst ? capacity + 1 : 1];
+        for (int i = 0; i < capacityQueues.length; i++) {
+            capacityQueues[i] = new IntRing();
+        }
+    }
+
+    public static void main(String[] args) {
+        TunnelSimulation simulation;
+        try {
+            simulation = new TunnelSimulation(new Options(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.printf("Simulation: %d entrances x %d guides, capacity %d, %s, %s acquisition, timeout %d ms, "
+                        + "arrival gap %s ms, group size %s, visit %s ms, %d days%n",
+                simulation.entrances, simulation.guidesPerEntrance, simulation.capacity,
+                simulation.smallestFirst ? AdmissionPolicy.SMALLEST_FIRST : AdmissionPolicy.FIFO,
+                simulation.atomic ? EntranceConfig.ACQUISITION_ATOMIC : EntranceConfig.ACQUISITION_SEQUENTIAL,
+                simulation.timeoutMillis, simulation.arrivalGapMillis, simulation.groupSize, simulation.visitMillis,
+                TimeUnit.MILLISECONDS.toDays(simulation.endMillis));
+        long start = System.nanoTime();
+        simulation.run();
+        simulation.report((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Processes events until the end of the simulated period.
+     */
+    void run() {
+        for (int entrance = 0; entrance < entrances; entrance++) {
+            scheduleArrival(entrance);
+        }
+        while (events.poll() && events.time() <= endMillis) {
+            advanceTo(events.time());
+            processedEvents++;
+            int target = events.target();
+            switch (events.kind()) {
+                case ARRIVAL:
+                    arrive(target);
+                    break;
+                case VISIT_END:
+                    endVisit(target);
+                    break;
+                default:
+                    giveUp(target, events.stamp());
+            }
+        }
+        advanceTo(endMillis);
+    }
+
+    private void report(double wallSeconds) {
+        System.out.printf("events        %12d  (%.1f million/s, %.2f s)%n", processedEvents,
+                processedEvents / wallSeconds / 1e6, wallSeconds);
+        System.out.printf("arrivals      %12d%n", arrivals);
+        System.out.printf("admitted      %12d  (%d visitors)%n", admittedGroups, admittedVisitors);
+        System.out.printf("gave up       %12d  (request timeout)%n", gaveUp);
+        System.out.printf("rejected      %12d  (larger than %d or the tunnel)%n", rejected, maxGroupSize);
+        System.out.printf("at the end    %12d waiting, %d inside%n", waiting, inside);
+        System.out.printf("wait ms: mean %.0f  p50 %.0f  p90 %.0f  p99 %.0f  max %.0f%n", getMeanWaitMillis(),
+                waits.getPercentileMillis(50), waits.getPercentileMillis(90), waits.getPercentileMillis(99),
+                waits.getMaxMillis());
+        System.out.printf("utilisation: tunnel %.1f%%, guides %.1f%%%n", 100.0 * getTunnelUtilisation(),
+                100.0 * getGuideUtilisation());
+    }
+
+    /**
+     * @return the parameters of the run as CSV fields, see {@link #CSV_PARAMETERS}.
+     */
+    String csvParameters() {
+        return entrances + "," + (atomic ? EntranceConfig.ACQUISITION_ATOMIC : EntranceConfig.ACQUISITION_SEQUENTIAL)
+                + "," + (smallestFirst ? AdmissionPolicy.SMALLEST_FIRST : AdmissionPolicy.FIFO) + ","
+                + TimeUnit.MILLISECONDS.toDays(endMillis) + "," + guidesPerEntrance + "," + capacity + ","
+                + maxGroupSize + "," + arrivalGapMillis;
+    }
+
+    long getProcessedEvents() {
+        return processedEvents;
+    }
+
+    long getArrivals() {
+        return arrivals;
+    }
+
+    long getAdmittedGroups() {
+        return admittedGroups;
+    }
+
+    long getGaveUp() {
+        return gaveUp;
+    }
+
+    long getRejected() {
+        return rejected;
+    }
+
+    double getMeanWaitMillis() {
+        return admittedGroups > 0 ? (double) waitMillisSum / admittedGroups : 0.0;
+    }
+
+    LatencyHistogram getWaits() {
+        return waits;
+    }
+
+    /**
+     * @return occupied share of the tunnel's capacity over the simulated period.
+     */
+    double getTunnelUtilisation() {
+        return occupiedArea / ((double) capacity * endMillis);
+    }
+
+    /**
+     * @return busy share of all guides over the simulated period.
+     */
+    double getGuideUtilisation() {
+        return guideArea / ((double) entrances * guidesPerEntrance * endMillis);
+    }
+
+    private void advanceTo(long time) {
+        long elapsed = time - now;
+        occupiedArea += (double) (capacity - availableVisitors) * elapsed;
+        guideArea += (double) busyGuides * elapsed;
+        now = time;
+    }
+
+    private void scheduleArrival(int entrance) {
+        long time = now + arrivalGapMillis.sample(random);
+        if (time <= endMillis) {
+            events.schedule(time, ARRIVAL, entrance, 0);
+        }
+    }
+
+    private void arrive(int entrance) {
+        scheduleArrival(entrance);
+        arrivals++;
+        int count = (int) Math.max(1, groupSize.sample(random));
+        if (count > maxGroupSize || count > capacity) {
+            rejected++;
+            return;
+        }
+        int group = allocate(entrance, count);
+        waiting++;
+        if (atomic) {
+            states[group] = WAITING_GUIDE;
+            entranceQueues[entrance].add(group);
+            scheduleTimeout(group);
+            admitAtomic(entrance);
+        } else if (freeGuides[entrance] > 0) {
+            takeGuide(entrance);
+            requestCapacity(group);
+        } else {
+            states[group] = WAITING_GUIDE;
+            entranceQueues[entrance].add(group);
+        }
+    }
+
+    /**
+     * Sequential: the group has a guide and asks for capacity.
+     */
+    private void requestCapacity(int group) {
+        states[group] = WAITING_CAPACITY;
+        // Fifo: groups behind a head that does not fit wait even if they would fit
+        boolean queueEmpty = smallestFirst ? nextForCapacity() < 0 : liveHead(capacityQueues[0]) < 0;
+        if (sizes[group] <= availableVisitors && queueEmpty) {
+            admit(group);
+            return;
+        }
+        capacityQueues[smallestFirst ? sizes[group] : 0].add(group);
+        scheduleTimeout(group);
+        admitWaiting();
+    }
+
+    private void scheduleTimeout(int group) {
+        if (timeoutMillis > 0) {
+            events.schedule(now + timeoutMillis, TIMEOUT, group, stamps[group]);
+        }
+    }
+
+    /**
+     * Sequential: admits groups with a guide as long as the policy picks one.
+     */
+    private void admitWaiting() {
+        int group;
+        while ((group = nextForCapacity()) >= 0) {
+            capacityQueues[smallestFirst ? sizes[group] : 0].poll();
+            admit(group);
+        }
+    }
+
+    /**
+     * @return the group the policy admits next, -1 if none fits.
+     */
+    private int nextForCapacity() {
+        if (!smallestFirst) {
+            int head = liveHead(capacityQueues[0]);
+            return head >= 0 && sizes[head] <= availableVisitors ? head : -1;
+        }
+        for (int size = 1; size <= availableVisitors; size++) {
+            int head = liveHead(capacityQueues[size]);
+            if (head >= 0) {
+                return head;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Atomic: admits the groups of the entrance in arrival order while a
+     * guide and capacity are free.
+     */
+    private void admitAtomic(int entrance) {
+        IntRing queue = entranceQueues[entrance];
+        while (freeGuides[entrance] > 0) {
+            int head = liveHead(queue);
+            if (head < 0 || sizes[head] > availableVisitors) {
+                return;
+            }
+            queue.poll();
+            takeGuide(entrance);
+            admit(head);
+        }
+    }
+
+    private void admit(int group) {
+        availableVisitors -= sizes[group];
+        states[group] = INSIDE;
+        waiting--;
+        inside++;
+        admittedGroups++;
+        admittedVisitors += sizes[group];
+        waits.recordNanos(TimeUnit.MILLISECONDS.toNanos(now - arrivalTimes[group]));
+        waitMillisSum += now - arrivalTimes[group];
+        events.schedule(now + visitMillis.sample(random), VISIT_END, group, stamps[group]);
+    }
+
+    private void endVisit(int group) {
+        int entrance = groupEntrances[group];
+        availableVisitors += sizes[group];
+        inside--;
+        release(group);
+        if (atomic) {
+            releaseGuide(entrance);
+            admitAtomic(entrance);
+            // The capacity may let groups of other entrances in, starting
+            // with a different entrance each time
+            for (int i = 0; i < entrances && availableVisitors > 0; i++) {
+                admitAtomic((atomicCursor + i) % entrances);
+            }
+            atomicCursor = (atomicCursor + 1) % entrances;
+        } else {
+            admitWaiting();
+            handOverGuide(entrance);
+        }
+    }
+
+    private void giveUp(int group, int stamp) {
+        if (stamps[group] != stamp || (states[group] != WAITING_CAPACITY && states[group] != WAITING_GUIDE)) {
+            return;
+        }
+        states[group] = GAVE_UP;
+        waiting--;
+        gaveUp++;
+        // The group may have blocked smaller ones behind it
+        if (atomic) {
+            admitAtomic(groupEntrances[group]);
+        } else {
+            admitWaiting();
+            handOverGuide(groupEntrances[group]);
+        }
+    }
+
+    private void takeGuide(int entrance) {
+        freeGuides[entrance]--;
+        busyGuides++;
+    }
+
+    private void releaseGuide(int entrance) {
+        freeGuides[entrance]++;
+        busyGuides--;
+    }
+
+    /**
+     * Sequential: the guide goes to the next group waiting at the entrance,
+     * or back to the pool.
+     */
+    private void handOverGuide(int entrance) {
+        int next = liveHead(entranceQueues[entrance]);
+        if (next < 0) {
+            releaseGuide(entrance);
+            return;
+        }
+        entranceQueues[entrance].poll();
+        requestCapacity(next);
+    }
+
+    /**
+     * @return the first group of the queue that still waits, -1 if none;
+     * groups that gave up in front of it are dropped and their slots freed.
+     */
+    private int liveHead(IntRing queue) {
+        while (!queue.isEmpty()) {
+            int head = queue.peek();
+            if (states[head] != GAVE_UP) {
+                return head;
+            }
+            queue.poll();
+            release(head);
+        }
+        return -1;
+    }
+
+    private int allocate(int entrance, int count) {
+        int group;
+        if (freeCount > 0) {
+            group = freeSlots[--freeCount];
+        } else {
+            if (slotCount == states.length) {
+                int grown = slotCount * 2;
+                states = Arrays.copyOf(states, grown);
+                groupEntrances = Arrays.copyOf(groupEntrances, grown);
+                sizes = Arrays.copyOf(sizes, grown);
+                stamps = Arrays.copyOf(stamps, grown);
+                arrivalTimes = Arrays.copyOf(arrivalTimes, grown);
+                freeSlots = Arrays.copyOf(freeSlots, grown);
+            }
+            group = slotCount++;
+        }
+        groupEntrances[group] = entrance;
+        sizes[group] = count;
+        stamps[group]++;
+        arrivalTimes[group] = now;
+        return group;
+    }
+
+    private void release(int group) {
+        states[group] = FREE;
+        freeSlots[freeCount++] = group;
+    }
+
+    /**
+     * Queue of group slots in a ring buffer that doubles when full.
+     */
+    private static final class IntRing {
+        private int[] slots = new int[16];
+        private int head = 0;
+        private int size = 0;
+
+        void add(int value) {
+            if (size == slots.length) {
+                int[] grown = new int[slots.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = slots[(head + i) & (slots.length - 1)];
+                }
+                slots = grown;
+                head = 0;
+            }
+            slots[(head + size) & (slots.length - 1)] = value;
+            size++;
+        }
+
+        int peek() {
+            return slots[head];
+        }
+
+        void poll() {
+            head = (head + 1) & (slots.length - 1);
+            size--;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}